@@ -0,0 +1,78 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.michaelfitzmaurice.devtools.HeaderTool;
+import com.michaelfitzmaurice.devtools.HeaderTool.MatchMode;
+
+/**
+ * Measures constructing a <code>HeaderTool</code>, which reads the 
+ * header file and compiles the headers for matching; this is paid 
+ * on every run, however few files are then checked.
+ * 
+ * @author Michael Fitzmaurice
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HeaderSetupBenchmark {
+    
+    @Param({"15", "60", "240"})
+    public int headerLines;
+    
+    @Param({"FULL_MATCH", "FIRST_LINE_ONLY", "TEMPLATE"})
+    public MatchMode matchMode;
+    
+    private SyntheticTree tree;
+    
+    @Setup(Level.Trial)
+    public void createHeader() 
+    throws IOException {
+        tree = new SyntheticTree(0, 0, headerLines, 0.0, matchMode);
+    }
+    
+    @TearDown(Level.Trial)
+    public void deleteHeader() 
+    throws IOException {
+        tree.delete();
+    }
+    
+    @Benchmark
+    public HeaderTool createHeaderTool() 
+    throws IOException {
+        return new HeaderTool( tree.headerFile(), matchMode );
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.michaelfitzmaurice.devtools.HeaderTool;
+import com.michaelfitzmaurice.devtools.HeaderTool.MatchMode;
+
+/**
+ * Measures inserting the header into a batch of headerless files, 
+ * with one or several writer threads. The files are rewritten to 
+ * their original content, untimed, before each batch. Besides 
+ * batches per second, reports files and bytes written per second.
+ * 
+ * @author Michael Fitzmaurice
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InsertBenchmark {
+    
+    @Param({"100"})
+    public int fileCount;
+    
+    @Param({"1024", "65536", "1048576"})
+    public int fileSize;
+    
+    @Param({"15", "60"})
+    public int headerLines;
+    
+    @Param({"1", "4"})
+    public int writerThreads;
+    
+    private SyntheticTree tree;
+    private HeaderTool headerTool;
+    private List<File> files;
+    private long batchBytes;
+    
+    /**
+     * Files and bytes written, reported by JMH as rates
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Written {
+        
+        public long files;
+        public long bytes;
+        
+        @Setup(Level.Iteration)
+        public void reset() {
+            files = 0;
+            bytes = 0;
+        }
+    }
+    
+    @Setup(Level.Trial)
+    public void createTree() 
+    throws IOException {
+        
+        tree = new SyntheticTree(fileCount, 
+                                fileSize, 
+                                headerLines, 
+                                0.0, 
+                                MatchMode.FULL_MATCH);
+        headerTool = new HeaderTool( tree.headerFile(), MatchMode.FULL_MATCH );
+        files = tree.filesWithoutHeader();
+        batchBytes = (long) fileCount * (fileSize + tree.headerBytes() );
+    }
+    
+    @Setup(Level.Invocation)
+    public void restoreFiles() 
+    throws IOException {
+        tree.reset();
+    }
+    
+    @TearDown(Level.Trial)
+    public void deleteTree() 
+    throws IOException {
+        tree.delete();
+    }
+    
+    @Benchmark
+    public Map<File, IOException> insertHeader(Written written) 
+    throws IOException {
+        
+        Map<File, IOException> failures = 
+            headerTool.insertHeader(files, writerThreads);
+        written.files += fileCount;
+        written.bytes += batchBytes;
+        
+        return failures;
+    }
+}
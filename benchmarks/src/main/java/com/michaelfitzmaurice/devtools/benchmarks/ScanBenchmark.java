@@ -0,0 +1,124 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.michaelfitzmaurice.devtools.HeaderTool;
+import com.michaelfitzmaurice.devtools.HeaderTool.MatchMode;
+
+/**
+ * Measures a full scan of a synthetic tree with 
+ * {@link HeaderTool#listFilesWithoutHeader(File, String[])}.
+ * Besides scans per second, reports files and bytes of tree 
+ * scanned per second.
+ * 
+ * @author Michael Fitzmaurice
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScanBenchmark {
+    
+    @Param({"1000", "10000"})
+    public int fileCount;
+    
+    @Param({"1024", "65536"})
+    public int fileSize;
+    
+    @Param({"15", "60"})
+    public int headerLines;
+    
+    @Param({"0.0", "0.9"})
+    public double hitRatio;
+    
+    @Param({"FULL_MATCH", "FIRST_LINE_ONLY", "TEMPLATE"})
+    public MatchMode matchMode;
+    
+    private SyntheticTree tree;
+    private HeaderTool headerTool;
+    private long treeBytes;
+    
+    /**
+     * Files and bytes scanned, reported by JMH as rates
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Scanned {
+        
+        public long files;
+        public long bytes;
+        
+        @Setup(Level.Iteration)
+        public void reset() {
+            files = 0;
+            bytes = 0;
+        }
+    }
+    
+    @Setup(Level.Trial)
+    public void createTree() 
+    throws IOException {
+        
+        tree = new SyntheticTree(fileCount, 
+                                fileSize, 
+                                headerLines, 
+                                hitRatio, 
+                                matchMode);
+        headerTool = new HeaderTool( tree.headerFile(), matchMode );
+        treeBytes = tree.totalBytes();
+    }
+    
+    @TearDown(Level.Trial)
+    public void deleteTree() 
+    throws IOException {
+        tree.delete();
+    }
+    
+    @Benchmark
+    public Collection<File> listFilesWithoutHeader(Scanned scanned) 
+    throws IOException {
+        
+        Collection<File> result = 
+            headerTool.listFilesWithoutHeader(tree.sourceDir(), 
+                                            new String[] {"java"});
+        scanned.files += fileCount;
+        scanned.bytes += treeBytes;
+        
+        return result;
+    }
+}
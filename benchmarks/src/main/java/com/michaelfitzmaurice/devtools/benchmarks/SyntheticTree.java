@@ -0,0 +1,192 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+import com.michaelfitzmaurice.devtools.HeaderTool.MatchMode;
+
+/**
+ * Builds a throwaway tree of source files for the benchmarks to 
+ * work on, with a given number of files of a given size, spread 
+ * over directories of {@value #FILES_PER_DIRECTORY} files each, 
+ * a given fraction of which begin with the header.
+ * 
+ * @author Michael Fitzmaurice
+ */
+final class SyntheticTree {
+    
+    static final int FILES_PER_DIRECTORY = 100;
+    
+    private static final String NEWLINE = System.getProperty("line.separator");
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final String YEAR = "2013";
+    private static final String AUTHOR = "Michael Fitzmaurice";
+    
+    private final File rootDir;
+    private final File headerFile;
+    private final String header;
+    private final List<File> files = new ArrayList<File>();
+    private final int fileSize;
+    private final double hitRatio;
+    
+    /**
+     * @param fileCount The number of files to create
+     * @param fileSize The size of each file in bytes, not counting 
+     *          any header
+     * @param headerLines The number of lines in the header
+     * @param hitRatio The fraction of files that begin with the 
+     *          header, from 0 to 1
+     * @param matchMode Decides whether the header file is written 
+     *          with placeholders
+     */
+    SyntheticTree(int fileCount, 
+                    int fileSize, 
+                    int headerLines, 
+                    double hitRatio, 
+                    MatchMode matchMode) 
+    throws IOException {
+        
+        this.rootDir = 
+            new File( FileUtils.getTempDirectory(), 
+                        "header_tool_bench_" + System.nanoTime() );
+        this.fileSize = fileSize;
+        this.hitRatio = hitRatio;
+        this.headerFile = new File(rootDir, "header.txt");
+        this.header = headerText(headerLines, false);
+        FileUtils.writeStringToFile( headerFile, 
+                                    headerText(headerLines, 
+                                            matchMode == MatchMode.TEMPLATE) );
+        for (int i = 0; i < fileCount; i++) {
+            File dir = new File(rootDir, "src/dir" + (i / FILES_PER_DIRECTORY) );
+            files.add( new File(dir, "Source" + i + ".java") );
+        }
+        reset();
+    }
+    
+    /**
+     * Rewrites every file to its original content.
+     */
+    void reset() 
+    throws IOException {
+        
+        byte[] headerBytes = header.getBytes(CHARSET);
+        byte[] body = body(fileSize);
+        for (int i = 0; i < files.size(); i++) {
+            File file = files.get(i);
+            FileUtils.forceMkdir( file.getParentFile() );
+            if ( hasHeader(i) ) {
+                byte[] content = new byte[headerBytes.length + body.length];
+                System.arraycopy(headerBytes, 0, content, 0, headerBytes.length);
+                System.arraycopy(body, 0, content, headerBytes.length, body.length);
+                FileUtils.writeByteArrayToFile(file, content);
+            } else {
+                FileUtils.writeByteArrayToFile(file, body);
+            }
+        }
+    }
+    
+    /**
+     * Deletes the whole tree.
+     */
+    void delete() 
+    throws IOException {
+        FileUtils.deleteDirectory(rootDir);
+    }
+    
+    File sourceDir() {
+        return new File(rootDir, "src");
+    }
+    
+    File headerFile() {
+        return headerFile;
+    }
+    
+    List<File> files() {
+        return files;
+    }
+    
+    /**
+     * @return The files that do not begin with the header
+     */
+    List<File> filesWithoutHeader() {
+        
+        List<File> missing = new ArrayList<File>();
+        for (int i = 0; i < files.size(); i++) {
+            if ( hasHeader(i) == false ) {
+                missing.add( files.get(i) );
+            }
+        }
+        
+        return missing;
+    }
+    
+    /**
+     * @return The total size in bytes of all the files
+     */
+    long totalBytes() {
+        
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        
+        return total;
+    }
+    
+    int headerBytes() {
+        return header.getBytes(CHARSET).length;
+    }
+    
+    // spreads hits evenly, so every directory has about the same mix
+    private boolean hasHeader(int fileIndex) {
+        return (fileIndex % 100) < Math.round(hitRatio * 100);
+    }
+    
+    private static String headerText(int lines, boolean placeholders) {
+        
+        StringBuilder text = new StringBuilder("/**").append(NEWLINE);
+        text.append(" *    Copyright ")
+            .append(placeholders ? "${yearRange}" : YEAR)
+            .append(' ')
+            .append(placeholders ? "${author}" : AUTHOR)
+            .append(NEWLINE);
+        for (int line = 2; line < lines - 1; line++) {
+            text.append(" *    Licence text, line ").append(line).append(NEWLINE);
+        }
+        text.append(" */").append(NEWLINE);
+        
+        return text.toString();
+    }
+    
+    private static byte[] body(int size) {
+        
+        StringBuilder body = new StringBuilder(size);
+        body.append("package bench;").append(NEWLINE);
+        while ( body.length() < size ) {
+            body.append("    // filler line to pad the file out").append(NEWLINE);
+        }
+        body.setLength(size);
+        
+        return body.toString().getBytes(CHARSET);
+    }
+}
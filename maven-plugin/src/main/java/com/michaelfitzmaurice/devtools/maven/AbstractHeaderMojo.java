@@ -0,0 +1,270 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Component;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.Scanner;
+import org.sonatype.plexus.build.incremental.BuildContext;
+
+import com.michaelfitzmaurice.devtools.CommentStyle;
+import com.michaelfitzmaurice.devtools.HeaderTool;
+import com.michaelfitzmaurice.devtools.HeaderTool.MatchMode;
+import com.michaelfitzmaurice.devtools.ScanListener;
+
+/**
+ * Finds the sources of a module that lack the header, inside the 
+ * Maven process rather than in a forked JVM, checking as little as 
+ * the build allows.
+ * <p>
+ * When the build is incremental, as it is in an IDE with Maven 
+ * integration, only the files that the build reports as changed are 
+ * checked, and a source directory with no changes costs nothing. On 
+ * the command line every file counts as changed, so each source 
+ * directory is walked, and a scan index in the build directory (see 
+ * {@link HeaderTool#setScanIndex(File)}) means only files whose size 
+ * or modification time differ from the previous build are read. 
+ * Messages left on a file by an earlier build are removed once the 
+ * file is found with the header. Headers are compiled once for the 
+ * whole reactor (see {@link SharedHeaders}).
+ * 
+ * @author Michael Fitzmaurice
+ */
+abstract class AbstractHeaderMojo extends AbstractMojo {
+    
+    /**
+     * The files containing the headers to check against. Files that 
+     * begin with any of them count as having a header, and the first 
+     * is the one inserted.
+     */
+    @Parameter(required = true)
+    private List<File> headerFiles;
+    
+    /**
+     * <code>FULL_MATCH</code>, <code>FIRST_LINE_ONLY</code> or 
+     * <code>TEMPLATE</code>
+     */
+    @Parameter(defaultValue = "FULL_MATCH")
+    private MatchMode matchMode;
+    
+    /**
+     * The extensions of the files to check, e.g. <code>java</code>; 
+     * every file is checked if none are given
+     */
+    @Parameter
+    private String[] fileExtensions;
+    
+    /**
+     * The directories to check; the module's main and test source 
+     * roots by default
+     */
+    @Parameter
+    private List<File> sourceDirectories;
+    
+    /**
+     * Exclusion patterns in <code>.gitignore</code> syntax, relative 
+     * to each source directory
+     */
+    @Parameter
+    private List<String> excludes;
+    
+    /**
+     * Whether the header files hold plain text, to be wrapped in the 
+     * comment style for each file's extension
+     */
+    @Parameter(defaultValue = "false")
+    private boolean commentStyles;
+    
+    /**
+     * Comment styles for extensions, added to or overriding the 
+     * defaults, e.g. <code>gradle=block,vm=hash</code>
+     */
+    @Parameter
+    private String commentStyleMap;
+    
+    /**
+     * The text inserted in place of <code>${author}</code> in 
+     * <code>TEMPLATE</code> match mode
+     */
+    @Parameter(defaultValue = "${user.name}")
+    private String templateAuthor;
+    
+    /**
+     * Where to keep the scan index shared by the source directories, so 
+     * that unchanged files are not read again on the next build
+     */
+    @Parameter(defaultValue = "${project.build.directory}/header-tool")
+    private File scanIndexDirectory;
+    
+    @Parameter(property = "header.skip", defaultValue = "false")
+    private boolean skip;
+    
+    @Parameter(defaultValue = "${project}", readonly = true, required = true)
+    private MavenProject project;
+    
+    @Component
+    private BuildContext buildContext;
+    
+    @Override
+    public void execute()
+    throws MojoExecutionException, MojoFailureException {
+        
+        if (skip) {
+            getLog().info("Skipping header check");
+            return;
+        }
+        HeaderTool headerTool;
+        try {
+            headerTool = 
+                SharedHeaders.forHeaders(headerFiles, 
+                                        matchMode, 
+                                        commentStyleMap() );
+        } catch (IOException e) {
+            throw new MojoExecutionException( 
+                        "Unable to read header files " + headerFiles, e);
+        }
+        if (excludes != null) {
+            headerTool.setExclusions(excludes);
+        }
+        if (templateAuthor != null) {
+            headerTool.setTemplateAuthor(templateAuthor);
+        }
+        
+        List<File> filesWithNoHeader = new ArrayList<File>();
+        for ( File sourceDirectory : sourceDirectories() ) {
+            try {
+                filesWithNoHeader.addAll( 
+                    filesWithoutHeader(headerTool, sourceDirectory) );
+            } catch (IOException e) {
+                throw new MojoExecutionException( 
+                            "Unable to check headers in " + sourceDirectory, 
+                            e);
+            }
+        }
+        
+        process(headerTool, filesWithNoHeader);
+    }
+    
+    /**
+     * Acts on the files found without the header
+     * 
+     * @param headerTool Configured for this module
+     * @param filesWithNoHeader The files found without the header in 
+     *          every source directory, sorted by path within each
+     */
+    protected abstract void process(HeaderTool headerTool, 
+                                    List<File> filesWithNoHeader)
+    throws MojoExecutionException, MojoFailureException;
+    
+    protected BuildContext getBuildContext() {
+        return buildContext;
+    }
+    
+    private List<File> filesWithoutHeader(HeaderTool headerTool, 
+                                            File sourceDirectory)
+    throws IOException {
+        
+        if ( sourceDirectory.isDirectory() == false ) {
+            return Collections.emptyList();
+        }
+        if ( buildContext.isIncremental() ) {
+            if ( buildContext.hasDelta(sourceDirectory) == false ) {
+                return Collections.emptyList();
+            }
+            Scanner changed = buildContext.newScanner(sourceDirectory);
+            changed.scan();
+            List<File> changedFiles = new ArrayList<File>();
+            for ( String path : changed.getIncludedFiles() ) {
+                File file = new File(sourceDirectory, path);
+                // any still lacking the header are reported afresh
+                buildContext.removeMessages(file);
+                changedFiles.add(file);
+            }
+            
+            return headerTool.filterFilesWithoutHeader(sourceDirectory, 
+                                                        fileExtensions, 
+                                                        changedFiles);
+        }
+        // each scan only drops entries under the directory it walked,
+        // so the source directories can share one index
+        headerTool.setScanIndex( new File(scanIndexDirectory, "scan-index") );
+        scanIndexDirectory.mkdirs();
+        final List<File> filesWithNoHeader = new ArrayList<File>();
+        headerTool.scanForFilesWithoutHeader(sourceDirectory, 
+                                            fileExtensions, 
+                                            new ScanListener() {
+            @Override
+            public void headerFound(File file, File headerFile) {
+                buildContext.removeMessages(file);
+            }
+            
+            @Override
+            public void headerMissing(File file) {
+                filesWithNoHeader.add(file);
+            }
+            
+            @Override
+            public void fileSkipped(File file, SkipReason reason) {
+                buildContext.removeMessages(file);
+            }
+        });
+        Collections.sort(filesWithNoHeader);
+        
+        return filesWithNoHeader;
+    }
+    
+    private List<File> sourceDirectories() {
+        
+        if (sourceDirectories != null) {
+            return sourceDirectories;
+        }
+        List<File> roots = new ArrayList<File>();
+        for ( String root : project.getCompileSourceRoots() ) {
+            roots.add( new File(root) );
+        }
+        for ( String root : project.getTestCompileSourceRoots() ) {
+            roots.add( new File(root) );
+        }
+        
+        return roots;
+    }
+    
+    private Map<String, CommentStyle> commentStyleMap() {
+        
+        if (commentStyles == false) {
+            return Collections.emptyMap();
+        }
+        Map<String, CommentStyle> styles = 
+            new HashMap<String, CommentStyle>( CommentStyle.defaults() );
+        if (commentStyleMap != null) {
+            styles.putAll( CommentStyle.parse(commentStyleMap) );
+        }
+        
+        return styles;
+    }
+}
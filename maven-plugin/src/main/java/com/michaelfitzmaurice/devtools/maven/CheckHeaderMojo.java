@@ -0,0 +1,78 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools.maven;
+
+import java.io.File;
+import java.util.List;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.sonatype.plexus.build.incremental.BuildContext;
+
+import com.michaelfitzmaurice.devtools.HeaderTool;
+
+/**
+ * Fails the build if any source file lacks the header, listing 
+ * each one. Files that the build reports as changed are marked in 
+ * the IDE as well.
+ * 
+ * @author Michael Fitzmaurice
+ */
+@Mojo(name = "check", 
+        defaultPhase = LifecyclePhase.PROCESS_SOURCES, 
+        threadSafe = true)
+public class CheckHeaderMojo extends AbstractHeaderMojo {
+    
+    /**
+     * Whether to fail the build, rather than only warn, when files 
+     * lack the header
+     */
+    @Parameter(property = "header.failOnMissing", defaultValue = "true")
+    private boolean failOnMissing;
+    
+    @Override
+    protected void process(HeaderTool headerTool, 
+                            List<File> filesWithNoHeader)
+    throws MojoFailureException {
+        
+        if ( filesWithNoHeader.isEmpty() ) {
+            return;
+        }
+        for (File file : filesWithNoHeader) {
+            String message = "File does not begin with the header";
+            if (failOnMissing) {
+                getLog().error(message + ": " + file);
+            } else {
+                getLog().warn(message + ": " + file);
+            }
+            getBuildContext().addMessage(file, 
+                                        1, 
+                                        1, 
+                                        message, 
+                                        failOnMissing
+                                            ? BuildContext.SEVERITY_ERROR
+                                            : BuildContext.SEVERITY_WARNING, 
+                                        null);
+        }
+        if (failOnMissing) {
+            throw new MojoFailureException( filesWithNoHeader.size()
+                                            + " files lack the header; run "
+                                            + "header:insert to add it" );
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import com.michaelfitzmaurice.devtools.HeaderTool;
+
+/**
+ * Inserts the header at the beginning of each source file that 
+ * lacks it, as the Header Tool's insert mode does, and tells the 
+ * build which files were amended so that an IDE picks up the change.
+ * 
+ * @author Michael Fitzmaurice
+ */
+@Mojo(name = "insert", 
+        defaultPhase = LifecyclePhase.PROCESS_SOURCES, 
+        threadSafe = true)
+public class InsertHeaderMojo extends AbstractHeaderMojo {
+    
+    /**
+     * The number of files to write at once
+     */
+    @Parameter(property = "header.insertThreads", defaultValue = "1")
+    private int insertThreads;
+    
+    @Override
+    protected void process(HeaderTool headerTool, 
+                            List<File> filesWithNoHeader)
+    throws MojoExecutionException {
+        
+        if ( filesWithNoHeader.isEmpty() ) {
+            return;
+        }
+        Map<File, IOException> failures;
+        try {
+            failures = headerTool.insertHeader(filesWithNoHeader, insertThreads);
+        } catch (IOException e) {
+            throw new MojoExecutionException( 
+                        "Interrupted while inserting headers", e);
+        }
+        for (File file : filesWithNoHeader) {
+            if ( failures.containsKey(file) == false ) {
+                getBuildContext().refresh(file);
+                getBuildContext().removeMessages(file);
+            }
+        }
+        getLog().info("Added header to "
+                        + (filesWithNoHeader.size() - failures.size())
+                        + " files");
+        if (failures.isEmpty() == false) {
+            Map.Entry<File, IOException> first = 
+                failures.entrySet().iterator().next();
+            throw new MojoExecutionException("Failed to add header to "
+                                            + failures.size()
+                                            + " files; first was "
+                                            + first.getKey(), 
+                                            first.getValue() );
+        }
+    }
+}
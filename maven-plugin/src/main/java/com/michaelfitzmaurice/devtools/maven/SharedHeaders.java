@@ -0,0 +1,136 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.michaelfitzmaurice.devtools.CommentStyle;
+import com.michaelfitzmaurice.devtools.HeaderTool;
+import com.michaelfitzmaurice.devtools.HeaderTool.MatchMode;
+import com.michaelfitzmaurice.devtools.HeaderTool.ScanMode;
+
+/**
+ * Keeps one <code>HeaderTool</code> for each set of headers and 
+ * matching settings seen during a build, so that the headers are 
+ * read and compiled into a matcher once, rather than once for each 
+ * module. Maven loads the classes of a plugin once for the whole 
+ * reactor, so every module configured with the same headers gets a 
+ * copy of the same instance (see {@link HeaderTool#copy()}), whether 
+ * modules are built one after another or in parallel.
+ * <p>
+ * The size and modification time of each header file are recorded 
+ * with its instance, so a header edited between builds of a long 
+ * lived Maven process is compiled afresh, replacing the instance 
+ * compiled from the old version.
+ * 
+ * @author Michael Fitzmaurice
+ */
+final class SharedHeaders {
+    
+    private static final ConcurrentMap<String, Compiled> TOOLS = 
+        new ConcurrentHashMap<String, Compiled>();
+    
+    private SharedHeaders() {
+        // static methods only
+    }
+    
+    /**
+     * @param headerFiles The files containing the headers to check 
+     *        against, the header to insert first
+     * @param matchMode How to match the headers
+     * @param commentStyles The comment style for each file extension, 
+     *          or an empty map to match and insert the headers exactly 
+     *          as written
+     * @return A new instance, sharing compiled headers with every other 
+     *          instance returned for the same arguments, whose settings 
+     *          can be changed freely
+     * @throws IOException If any of the header files cannot be read
+     */
+    static HeaderTool forHeaders(List<File> headerFiles, 
+                                    MatchMode matchMode, 
+                                    Map<String, CommentStyle> commentStyles)
+    throws IOException {
+        
+        String key = key(headerFiles, matchMode, commentStyles);
+        String version = version(headerFiles);
+        Compiled compiled = TOOLS.get(key);
+        if ( compiled == null || compiled.version.equals(version) == false ) {
+            HeaderTool headerTool = 
+                new HeaderTool(headerFiles, matchMode, ScanMode.SERIAL, 1);
+            if ( commentStyles.isEmpty() == false ) {
+                headerTool.setCommentStyles(commentStyles);
+            }
+            compiled = new Compiled(version, headerTool);
+            // replaces any instance compiled from an older version, 
+            // so edits to the headers do not accumulate instances
+            TOOLS.put(key, compiled);
+        }
+        
+        return compiled.headerTool.copy();
+    }
+    
+    /**
+     * @return The number of instances held, one for each set of 
+     *          headers and settings
+     */
+    static int size() {
+        return TOOLS.size();
+    }
+    
+    private static String key(List<File> headerFiles, 
+                                MatchMode matchMode, 
+                                Map<String, CommentStyle> commentStyles) {
+        
+        StringBuilder key = new StringBuilder( matchMode.name() );
+        for (File headerFile : headerFiles) {
+            key.append('\0').append( headerFile.getAbsolutePath() );
+        }
+        key.append('\0')
+            .append( new TreeMap<String, CommentStyle>(commentStyles) );
+        
+        return key.toString();
+    }
+    
+    private static String version(List<File> headerFiles) {
+        
+        StringBuilder version = new StringBuilder();
+        for (File headerFile : headerFiles) {
+            version.append( headerFile.length() )
+                .append('\0')
+                .append( headerFile.lastModified() )
+                .append('\0');
+        }
+        
+        return version.toString();
+    }
+    
+    private static final class Compiled {
+        
+        private final String version;
+        private final HeaderTool headerTool;
+        
+        Compiled(String version, HeaderTool headerTool) {
+            this.version = version;
+            this.headerTool = headerTool;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools.maven;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.maven.plugin.MojoFailureException;
+import org.codehaus.plexus.util.DirectoryScanner;
+import org.codehaus.plexus.util.Scanner;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonatype.plexus.build.incremental.DefaultBuildContext;
+
+import com.michaelfitzmaurice.devtools.CommentStyle;
+import com.michaelfitzmaurice.devtools.HeaderTool.MatchMode;
+
+/**
+ * Runs the goals in process against a small source tree, with a 
+ * build context that records what the goals tell the IDE.
+ * 
+ * @author Michael Fitzmaurice
+ */
+public class HeaderMojoTest {
+    
+    private static final String HEADER = "// Copyright Jane Doe\n";
+    
+    private File baseDir;
+    private File headerFile;
+    private File sourceDir;
+    private File withHeader;
+    private File withoutHeader;
+    
+    @Before
+    public void setUpSources() throws IOException {
+        
+        baseDir = new File("target/header-mojo-test");
+        FileUtils.deleteDirectory(baseDir);
+        headerFile = new File(baseDir, "header.txt");
+        FileUtils.writeStringToFile(headerFile, HEADER, "UTF-8");
+        sourceDir = new File(baseDir, "src");
+        withHeader = new File(sourceDir, "A.java");
+        FileUtils.writeStringToFile(withHeader, HEADER + "class A {}", "UTF-8");
+        withoutHeader = new File(sourceDir, "B.java");
+        FileUtils.writeStringToFile(withoutHeader, "class B {}", "UTF-8");
+    }
+    
+    @Test
+    public void pluginDescriptorDeclaresBothGoals() throws IOException {
+        
+        InputStream in = 
+            getClass().getClassLoader()
+                .getResourceAsStream("META-INF/maven/plugin.xml");
+        String descriptor;
+        try {
+            descriptor = IOUtils.toString(in, "UTF-8");
+        } finally {
+            in.close();
+        }
+        
+        assertTrue( descriptor.contains("<goalPrefix>header</goalPrefix>") );
+        assertTrue( descriptor.contains("<goal>check</goal>") );
+        assertTrue( descriptor.contains("<goal>insert</goal>") );
+    }
+    
+    @Test
+    public void checkReportsMissingHeadersAndInsertFixesThem() 
+    throws Exception {
+        
+        RecordingBuildContext buildContext = new RecordingBuildContext(false);
+        try {
+            configure(new CheckHeaderMojo(), buildContext).execute();
+            assertTrue("Expected a MojoFailureException", false);
+        } catch (MojoFailureException e) {
+            // expected
+        }
+        assertEquals( Arrays.asList(withoutHeader), buildContext.messages );
+        assertEquals( Arrays.asList(withHeader), buildContext.removed );
+        assertTrue( new File(baseDir, "index/scan-index").isFile() );
+        
+        buildContext = new RecordingBuildContext(false);
+        configure(new InsertHeaderMojo(), buildContext).execute();
+        assertEquals( Arrays.asList(withoutHeader), buildContext.refreshed );
+        assertTrue( FileUtils.readFileToString(withoutHeader, "UTF-8")
+                        .startsWith(HEADER) );
+        
+        buildContext = new RecordingBuildContext(false);
+        configure(new CheckHeaderMojo(), buildContext).execute();
+        assertTrue( buildContext.messages.isEmpty() );
+        // found in directory order, which varies by file system
+        assertEquals( new HashSet<File>( Arrays.asList(withHeader, 
+                                                        withoutHeader) ), 
+                        new HashSet<File>(buildContext.removed) );
+    }
+    
+    @Test
+    public void incrementalCheckOnlyLooksAtChangedFiles() 
+    throws Exception {
+        
+        FileUtils.writeStringToFile(withHeader, "class A {}", "UTF-8");
+        RecordingBuildContext buildContext = new RecordingBuildContext(true);
+        buildContext.changed = "B.java";
+        try {
+            configure(new CheckHeaderMojo(), buildContext).execute();
+            assertTrue("Expected a MojoFailureException", false);
+        } catch (MojoFailureException e) {
+            // expected
+        }
+        
+        // A.java lacks the header too, but has not changed
+        assertEquals( Arrays.asList(withoutHeader), buildContext.messages );
+        assertEquals( Arrays.asList(withoutHeader), buildContext.removed );
+    }
+    
+    @Test
+    public void keepsOneCompiledHeaderPerHeaderFileSet() 
+    throws Exception {
+        
+        List<File> headers = Arrays.asList(headerFile);
+        Map<String, CommentStyle> noStyles = Collections.emptyMap();
+        SharedHeaders.forHeaders(headers, MatchMode.FULL_MATCH, noStyles);
+        int held = SharedHeaders.size();
+        for (int edit = 1; edit <= 3; edit++) {
+            FileUtils.writeStringToFile(headerFile, HEADER + edit, "UTF-8");
+            headerFile.setLastModified( 
+                headerFile.lastModified() + edit * 1000L );
+            SharedHeaders.forHeaders(headers, MatchMode.FULL_MATCH, noStyles);
+        }
+        
+        assertEquals( held, SharedHeaders.size() );
+    }
+    
+    private AbstractHeaderMojo configure(AbstractHeaderMojo mojo, 
+                                        RecordingBuildContext buildContext)
+    throws Exception {
+        
+        set( mojo, "headerFiles", Arrays.asList(headerFile) );
+        set( mojo, "matchMode", MatchMode.FULL_MATCH );
+        set( mojo, "sourceDirectories", Arrays.asList(sourceDir) );
+        set( mojo, "scanIndexDirectory", new File(baseDir, "index") );
+        set( mojo, "buildContext", buildContext );
+        if (mojo instanceof CheckHeaderMojo) {
+            set(mojo, "failOnMissing", true);
+        } else {
+            set(mojo, "insertThreads", 1);
+        }
+        
+        return mojo;
+    }
+    
+    private static void set(Object mojo, String name, Object value) 
+    throws Exception {
+        
+        Class<?> type = mojo.getClass();
+        while (type != null) {
+            try {
+                Field field = type.getDeclaredField(name);
+                field.setAccessible(true);
+                field.set(mojo, value);
+                return;
+            } catch (NoSuchFieldException e) {
+                type = type.getSuperclass();
+            }
+        }
+        throw new NoSuchFieldException(name);
+    }
+    
+    private static final class RecordingBuildContext 
+    extends DefaultBuildContext {
+        
+        private final boolean incremental;
+        private final List<File> messages = new ArrayList<File>();
+        private final List<File> removed = new ArrayList<File>();
+        private final List<File> refreshed = new ArrayList<File>();
+        private String changed;
+        
+        RecordingBuildContext(boolean incremental) {
+            this.incremental = incremental;
+        }
+        
+        @Override
+        public boolean isIncremental() {
+            return incremental;
+        }
+        
+        @Override
+        public Scanner newScanner(File basedir) {
+            
+            DirectoryScanner scanner = new DirectoryScanner();
+            scanner.setBasedir(basedir);
+            scanner.setIncludes( new String[] {changed} );
+            
+            return scanner;
+        }
+        
+        @Override
+        public void addMessage(File file, 
+                                int line, 
+                                int column, 
+                                String message, 
+                                int severity, 
+                                Throwable cause) {
+            messages.add(file);
+        }
+        
+        @Override
+        public void removeMessages(File file) {
+            removed.add(file);
+        }
+        
+        @Override
+        public void refresh(File file) {
+            refreshed.add(file);
+        }
+    }
+}
@@ -0,0 +1,484 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Checks each entry in a zip, jar or tar archive for headers without 
+ * extracting anything to disk, reporting each entry as a file with 
+ * the path <code>archive!/entry</code>.
+ * <p>
+ * Zip and jar archives are opened through their central directory, 
+ * so each entry is found without reading the ones before it, and only 
+ * as many bytes of each entry are inflated as could take part in a 
+ * match. Tar archives have no index, so they are read in one pass: 
+ * the prefix of each entry is matched and the rest skipped, which for 
+ * an uncompressed tar is a seek, and for a gzipped one is as cheap as 
+ * decompressing it. Entries are filtered by extension and excluded 
+ * using their path within the archive, just as files are using their 
+ * path within the tree. Archives inside archives are not opened; as 
+ * entries, they are skipped as binary.
+ * 
+ * @author Michael Fitzmaurice
+ */
+final class ArchiveScanner {
+    
+    /**
+     * Separates the path of an archive from the path of an entry 
+     * within it in the files reported
+     */
+    static final String ENTRY_SEPARATOR = "!/";
+    
+    private static final String[] ZIP_SUFFIXES = 
+        {".zip", ".jar", ".war", ".ear"};
+    private static final String[] TAR_SUFFIXES = {".tar"};
+    private static final String[] GZIPPED_TAR_SUFFIXES = {".tar.gz", ".tgz"};
+    private static final int TAR_BLOCK_SIZE = 512;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    private final FileTypeCache<HeaderMatcher> matchers;
+    private final List<File> headerFiles;
+    private final FileExtensionFilter filter;
+    private final ExclusionRules exclusions;
+    private final long maxEntrySize;
+    private final ScanMetrics metrics;
+    
+    /**
+     * @param matchers Decide which header each type of entry begins with
+     * @param headerFiles The files holding the headers, in the order 
+     *          the matchers number them
+     * @param filter Decides which entries are checked, by name
+     * @param exclusions Decides which entries are skipped, by their 
+     *          path within the archive
+     * @param maxEntrySize The largest entry to check, or zero for no 
+     *          limit; larger entries are skipped as oversized
+     * @param metrics Where to count the entries checked
+     */
+    ArchiveScanner(FileTypeCache<HeaderMatcher> matchers, 
+                    List<File> headerFiles, 
+                    FileExtensionFilter filter, 
+                    ExclusionRules exclusions, 
+                    long maxEntrySize, 
+                    ScanMetrics metrics) {
+        this.matchers = matchers;
+        this.headerFiles = headerFiles;
+        this.filter = filter;
+        this.exclusions = exclusions;
+        this.maxEntrySize = maxEntrySize;
+        this.metrics = metrics;
+    }
+    
+    /**
+     * @param fileName The name of a file
+     * @return Whether the name is that of an archive this class can 
+     *          read, judged by its extension, ignoring case
+     */
+    static boolean isArchive(String fileName) {
+        
+        String name = fileName.toLowerCase(Locale.ENGLISH);
+        
+        return endsWithAny(name, ZIP_SUFFIXES)
+                || endsWithAny(name, TAR_SUFFIXES)
+                || endsWithAny(name, GZIPPED_TAR_SUFFIXES);
+    }
+    
+    /**
+     * @param archive The archive holding the entry
+     * @param entryName The path of the entry within the archive
+     * @return The file an entry is reported as
+     */
+    static File entryFile(File archive, String entryName) {
+        return new File(archive.getPath() + ENTRY_SEPARATOR + entryName);
+    }
+    
+    /**
+     * @param archive The archive to check the entries of
+     * @param listener Told about each entry checked, on the calling 
+     *          thread
+     * @throws IOException If the archive cannot be read or is 
+     *          corrupt, or the listener fails
+     */
+    void scan(File archive, ScanListener listener)
+    throws IOException {
+        
+        String name = archive.getName().toLowerCase(Locale.ENGLISH);
+        if ( endsWithAny(name, ZIP_SUFFIXES) ) {
+            scanZip(archive, listener);
+        } else {
+            InputStream in = 
+                new BufferedInputStream( new FileInputStream(archive), 
+                                        READ_BUFFER_SIZE );
+            try {
+                if ( endsWithAny(name, GZIPPED_TAR_SUFFIXES) ) {
+                    in = new GZIPInputStream(in, READ_BUFFER_SIZE);
+                }
+                scanTar(archive, in, listener);
+            } finally {
+                in.close();
+            }
+        }
+    }
+    
+    private void scanZip(File archive, ScanListener listener)
+    throws IOException {
+        
+        ZipFile zip = new ZipFile(archive);
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while ( entries.hasMoreElements() ) {
+                ZipEntry entry = entries.nextElement();
+                if ( entry.isDirectory() || accept( entry.getName() ) == false ) {
+                    continue;
+                }
+                File entryFile = entryFile( archive, entry.getName() );
+                long start = metrics.checkStarted();
+                int header = HeaderCheck.NO_MATCH;
+                try {
+                    if ( oversized( entry.getSize() ) ) {
+                        header = HeaderCheck.OVERSIZED;
+                    } else {
+                        InputStream in = zip.getInputStream(entry);
+                        try {
+                            header = matchers.forFile(entryFile).match(in);
+                        } finally {
+                            in.close();
+                        }
+                    }
+                } finally {
+                    metrics.checked(header, start);
+                }
+                SerialScanner.report(header, entryFile, headerFiles, listener);
+            }
+        } finally {
+            zip.close();
+        }
+    }
+    
+    /**
+     * Reads a tar stream in the POSIX ustar format, along with the 
+     * GNU and pax records that carry names too long for it
+     */
+    private void scanTar(File archive, InputStream in, ScanListener listener)
+    throws IOException {
+        
+        byte[] block = new byte[TAR_BLOCK_SIZE];
+        String longName = null;
+        while (true) {
+            if ( fill(in, block) < TAR_BLOCK_SIZE || isZero(block) ) {
+                // a short read means a truncated archive, which tar
+                // itself reads as far as it goes
+                return;
+            }
+            long size = number(block, 124, 12);
+            byte type = block[156];
+            EntryStream entry = new EntryStream(in, size);
+            if (type == 'L') {
+                longName = trimNul( readAll(entry, size) );
+            } else if (type == 'x') {
+                String path = paxPath( readAll(entry, size) );
+                if (path != null) {
+                    longName = path;
+                }
+            } else if (type == '0' || type == 0 || type == '7') {
+                String entryName = longName;
+                if (entryName == null) {
+                    entryName = text(block, 0, 100);
+                    if ( "ustar".equals( text(block, 257, 5) )
+                            && block[345] != 0 ) {
+                        entryName = text(block, 345, 155) + "/" + entryName;
+                    }
+                }
+                longName = null;
+                if ( accept(entryName) ) {
+                    File entryFile = entryFile(archive, entryName);
+                    long start = metrics.checkStarted();
+                    int header = HeaderCheck.NO_MATCH;
+                    try {
+                        if ( oversized(size) ) {
+                            header = HeaderCheck.OVERSIZED;
+                        } else {
+                            header = matchers.forFile(entryFile).match(entry);
+                        }
+                    } finally {
+                        metrics.checked(header, start);
+                    }
+                    SerialScanner.report(header, entryFile, headerFiles, listener);
+                }
+            } else if (type != 'g') {
+                // directories, links and the like carry no content
+                // of their own, and apply to no entry that follows
+                longName = null;
+            }
+            entry.skipRest();
+            skipFully( in, (TAR_BLOCK_SIZE - size % TAR_BLOCK_SIZE)
+                            % TAR_BLOCK_SIZE );
+        }
+    }
+    
+    private boolean accept(String entryName) {
+        
+        String name = entryName.substring( entryName.lastIndexOf('/') + 1 );
+        
+        return name.length() > 0
+                && filter.accept(name)
+                && ( exclusions.isEmpty()
+                        || exclusions.excludesFile(entryName) == false );
+    }
+    
+    private boolean oversized(long size) {
+        return maxEntrySize > 0 && size > maxEntrySize;
+    }
+    
+    private static boolean endsWithAny(String name, String[] suffixes) {
+        
+        for (String suffix : suffixes) {
+            if ( name.endsWith(suffix) ) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    private static boolean isZero(byte[] block) {
+        
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Reads a field of a tar header as text, up to the first NUL
+     */
+    private static String text(byte[] block, int offset, int length) {
+        
+        int end = offset;
+        while (end < offset + length && block[end] != 0) {
+            end++;
+        }
+        
+        return new String(block, offset, end - offset, UTF8);
+    }
+    
+    /**
+     * Reads a numeric field of a tar header, which is octal text, or 
+     * for sizes of 8GB and over a big-endian binary number flagged by 
+     * the top bit of its first byte
+     */
+    private static long number(byte[] block, int offset, int length)
+    throws IOException {
+        
+        long value = 0;
+        if ( (block[offset] & 0x80) != 0 ) {
+            value = block[offset] & 0x7f;
+            for (int i = offset + 1; i < offset + length; i++) {
+                value = (value << 8) | (block[i] & 0xff);
+            }
+            return value;
+        }
+        for (int i = offset; i < offset + length; i++) {
+            byte b = block[i];
+            if (b == 0 || b == ' ') {
+                if (value > 0) {
+                    break;
+                }
+                continue;
+            }
+            if (b < '0' || b > '7') {
+                throw new IOException("Not a tar archive, or corrupt");
+            }
+            value = (value << 3) + (b - '0');
+        }
+        
+        return value;
+    }
+    
+    /**
+     * Finds the path in a pax extended header, made up of records 
+     * such as <code>30 path=some/long/file/name\n</code>
+     */
+    private static String paxPath(byte[] records) {
+        
+        int position = 0;
+        while (position < records.length) {
+            int space = position;
+            while (space < records.length && records[space] != ' ') {
+                space++;
+            }
+            int length;
+            try {
+                length = Integer.parseInt( 
+                            new String(records, position, space - position, UTF8) );
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (length <= 0 || position + length > records.length) {
+                return null;
+            }
+            String record = 
+                new String(records, space + 1, position + length - space - 2, UTF8);
+            if ( record.startsWith("path=") ) {
+                return record.substring( "path=".length() );
+            }
+            position += length;
+        }
+        
+        return null;
+    }
+    
+    private static String trimNul(byte[] bytes) {
+        return text(bytes, 0, bytes.length);
+    }
+    
+    private static byte[] readAll(InputStream in, long size)
+    throws IOException {
+        
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Tar header record too large: " + size);
+        }
+        byte[] bytes = new byte[(int) size];
+        if (fill(in, bytes) < bytes.length) {
+            throw new EOFException("Tar archive truncated");
+        }
+        
+        return bytes;
+    }
+    
+    private static int fill(InputStream in, byte[] buffer)
+    throws IOException {
+        
+        int total = 0;
+        while (total < buffer.length) {
+            int read = in.read(buffer, total, buffer.length - total);
+            if (read == -1) {
+                break;
+            }
+            total += read;
+        }
+        
+        return total;
+    }
+    
+    private static void skipFully(InputStream in, long count)
+    throws IOException {
+        
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new EOFException("Tar archive truncated");
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+    
+    /**
+     * The content of one tar entry, ending where the entry does, and 
+     * leaving the archive stream open
+     */
+    private static final class EntryStream extends FilterInputStream {
+        
+        private long remaining;
+        
+        EntryStream(InputStream in, long size) {
+            super(in);
+            this.remaining = size;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            
+            if (remaining == 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Tar archive truncated");
+            }
+            remaining--;
+            
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] buffer, int offset, int length)
+        throws IOException {
+            
+            if (remaining == 0) {
+                return -1;
+            }
+            int read = 
+                in.read( buffer, offset, (int) Math.min(length, remaining) );
+            if (read == -1) {
+                throw new EOFException("Tar archive truncated");
+            }
+            remaining -= read;
+            
+            return read;
+        }
+        
+        @Override
+        public long skip(long count) throws IOException {
+            
+            long skipped = in.skip( Math.min(count, remaining) );
+            remaining -= skipped;
+            
+            return skipped;
+        }
+        
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min( in.available(), remaining );
+        }
+        
+        @Override
+        public void close() {
+            // the archive stream stays open for the next entry
+        }
+        
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+        
+        void skipRest() throws IOException {
+            
+            skipFully(in, remaining);
+            remaining = 0;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks each file in a directory tree for headers with many reads 
+ * in flight at once, for file systems such as NFS where each open 
+ * and read waits on a network round trip. The tree is walked on the 
+ * calling thread, just as a serial scan walks it, and each file 
+ * accepted is handed to a wide pool of I/O threads, up to a fixed 
+ * number of checks at a time; the walk waits whenever that many are 
+ * outstanding. Time spent waiting on one file therefore overlaps 
+ * with the wait on hundreds of others, rather than with at most one 
+ * per processor, as in a parallel scan.
+ * <p>
+ * Java offers no non-blocking way to open a file, and on most 
+ * platforms <code>AsynchronousFileChannel</code> reads are serviced 
+ * by a pool of threads making blocking calls, so opening and reading 
+ * each file on an I/O thread overlaps the same waits with less 
+ * machinery, and overlaps the opens as well as the reads.
+ * 
+ * @author Michael Fitzmaurice
+ */
+final class AsyncScanner {
+    
+    private final HeaderCheck headerCheck;
+    private final List<File> headerFiles;
+    private final ExecutorService pool;
+    private final int concurrency;
+    private final ScanMetrics metrics;
+    
+    /**
+     * @param headerCheck Decides which header each file begins with
+     * @param headerFiles The files holding the headers, in the order 
+     *          the header check numbers them
+     * @param pool The I/O threads to check files on, of which there 
+     *          should be at least <code>concurrency</code>
+     * @param concurrency The most files to check at once
+     * @param metrics Where to count the files walked past and time 
+     *          the walk, not counting any wait for a free check
+     */
+    AsyncScanner(HeaderCheck headerCheck, 
+                    List<File> headerFiles, 
+                    ExecutorService pool,
+                    int concurrency,
+                    ScanMetrics metrics) {
+        this.headerCheck = headerCheck;
+        this.headerFiles = headerFiles;
+        this.pool = pool;
+        this.concurrency = concurrency;
+        this.metrics = metrics;
+    }
+    
+    /**
+     * @param rootDir The directory to begin the search from
+     * @param filter Decides which files are checked
+     * @param exclusions Decides which files are skipped, and which 
+     *          directories are not entered at all
+     * @param listener Told about each file as it is checked; called 
+     *          from several threads at once, in no particular order
+     * 
+     * @throws IOException If something goes wrong reading the content
+     *         of any of the files being scanned, or the listener fails
+     */
+    void scan(File rootDir, 
+                FileExtensionFilter filter, 
+                ExclusionRules exclusions,
+                final ScanListener listener) 
+    throws IOException {
+        
+        final Semaphore inFlight = new Semaphore(concurrency);
+        final AtomicReference<Exception> failure = 
+            new AtomicReference<Exception>();
+        try {
+            SerialScanner.walk(rootDir, 
+                                filter, 
+                                exclusions, 
+                                metrics,
+                                new SerialScanner.FileVisit() {
+                @Override
+                public void visit(final File file, 
+                                    final BasicFileAttributes attrs) 
+                throws IOException {
+                    
+                    rethrow( failure.get() );
+                    acquire(inFlight, 1);
+                    try {
+                        pool.execute( new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    int header = 
+                                        headerCheck.matchingHeader(file, 
+                                                                    attrs);
+                                    SerialScanner.report(header, 
+                                                        file, 
+                                                        headerFiles, 
+                                                        listener);
+                                } catch (IOException e) {
+                                    failure.compareAndSet(null, e);
+                                } catch (RuntimeException e) {
+                                    failure.compareAndSet(null, e);
+                                } finally {
+                                    inFlight.release();
+                                }
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        // the check will never run to give its permit 
+                        // back, and waiting for it would hang the scan
+                        inFlight.release();
+                        throw e;
+                    }
+                }
+            });
+        } finally {
+            // every permit back means every check has finished, so 
+            // none can report to the listener once the scan is over
+            acquire(inFlight, concurrency);
+        }
+        rethrow( failure.get() );
+    }
+    
+    private static void acquire(Semaphore semaphore, int permits) 
+    throws InterruptedIOException {
+        
+        try {
+            semaphore.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while scanning");
+        }
+    }
+    
+    private static void rethrow(Exception failure) 
+    throws IOException {
+        
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure != null) {
+            throw (RuntimeException) failure;
+        }
+    }
+}
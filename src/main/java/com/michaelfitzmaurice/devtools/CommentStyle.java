@@ -0,0 +1,178 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The ways a header can be wrapped in a comment so that it sits 
+ * harmlessly at the top of a source file. A header written once as 
+ * plain text, with no comment markers, can then be inserted into and 
+ * matched against files of several languages in a single run.
+ * 
+ * @author Michael Fitzmaurice
+ */
+public enum CommentStyle {
+    
+    /** <code>/*</code> ... <code>*&#47;</code>, as in Java, C and CSS */
+    BLOCK("/*", " * ", " */"), 
+    /** <code>//</code> on every line, as in Go and Rust */
+    LINE(null, "// ", null), 
+    /** <code>#</code> on every line, as in shell, Python and YAML */
+    HASH(null, "# ", null), 
+    /** <code>&lt;!--</code> ... <code>--&gt;</code>, as in XML and HTML */
+    XML("<!--", "    ", "-->"), 
+    /** The header exactly as written, for files of unknown type */
+    NONE(null, "", null);
+    
+    private static final Map<String, CommentStyle> DEFAULTS;
+    static {
+        Map<String, CommentStyle> defaults = new HashMap<String, CommentStyle>();
+        for ( String extension : new String[] {
+                "java", "c", "h", "cc", "cpp", "hpp", "cs", "m", "js", "ts", 
+                "css", "scss", "less", "scala", "groovy", "gradle", "kt", 
+                "php", "sql" } ) {
+            defaults.put(extension, BLOCK);
+        }
+        for ( String extension : new String[] {
+                "go", "rs", "swift", "dart", "proto" } ) {
+            defaults.put(extension, LINE);
+        }
+        for ( String extension : new String[] {
+                "sh", "bash", "py", "rb", "pl", "pm", "r", "properties", 
+                "yml", "yaml", "toml", "conf", "cfg", "mk", "cmake", 
+                "tf" } ) {
+            defaults.put(extension, HASH);
+        }
+        for ( String extension : new String[] {
+                "xml", "xsd", "xsl", "xslt", "html", "htm", "xhtml", "svg", 
+                "wsdl", "jsp", "vm", "fxml" } ) {
+            defaults.put(extension, XML);
+        }
+        DEFAULTS = Collections.unmodifiableMap(defaults);
+    }
+    
+    private final String open;
+    private final String linePrefix;
+    private final String close;
+    
+    private CommentStyle(String open, String linePrefix, String close) {
+        this.open = open;
+        this.linePrefix = linePrefix;
+        this.close = close;
+    }
+    
+    /**
+     * @return The usual comment style for each of a set of common 
+     *          file extensions, keyed by extension without the dot
+     */
+    public static Map<String, CommentStyle> defaults() {
+        return DEFAULTS;
+    }
+    
+    /**
+     * Reads comma separated <code>extension=style</code> pairs, such 
+     * as <code>gradle=block,vm=hash</code>, with styles named in either 
+     * case.
+     * 
+     * @throws IllegalArgumentException If a pair is malformed or 
+     *          names an unknown style
+     */
+    public static Map<String, CommentStyle> parse(String pairs) {
+        
+        Map<String, CommentStyle> styles = new HashMap<String, CommentStyle>();
+        for ( String pair : pairs.split(",") ) {
+            if ( pair.trim().isEmpty() ) {
+                continue;
+            }
+            int equals = pair.indexOf('=');
+            if (equals < 1) {
+                throw new IllegalArgumentException( 
+                            "Expected extension=style, not '" + pair + "'");
+            }
+            styles.put( pair.substring(0, equals).trim(), 
+                        valueOf( pair.substring(equals + 1)
+                                    .trim()
+                                    .toUpperCase(Locale.ROOT) ) );
+        }
+        
+        return styles;
+    }
+    
+    /**
+     * Wraps plain header text in this style of comment. Each line 
+     * gets the line prefix, except that blank lines get it without 
+     * trailing spaces, and block styles get an opening and closing 
+     * line of their own.
+     * 
+     * @param text The header, one line per line separator, normally 
+     *          ending with a line separator
+     * @param lineSeparator The line separator used in the text, and 
+     *          to use in the result
+     * @return The commented header, ending with a line separator
+     */
+    String render(String text, String lineSeparator) {
+        
+        if (this == NONE) {
+            return text;
+        }
+        StringBuilder rendered = new StringBuilder();
+        if (open != null) {
+            rendered.append(open).append(lineSeparator);
+        }
+        int start = 0;
+        while ( start < text.length() ) {
+            int end = text.indexOf(lineSeparator, start);
+            if (end == -1) {
+                end = text.length();
+            }
+            String line = text.substring(start, end);
+            if ( line.trim().isEmpty() ) {
+                rendered.append( trimTrailing(linePrefix) );
+            } else {
+                rendered.append(linePrefix).append(line);
+            }
+            rendered.append(lineSeparator);
+            start = end + lineSeparator.length();
+        }
+        if (close != null) {
+            rendered.append(close).append(lineSeparator);
+        }
+        
+        return rendered.toString();
+    }
+    
+    /**
+     * @return How many lines of a rendered header come before the 
+     *          first line of the original text
+     */
+    int openingLines() {
+        return open == null ? 0 : 1;
+    }
+    
+    private static String trimTrailing(String prefix) {
+        
+        int end = prefix.length();
+        while ( end > 0 && prefix.charAt(end - 1) == ' ' ) {
+            end--;
+        }
+        
+        return prefix.substring(0, end);
+    }
+}
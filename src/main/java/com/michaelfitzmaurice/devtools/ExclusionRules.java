@@ -0,0 +1,266 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Decides whether a path under the root of a scan is excluded, 
+ * using the pattern syntax of a <code>.gitignore</code> file:
+ * 
+ * <ul>
+ *   <li>blank lines and lines starting with <code>#</code> are 
+ *       ignored</li>
+ *   <li>a pattern with no slash, other than a trailing one, matches 
+ *       a file or directory name at any depth; otherwise it matches 
+ *       the path relative to the root</li>
+ *   <li>a trailing slash matches directories only</li>
+ *   <li><code>*</code>, <code>?</code> and <code>[...]</code> match 
+ *       within a single path segment, and <code>**</code> matches 
+ *       across segments</li>
+ *   <li>a leading <code>!</code> re-includes anything a previous 
+ *       pattern excluded; the last matching pattern wins</li>
+ * </ul>
+ * 
+ * Each pattern is compiled once into the cheapest test that will 
+ * do: a string comparison for a plain name such as 
+ * <code>target/</code>, a suffix comparison for a pattern such as 
+ * <code>*.class</code>, and a regular expression otherwise. As 
+ * scans ask about each directory before entering it, an excluded 
+ * directory is never listed, so nothing beneath it can be 
+ * re-included.
+ * 
+ * @author Michael Fitzmaurice
+ */
+final class ExclusionRules {
+    
+    static final ExclusionRules NONE = 
+        new ExclusionRules( Collections.<Rule>emptyList() );
+    
+    private final List<Rule> rules;
+    
+    private ExclusionRules(List<Rule> rules) {
+        this.rules = rules;
+    }
+    
+    /**
+     * @param patterns Lines in <code>.gitignore</code> syntax
+     */
+    static ExclusionRules parse(List<String> patterns) {
+        
+        List<Rule> rules = new ArrayList<Rule>();
+        for (String line : patterns) {
+            Rule rule = Rule.parse(line);
+            if (rule != null) {
+                rules.add(rule);
+            }
+        }
+        
+        return new ExclusionRules(rules);
+    }
+    
+    boolean isEmpty() {
+        return rules.isEmpty();
+    }
+    
+    /**
+     * @param relativePath The path from the root of the scan, with 
+     *          <code>/</code> between segments
+     * @param name The last segment of the path
+     * @param directory Whether the path is a directory
+     * @return Whether the path itself is excluded, not counting any 
+     *          of its parent directories
+     */
+    boolean excludes(String relativePath, String name, boolean directory) {
+        
+        for (int i = rules.size() - 1; i >= 0; i--) {
+            Rule rule = rules.get(i);
+            if ( rule.matches(relativePath, name, directory) ) {
+                return rule.negated == false;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * @param relativePath The path of a file from the root of the 
+     *          scan, with <code>/</code> between segments
+     * @return Whether the file, or any directory it is in, is 
+     *          excluded; for files found some way other than by 
+     *          walking the tree
+     */
+    boolean excludesFile(String relativePath) {
+        
+        if ( isEmpty() ) {
+            return false;
+        }
+        int start = 0;
+        int slash = relativePath.indexOf('/');
+        while (slash >= 0) {
+            if ( excludes(relativePath.substring(0, slash), 
+                            relativePath.substring(start, slash), 
+                            true) ) {
+                return true;
+            }
+            start = slash + 1;
+            slash = relativePath.indexOf('/', start);
+        }
+        
+        return excludes(relativePath, relativePath.substring(start), false);
+    }
+    
+    private static final class Rule {
+        
+        private enum Kind { NAME, NAME_SUFFIX, NAME_PATTERN, PATH_PATTERN };
+        
+        private final Kind kind;
+        private final String text;
+        private final Pattern pattern;
+        private final boolean negated;
+        private final boolean directoryOnly;
+        
+        private Rule(Kind kind, 
+                        String text, 
+                        boolean negated, 
+                        boolean directoryOnly) {
+            
+            this.kind = kind;
+            this.text = text;
+            this.pattern = (kind == Kind.NAME_PATTERN 
+                            || kind == Kind.PATH_PATTERN) 
+                            ? Pattern.compile( toRegex(text) ) 
+                            : null;
+            this.negated = negated;
+            this.directoryOnly = directoryOnly;
+        }
+        
+        /**
+         * @return The rule, or null for a blank line or comment
+         */
+        static Rule parse(String line) {
+            
+            String text = line.trim();
+            if ( text.isEmpty() || text.startsWith("#") ) {
+                return null;
+            }
+            boolean negated = text.startsWith("!");
+            if (negated) {
+                text = text.substring(1);
+            } else if ( text.startsWith("\\#") || text.startsWith("\\!") ) {
+                text = text.substring(1);
+            }
+            boolean directoryOnly = text.endsWith("/");
+            if (directoryOnly) {
+                text = text.substring(0, text.length() - 1);
+            }
+            if ( text.isEmpty() ) {
+                return null;
+            }
+            
+            if ( text.indexOf('/') >= 0 ) {
+                if ( text.startsWith("/") ) {
+                    text = text.substring(1);
+                }
+                return new Rule(Kind.PATH_PATTERN, text, negated, directoryOnly);
+            }
+            if ( isLiteral(text) ) {
+                return new Rule(Kind.NAME, text, negated, directoryOnly);
+            }
+            if ( text.startsWith("*") && isLiteral( text.substring(1) ) ) {
+                return new Rule(Kind.NAME_SUFFIX, 
+                                text.substring(1), 
+                                negated, 
+                                directoryOnly);
+            }
+            
+            return new Rule(Kind.NAME_PATTERN, text, negated, directoryOnly);
+        }
+        
+        boolean matches(String relativePath, String name, boolean directory) {
+            
+            if (directoryOnly && directory == false) {
+                return false;
+            }
+            switch (kind) {
+                case NAME:
+                    return name.equals(text);
+                case NAME_SUFFIX:
+                    return name.endsWith(text);
+                case NAME_PATTERN:
+                    return pattern.matcher(name).matches();
+                case PATH_PATTERN:
+                default:
+                    return pattern.matcher(relativePath).matches();
+            }
+        }
+        
+        private static boolean isLiteral(String text) {
+            
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == '*' || c == '?' || c == '[' || c == '\\') {
+                    return false;
+                }
+            }
+            
+            return true;
+        }
+        
+        private static String toRegex(String glob) {
+            
+            StringBuilder regex = new StringBuilder();
+            int i = 0;
+            while ( i < glob.length() ) {
+                char c = glob.charAt(i);
+                if ( glob.startsWith("**/", i) ) {
+                    regex.append("(?:.*/)?");
+                    i += 3;
+                } else if ( glob.startsWith("**", i) ) {
+                    regex.append(".*");
+                    i += 2;
+                } else if (c == '*') {
+                    regex.append("[^/]*");
+                    i++;
+                } else if (c == '?') {
+                    regex.append("[^/]");
+                    i++;
+                } else if ( c == '[' && glob.indexOf(']', i + 2) > 0 ) {
+                    int close = glob.indexOf(']', i + 2);
+                    String members = glob.substring(i + 1, close);
+                    if ( members.startsWith("!") ) {
+                        members = "^" + members.substring(1);
+                    }
+                    regex.append('[')
+                        .append( members.replace("\\", "\\\\") )
+                        .append(']');
+                    i = close + 1;
+                } else if ( c == '\\' && i + 1 < glob.length() ) {
+                    regex.append( Pattern.quote( glob.substring(i + 1, i + 2) ) );
+                    i += 2;
+                } else {
+                    regex.append( Pattern.quote( String.valueOf(c) ) );
+                    i++;
+                }
+            }
+            
+            return regex.toString();
+        }
+    }
+}
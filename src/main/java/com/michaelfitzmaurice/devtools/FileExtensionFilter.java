@@ -0,0 +1,72 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools;
+
+/**
+ * Decides whether a file name carries one of a set of extensions, 
+ * using the same rules as the commons-io <code>SuffixFileFilter</code>
+ * that <code>FileUtils.listFiles</code> applies: a case sensitive 
+ * comparison against the end of the name, with the dot prepended 
+ * to each extension.
+ * 
+ * @author Michael Fitzmaurice
+ */
+final class FileExtensionFilter {
+    
+    private final String[] suffixes;
+    private final boolean acceptArchives;
+    
+    /**
+     * @param fileExtensions an array of extensions, e.g. {"java","xml"}. 
+     *          If this parameter is null, every file name is accepted.
+     */
+    FileExtensionFilter(String[] fileExtensions) {
+        this(fileExtensions, false);
+    }
+    
+    /**
+     * @param acceptArchives Whether to accept the names of archives 
+     *          that {@link ArchiveScanner} can read, whatever their 
+     *          extension, so that their entries can be checked
+     */
+    FileExtensionFilter(String[] fileExtensions, boolean acceptArchives) {
+        
+        this.acceptArchives = acceptArchives;
+        if (fileExtensions == null) {
+            this.suffixes = null;
+        } else {
+            this.suffixes = new String[fileExtensions.length];
+            for (int i = 0; i < fileExtensions.length; i++) {
+                suffixes[i] = "." + fileExtensions[i];
+            }
+        }
+    }
+    
+    boolean accept(String fileName) {
+        
+        if ( suffixes == null 
+                || ( acceptArchives && ArchiveScanner.isArchive(fileName) ) ) {
+            return true;
+        }
+        for (String suffix : suffixes) {
+            if ( fileName.endsWith(suffix) ) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Holds something derived from the header in each comment style, 
+ * such as its encoded bytes or a matcher for it, built the first time 
+ * a file whose extension uses that style is seen, and kept for the 
+ * rest of the run. Extensions sharing a style share a single value, 
+ * so a scan over every file type renders and encodes each style of 
+ * header at most once. Files whose extension has no style get the 
+ * value for {@link CommentStyle#NONE}, and only extensions that have 
+ * a style are remembered, so the cache never grows beyond the styles 
+ * configured. Safe to use from several threads at once; two threads 
+ * may occasionally both build the value for a style, in which case 
+ * only one is kept.
+ * 
+ * @author Michael Fitzmaurice
+ */
+abstract class FileTypeCache<T> {
+    
+    private final Map<String, CommentStyle> styles;
+    private final ConcurrentMap<CommentStyle, T> byStyle = 
+        new ConcurrentHashMap<CommentStyle, T>();
+    private final ConcurrentMap<String, T> byExtension = 
+        new ConcurrentHashMap<String, T>();
+    
+    /**
+     * @param styles The comment style for each file extension, keyed 
+     *          by extension without the dot; empty to treat every file 
+     *          alike
+     */
+    FileTypeCache(Map<String, CommentStyle> styles) {
+        this.styles = styles;
+    }
+    
+    /**
+     * Builds the value for one comment style
+     */
+    protected abstract T create(CommentStyle style);
+    
+    T forFile(File file) {
+        
+        if ( styles.isEmpty() ) {
+            return forStyle(CommentStyle.NONE);
+        }
+        String extension = extension( file.getName() );
+        T value = byExtension.get(extension);
+        if (value == null) {
+            CommentStyle style = styles.get(extension);
+            if (style == null) {
+                // not cached, so that a tree of arbitrary extensions 
+                // cannot grow the map past the configured styles
+                return forStyle(CommentStyle.NONE);
+            }
+            value = forStyle(style);
+            byExtension.put(extension, value);
+        }
+        
+        return value;
+    }
+    
+    T forStyle(CommentStyle style) {
+        
+        T value = byStyle.get(style);
+        if (value == null) {
+            value = create(style);
+            T existing = byStyle.putIfAbsent(style, value);
+            if (existing != null) {
+                value = existing;
+            }
+        }
+        
+        return value;
+    }
+    
+    /**
+     * @return The text after the last dot in a file name, or an empty 
+     *          string if there is none
+     */
+    static String extension(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        
+        return dot == -1 ? "" : fileName.substring(dot + 1);
+    }
+}
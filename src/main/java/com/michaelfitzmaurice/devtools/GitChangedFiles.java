@@ -0,0 +1,146 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.eclipse.jgit.lib.IndexDiff;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.treewalk.FileTreeIterator;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lists the files under a directory that have been added or modified 
+ * relative to a given commit, by reading the local Git repository 
+ * that the directory belongs to. Nothing is fetched over the network.
+ * <p>
+ * A file counts as changed if it differs between the commit and the 
+ * index (staged changes, including everything committed since), 
+ * between the index and the working tree (unstaged changes), or is 
+ * untracked and not ignored. Deleted files are left out, as there is 
+ * nothing to check. Using <code>HEAD</code> as the commit therefore 
+ * gives just the uncommitted changes in the working tree.
+ * <p>
+ * Working tree files are compared with the index using the file 
+ * sizes and modification times it records, as <code>git status</code> 
+ * does, so only files that really have changed are read.
+ * 
+ * @author Michael Fitzmaurice
+ */
+final class GitChangedFiles {
+    
+    private static final transient Logger LOG = 
+            LoggerFactory.getLogger(GitChangedFiles.class); 
+    
+    private GitChangedFiles() {
+        // static helper; not for instantiation
+    }
+    
+    /**
+     * @param rootDir A directory inside the working tree of a Git 
+     *          repository
+     * @param baseRef The commit to compare against, in any form Git 
+     *          understands, e.g. "HEAD", "origin/master" or a hash
+     * @param filter Decides which of the changed files are returned
+     * 
+     * @return The changed files under <code>rootDir</code>, sorted
+     * 
+     * @throws IOException If <code>rootDir</code> is not inside a Git 
+     *          working tree, the commit cannot be found, or the 
+     *          repository cannot be read
+     */
+    static List<File> list(File rootDir, 
+                            String baseRef, 
+                            FileExtensionFilter filter) 
+    throws IOException {
+        
+        File dir = rootDir.getCanonicalFile();
+        FileRepositoryBuilder builder = 
+            new FileRepositoryBuilder().readEnvironment().findGitDir(dir);
+        if (builder.getGitDir() == null) {
+            throw new IOException(rootDir + " is not inside a Git repository");
+        }
+        
+        Repository repository = builder.setMustExist(true).build();
+        try {
+            if ( repository.resolve(baseRef + "^{tree}") == null ) {
+                throw new IOException("Cannot find commit " + baseRef 
+                                        + " in " + repository.getDirectory() );
+            }
+            File workTree = repository.getWorkTree().getCanonicalFile();
+            String prefix = relativePath(workTree, dir);
+            
+            IndexDiff diff = 
+                new IndexDiff( repository, 
+                                baseRef, 
+                                new FileTreeIterator(repository) );
+            if (prefix.length() > 0) {
+                diff.setFilter( PathFilterGroup.createFromStrings(prefix) );
+            }
+            diff.diff();
+            
+            Set<String> changed = new TreeSet<String>();
+            changed.addAll( diff.getAdded() );
+            changed.addAll( diff.getChanged() );
+            changed.addAll( diff.getModified() );
+            changed.addAll( diff.getUntracked() );
+            LOG.debug("{} paths under {} differ from {}", 
+                        new Object[] {changed.size(), dir, baseRef} );
+            
+            // report paths under rootDir as given, rather than
+            // under the canonical working tree
+            int prefixLength = prefix.length() == 0 ? 0 : prefix.length() + 1;
+            List<File> files = new ArrayList<File>();
+            for (String path : changed) {
+                File file = new File( rootDir, path.substring(prefixLength) );
+                if ( filter.accept( file.getName() ) && file.isFile() ) {
+                    files.add(file);
+                }
+            }
+            Collections.sort(files);
+            
+            return files;
+        } finally {
+            repository.close();
+        }
+    }
+    
+    private static String relativePath(File workTree, File dir) 
+    throws IOException {
+        
+        String treePath = workTree.getPath();
+        String dirPath = dir.getPath();
+        if ( dirPath.equals(treePath) ) {
+            return "";
+        }
+        if ( dirPath.startsWith(treePath + File.separator) == false ) {
+            throw new IOException(dir + " is not inside the working tree " 
+                                    + workTree);
+        }
+        
+        return dirPath.substring( treePath.length() + 1 )
+                        .replace(File.separatorChar, '/');
+    }
+}
@@ -0,0 +1,288 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.michaelfitzmaurice.devtools.HeaderTool.MatchMode;
+
+/**
+ * Runs the Header Tool over many source directories in one JVM, 
+ * so that a build with dozens of modules starts the JVM, reads and 
+ * compiles each header, and starts its scan threads once, rather 
+ * than once per module.
+ * <p>
+ * The jobs are read from a config file, one per line, in the same 
+ * order as the arguments to {@link HeaderTool#main(String[])} but 
+ * with the match mode after the header files:
+ * 
+ * <pre> 
+ *      # root          header(s)               mode        extensions 
+ *      module-a/src    headers/apache.txt      full        java xml 
+ *      module-b/src    headers/apache.txt      template    java 
+ *      /opt/legacy     /h/apache.txt:/h/mit.txt first-line * 
+ * </pre>
+ * 
+ * Fields are separated by white space. The mode is one of 
+ * <code>full</code>, <code>first-line</code> or <code>template</code>. 
+ * Relative paths are resolved against the directory holding the 
+ * config file. Blank lines and lines starting with <code>#</code> 
+ * are ignored.
+ * <p>
+ * Jobs with the same headers and mode share a single 
+ * <code>HeaderTool</code>, and every job shares the same scan 
+ * threads and the same metrics. A job that fails is reported and 
+ * the remaining jobs still run.
+ * 
+ * @author Michael Fitzmaurice
+ */
+public class HeaderBatch {
+    
+    static final String JOB_PREFIX = "header-batch-job ";
+    
+    private static final transient Logger LOG = 
+            LoggerFactory.getLogger(HeaderBatch.class);
+    
+    private static final Map<String, MatchMode> MATCH_MODES = 
+        new HashMap<String, MatchMode>();
+    static {
+        MATCH_MODES.put("full", MatchMode.FULL_MATCH);
+        MATCH_MODES.put("first-line", MatchMode.FIRST_LINE_ONLY);
+        MATCH_MODES.put("template", MatchMode.TEMPLATE);
+    }
+    
+    /**
+     * One source directory to check, and how
+     */
+    static final class Job {
+        
+        final File rootDir;
+        final List<File> headerFiles;
+        final MatchMode matchMode;
+        final String[] fileExtensions;
+        
+        Job(File rootDir, 
+            List<File> headerFiles, 
+            MatchMode matchMode, 
+            String[] fileExtensions) {
+            this.rootDir = rootDir;
+            this.headerFiles = headerFiles;
+            this.matchMode = matchMode;
+            this.fileExtensions = fileExtensions;
+        }
+    }
+    
+    private final ScanMetrics metrics = new ScanMetrics();
+    private final Map<String, HeaderTool> tools = 
+        new HashMap<String, HeaderTool>();
+    
+    /**
+     * Reads the jobs from a config file.
+     * 
+     * @param configFile The file listing the jobs
+     * @return The jobs, in the order listed
+     * @throws IOException If the file cannot be read
+     * @throws IllegalArgumentException If any line is not a valid job
+     */
+    static List<Job> readJobs(File configFile)
+    throws IOException {
+        
+        File baseDir = configFile.getAbsoluteFile().getParentFile();
+        List<Job> jobs = new ArrayList<Job>();
+        int lineNumber = 0;
+        for ( String line : FileUtils.readLines(configFile, "UTF-8") ) {
+            lineNumber++;
+            line = line.trim();
+            if ( line.isEmpty() || line.startsWith("#") ) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            if (fields.length < 4) {
+                throw new IllegalArgumentException( 
+                            configFile + " line " + lineNumber
+                            + ": expected root, header file(s), mode "
+                            + "and extensions, not '" + line + "'");
+            }
+            MatchMode matchMode = MATCH_MODES.get( fields[2] );
+            if (matchMode == null) {
+                throw new IllegalArgumentException( 
+                            configFile + " line " + lineNumber
+                            + ": unknown match mode '" + fields[2]
+                            + "'; expected one of " + MATCH_MODES.keySet() );
+            }
+            List<File> headerFiles = new ArrayList<File>();
+            for ( File headerFile : HeaderTool.headerFiles( fields[1] ) ) {
+                headerFiles.add( resolve(baseDir, headerFile) );
+            }
+            String[] fileExtensions = 
+                Arrays.copyOfRange(fields, 3, fields.length);
+            if ( Arrays.asList(fileExtensions)
+                    .contains(HeaderTool.WILDCARD_FILE_EXTENSION) ) {
+                fileExtensions = null;
+            }
+            jobs.add( new Job( resolve( baseDir, new File( fields[0] ) ), 
+                                headerFiles, 
+                                matchMode, 
+                                fileExtensions) );
+        }
+        
+        return jobs;
+    }
+    
+    /**
+     * Runs each job in turn, as {@link HeaderTool#main(String[])} 
+     * would with the same system properties, other than 
+     * <code>scan-index</code>, which is ignored.
+     * 
+     * @param jobs The jobs to run
+     * @return For each job that failed, why; empty if they all 
+     *          succeeded
+     * @throws IOException If any of the header files cannot be read
+     */
+    Map<Job, IOException> run(List<Job> jobs)
+    throws IOException {
+        
+        Map<Job, IOException> failures = 
+            new LinkedHashMap<Job, IOException>();
+        ScanPools pools = 
+            new ScanPools( HeaderTool.scanThreadsFromSystemProperties() );
+        try {
+            for (Job job : jobs) {
+                HeaderTool headerTool = toolFor(job);
+                headerTool.setScanPools(pools);
+                long filesChecked = metrics.getFilesChecked();
+                long filesWritten = metrics.getFilesWritten();
+                String outcome;
+                try {
+                    if ( job.rootDir.isDirectory() == false 
+                            && ( job.rootDir.isFile() == false 
+                                || ArchiveScanner.isArchive( 
+                                        job.rootDir.getName() ) == false ) ) {
+                        throw new IOException(job.rootDir 
+                                                + " is not a directory");
+                    }
+                    int filesWithNoHeader = 
+                        headerTool.runFromSystemProperties(job.rootDir, 
+                                                    job.fileExtensions);
+                    outcome = "files_without_header="
+                                + filesWithNoHeader;
+                } catch (IOException e) {
+                    LOG.error("Failed to check " + job.rootDir, e);
+                    failures.put(job, e);
+                    outcome = "failed=" + e.getMessage();
+                }
+                HeaderTool.reportStream().println( 
+                    JOB_PREFIX 
+                    + "root=" + job.rootDir 
+                    + " files_checked=" 
+                    + (metrics.getFilesChecked() - filesChecked) 
+                    + " files_written=" 
+                    + (metrics.getFilesWritten() - filesWritten) 
+                    + " " + outcome );
+            }
+        } finally {
+            pools.close();
+        }
+        
+        return failures;
+    }
+    
+    /**
+     * @return The tool for the job's headers and match mode, 
+     *          creating it the first time they are asked for
+     */
+    private HeaderTool toolFor(Job job)
+    throws IOException {
+        
+        String key = job.matchMode + File.pathSeparator + job.headerFiles;
+        HeaderTool headerTool = tools.get(key);
+        if (headerTool == null) {
+            headerTool = HeaderTool.fromSystemProperties(job.headerFiles, 
+                                                        job.matchMode, 
+                                                        metrics);
+            headerTool.setScanIndex(null);
+            tools.put(key, headerTool);
+        }
+        
+        return headerTool;
+    }
+    
+    private static File resolve(File baseDir, File file) {
+        
+        if ( file.isAbsolute() ) {
+            return file;
+        }
+        
+        return new File(baseDir, file.getPath() );
+    }
+    
+    /**
+     * Runs every job listed in a config file. Takes the same system 
+     * properties as {@link HeaderTool#main(String[])}, other than 
+     * <code>first-line-match</code> and <code>template-match</code>, 
+     * as each job names its own match mode, and 
+     * <code>scan-index</code>, as the jobs' headers differ. 
+     * <code>patch-file</code> is rejected, as a patch can only be 
+     * applied from a single root directory. A line 
+     * is printed to standard out for each job as it finishes, and 
+     * the metrics for the whole batch are printed as the last line.
+     * 
+     * @param args Runtime arguments, which must include the full 
+     *          path to the config file
+     * 
+     * @throws IOException If the config file or any header file 
+     *          cannot be read, or any of the jobs failed
+     */
+    public static void main(String[] args) throws IOException {
+        
+        if (System.getProperty(HeaderTool.PATCH_FILE_SYS_PROP) != null) {
+            throw new IllegalArgumentException(
+                        "Patch output is not supported for batches");
+        }
+        List<Job> jobs = readJobs( new File(args[0]) );
+        LOG.info("Running {} header jobs from {}", jobs.size(), args[0]);
+        
+        HeaderBatch batch = new HeaderBatch();
+        ObjectName metricsName = HeaderTool.registerMetrics(batch.metrics);
+        try {
+            Map<Job, IOException> failures = batch.run(jobs);
+            if (failures.isEmpty() == false) {
+                Job first = failures.keySet().iterator().next();
+                throw new IOException(failures.size() + " of " + jobs.size()
+                                        + " header jobs failed; first was "
+                                        + first.rootDir, 
+                                        failures.get(first) );
+            }
+        } finally {
+            HeaderTool.unregisterMetrics(metricsName);
+            HeaderTool.reportStream().println( HeaderTool.SUMMARY_PREFIX 
+                                                + batch.metrics.summary() );
+        }
+    }
+}
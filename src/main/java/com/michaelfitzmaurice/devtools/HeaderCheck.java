@@ -0,0 +1,64 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Decides which header, if any, a single file found during a scan 
+ * begins with.
+ * 
+ * @author Michael Fitzmaurice
+ */
+interface HeaderCheck {
+    
+    /**
+     * Returned when a file does not begin with any of the headers
+     */
+    int NO_MATCH = -1;
+    
+    /**
+     * Returned when a file looks like binary data rather than text, 
+     * so was not matched against the headers
+     */
+    int BINARY = -2;
+    
+    /**
+     * Returned when a file is too large to be a source file, so was 
+     * not read at all
+     */
+    int OVERSIZED = -3;
+    
+    /**
+     * Returned when a file is an archive whose entries have each been 
+     * checked and reported in its place
+     */
+    int ARCHIVE = -4;
+    
+    /**
+     * @param file The file to check
+     * @param attrs The attributes read for the file while walking 
+     *          the directory tree
+     * @return The position of the header the file begins with, in 
+     *          the list of headers being matched, {@link #NO_MATCH},
+     *          or why the file was skipped
+     * @throws IOException If the file cannot be read
+     */
+    int matchingHeader(File file, BasicFileAttributes attrs) 
+    throws IOException;
+}
@@ -0,0 +1,203 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools;
+
+import static java.util.Arrays.asList;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A thin client for {@link HeaderServer}, small enough to start 
+ * quickly: it loads no logging framework and does no matching 
+ * itself, but sends each request to the server and returns its 
+ * reply.
+ * 
+ * @author Michael Fitzmaurice
+ */
+public class HeaderClient {
+    
+    private final int port;
+    private final File tokenFile;
+    
+    /**
+     * @param port The localhost port the server is listening on
+     * @param tokenFile The file the server wrote its token to
+     */
+    public HeaderClient(int port, File tokenFile) {
+        this.port = port;
+        this.tokenFile = tokenFile;
+    }
+    
+    /**
+     * @return The token file named by the 
+     *          <code>server-token-file</code> system property, or by 
+     *          default <code>.header-tool-server-&lt;port&gt;.token</code> 
+     *          in the user's home directory
+     */
+    static File tokenFileFromSystemProperties(int port) {
+        
+        String tokenFile = 
+            System.getProperty(HeaderServer.SERVER_TOKEN_FILE_SYS_PROP);
+        if (tokenFile != null) {
+            return new File(tokenFile);
+        }
+        
+        return new File( System.getProperty("user.home"), 
+                        ".header-tool-server-" + port + ".token" );
+    }
+    
+    /**
+     * @param files The files to check
+     * @return Those of the files that lack the header
+     * @throws IOException If the server cannot be reached, or it 
+     *          fails to check the files
+     */
+    public List<File> check(Collection<File> files) 
+    throws IOException {
+        return send(HeaderServer.CHECK, files);
+    }
+    
+    /**
+     * @param files The files to check, inserting the header into 
+     *          any that lack it
+     * @return The files that the header was inserted into
+     * @throws IOException If the server cannot be reached, or it 
+     *          fails to check or amend the files
+     */
+    public List<File> insert(Collection<File> files) 
+    throws IOException {
+        return send(HeaderServer.INSERT, files);
+    }
+    
+    /**
+     * Asks the server to shut down once this request is answered.
+     * 
+     * @throws IOException If the server cannot be reached
+     */
+    public void stop() 
+    throws IOException {
+        send( HeaderServer.STOP, Collections.<File>emptyList() );
+    }
+    
+    private List<File> send(String command, Collection<File> files) 
+    throws IOException {
+        
+        // read for each request, as the server writes a new token 
+        // every time it starts
+        String token = 
+            new String( Files.readAllBytes( tokenFile.toPath() ), 
+                        HeaderServer.UTF8 );
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        try {
+            Writer out = 
+                new OutputStreamWriter(socket.getOutputStream(), 
+                                        HeaderServer.UTF8);
+            out.write(token);
+            out.write('\n');
+            out.write(command);
+            out.write('\n');
+            for (File file : files) {
+                out.write( file.getAbsolutePath() );
+                out.write('\n');
+            }
+            out.write('\n');
+            out.flush();
+            
+            BufferedReader in = 
+                new BufferedReader( 
+                    new InputStreamReader(socket.getInputStream(), 
+                                            HeaderServer.UTF8) );
+            List<File> results = new ArrayList<File>();
+            String line = in.readLine();
+            while (line != null) {
+                if ( line.equals(HeaderServer.OK) ) {
+                    return results;
+                }
+                if ( line.startsWith(HeaderServer.ERROR) ) {
+                    throw new IOException( 
+                        line.substring( HeaderServer.ERROR.length() ) );
+                }
+                results.add( new File(line) );
+                line = in.readLine();
+            }
+            throw new IOException("Header server closed the connection " 
+                                    + "without a reply");
+        } finally {
+            socket.close();
+        }
+    }
+    
+    /**
+     * Sends a request to a running Header Server, printing each file 
+     * in the reply. Exits with status 1 if a check finds files lacking 
+     * the header, so that it can be used directly as a commit hook.
+     * 
+     * <pre>
+     *      -Dserver-port=7341
+     *      -Dserver-token-file=/path/to/token
+     * </pre>
+     * 
+     * @param args Runtime arguments: <code>check</code>, 
+     *          <code>insert</code> or <code>stop</code>, followed by 
+     *          the files to check
+     * 
+     * @throws IOException If the server cannot be reached or fails
+     * @throws IllegalArgumentException If no command is given, or the 
+     *          command is not one of those above
+     */
+    public static void main(String[] args) throws IOException {
+        
+        String command = args.length == 0 ? "" : args[0].toUpperCase();
+        if ( asList(HeaderServer.CHECK, HeaderServer.INSERT, HeaderServer.STOP)
+                .contains(command) == false ) {
+            throw new IllegalArgumentException( 
+                        "Usage: HeaderClient check|insert|stop [file ...]" );
+        }
+        int port = Integer.getInteger(HeaderServer.SERVER_PORT_SYS_PROP, 
+                                        HeaderServer.DEFAULT_PORT);
+        HeaderClient client = 
+            new HeaderClient( port, tokenFileFromSystemProperties(port) );
+        List<File> files = new ArrayList<File>();
+        for ( String path : asList(args).subList(1, args.length) ) {
+            files.add( new File(path) );
+        }
+        if ( command.equals(HeaderServer.STOP) ) {
+            client.stop();
+            return;
+        }
+        List<File> results = 
+            command.equals(HeaderServer.INSERT) ? client.insert(files)
+                                                : client.check(files);
+        for (File file : results) {
+            System.out.println(file);
+        }
+        if ( command.equals(HeaderServer.CHECK) && results.isEmpty() == false ) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+
+/**
+ * Inserts a header at the beginning of files without ever holding 
+ * a whole file in memory, and without the file being left half 
+ * written if the process dies part way through.
+ * <p>
+ * The header, already encoded, is written to a temporary file in the 
+ * same directory as the original. The original bytes follow, copied 
+ * channel to channel so the operating system can move them without 
+ * passing them through the Java heap, and the temporary file is then 
+ * renamed over the original. Anything that has to stay at the very 
+ * top of the file, such as a <code>#!</code> line, an XML declaration 
+ * or a byte order mark (see {@link Preamble}), is kept ahead of the 
+ * header, unless the header brings its own. Line endings and 
+ * encoding of the original content are preserved exactly. Where the file system supports POSIX 
+ * permissions, those of the original file are kept. A symbolic link 
+ * is followed, so the file it points to is replaced and the link 
+ * kept. As the file is replaced rather than rewritten in place, any 
+ * hard links to it will keep the old content.
+ * 
+ * @author Michael Fitzmaurice
+ */
+final class HeaderInserter {
+    
+    private final FileTypeCache<byte[]> headers;
+    private final ScanMetrics metrics;
+    private final boolean journaled;
+    
+    /**
+     * @param headers The encoded header to insert into each type of 
+     *          file
+     * @param metrics Where to record the bytes written and the time 
+     *          spent writing them
+     */
+    HeaderInserter(FileTypeCache<byte[]> headers, ScanMetrics metrics) {
+        this(headers, metrics, false);
+    }
+    
+    /**
+     * @param journaled Whether to leave each original behind as a 
+     *          backup, and write each new version to a temporary file 
+     *          with a fixed name, which is left for an 
+     *          {@link InsertJournal} to rename over the original once 
+     *          it is safely on disk, so that the insertion can be 
+     *          undone after a crash
+     */
+    HeaderInserter(FileTypeCache<byte[]> headers, 
+                    ScanMetrics metrics, 
+                    boolean journaled) {
+        this.headers = headers;
+        this.metrics = metrics;
+        this.journaled = journaled;
+    }
+    
+    /**
+     * @param file The file to insert the header into
+     * @throws IOException If the file cannot be read, or the new 
+     *          version cannot be written to the same directory
+     */
+    void insert(File file) 
+    throws IOException {
+        
+        // opened first, so an unreadable file fails before anything is 
+        // written, and with the same message FileReader used to give
+        long start = System.nanoTime();
+        FileInputStream in = new FileInputStream(file);
+        File target = null;
+        File tmpFile = null;
+        long written;
+        try {
+            target = resolve(file);
+            if (journaled) {
+                Path backup = InsertJournal.backupOf(target).toPath();
+                Files.deleteIfExists(backup);
+                Files.createLink( backup, target.toPath() );
+                tmpFile = InsertJournal.tmpFileOf(target);
+            } else {
+                tmpFile = File.createTempFile("." + target.getName(), 
+                                                ".tmp", 
+                                                target.getParentFile() );
+            }
+            FileOutputStream out = new FileOutputStream(tmpFile);
+            try {
+                FileChannel channel = out.getChannel();
+                byte[] header = headers.forFile(file);
+                int preamble = 0;
+                if ( Preamble.length(header, header.length) == 0 ) {
+                    byte[] leading = new byte[Preamble.MAX_LENGTH];
+                    int length = read(in, leading);
+                    preamble = Preamble.length(leading, length);
+                    write(leading, preamble, channel);
+                    byte[] separator = 
+                        Preamble.separator(leading, preamble, length, header);
+                    write(separator, separator.length, channel);
+                }
+                write(header, header.length, channel);
+                copy(in.getChannel(), preamble, channel);
+                written = channel.size();
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            in.close();
+            if (tmpFile != null) {
+                tmpFile.delete();
+            }
+            throw e;
+        }
+        in.close();
+        
+        if (journaled) {
+            copyPermissions(target, tmpFile);
+        } else {
+            replace(tmpFile, target);
+        }
+        metrics.fileWritten(written, System.nanoTime() - start);
+    }
+    
+    /**
+     * @return The file a path names once any symbolic links in it are 
+     *          followed, so that it is the file that gets replaced 
+     *          rather than the link; the path itself if there is no 
+     *          such file
+     */
+    static File resolve(File file) 
+    throws IOException {
+        
+        try {
+            return file.toPath().toRealPath().toFile();
+        } catch (NoSuchFileException e) {
+            return file.getAbsoluteFile();
+        }
+    }
+    
+    /**
+     * Writes the first <code>length</code> bytes of an array to the 
+     * current position of the target channel.
+     */
+    static void write(byte[] bytes, int length, FileChannel target) 
+    throws IOException {
+        
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+        while ( buffer.hasRemaining() ) {
+            target.write(buffer);
+        }
+    }
+    
+    /**
+     * Fills as much of a buffer as the stream allows.
+     * 
+     * @return The number of bytes read
+     */
+    static int read(FileInputStream in, byte[] buffer)
+    throws IOException {
+        
+        int total = 0;
+        while (total < buffer.length) {
+            int read = in.read(buffer, total, buffer.length - total);
+            if (read == -1) {
+                break;
+            }
+            total += read;
+        }
+        
+        return total;
+    }
+    
+    /**
+     * Copies everything from a position in the source channel to the 
+     * current position of the target channel.
+     * 
+     * @throws IOException If the source shrinks while it is copied
+     */
+    static void copy(FileChannel source, long position, FileChannel target) 
+    throws IOException {
+        
+        long size = source.size();
+        while (position < size) {
+            long transferred = 
+                source.transferTo(position, size - position, target);
+            if (transferred == 0) {
+                throw new IOException("File was truncated while being copied");
+            }
+            position += transferred;
+        }
+    }
+    
+    /**
+     * Atomically renames a freshly written file over an existing one,
+     * carrying over the existing file's permissions. The fresh file is 
+     * deleted if it cannot be moved. The existing file should already 
+     * be {@link #resolve(File) resolved}, as a symbolic link would 
+     * itself be replaced.
+     */
+    static void replace(File freshFile, File original) 
+    throws IOException {
+        
+        try {
+            copyPermissions(original, freshFile);
+            rename(freshFile, original);
+        } catch (IOException e) {
+            Files.deleteIfExists( freshFile.toPath() );
+            throw e;
+        }
+    }
+    
+    /**
+     * Gives a file the same POSIX permissions as another, where the 
+     * file system supports them
+     */
+    static void copyPermissions(File from, File to) 
+    throws IOException {
+        
+        PosixFileAttributeView fromAttrs = 
+            Files.getFileAttributeView(from.toPath(), 
+                                        PosixFileAttributeView.class);
+        if (fromAttrs != null) {
+            Files.setPosixFilePermissions( to.toPath(), 
+                                        fromAttrs.readAttributes()
+                                            .permissions() );
+        }
+    }
+    
+    /**
+     * Renames a file over another, atomically where the file system 
+     * allows it
+     */
+    static void rename(File source, File target) 
+    throws IOException {
+        
+        try {
+            Files.move(source.toPath(), 
+                        target.toPath(), 
+                        StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), 
+                        target.toPath(), 
+                        StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,646 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Checks which of a set of headers, if any, a file begins with by 
+ * comparing raw bytes, rather than decoding the whole file into a
+ * <code>String</code>. The headers are encoded once, at construction 
+ * time, and compiled into a single deterministic automaton, so each 
+ * file is read once and walked through the automaton a byte at a time, 
+ * however many headers there are. For literal headers the automaton is 
+ * simply a prefix trie. Headers containing placeholders (see 
+ * {@link HeaderTemplate}) compile to the same kind of automaton, so 
+ * they are matched with no backtracking and no per-file allocation. 
+ * Only as many bytes as could possibly take part in a match are ever 
+ * read from each file, and matching stops at the first byte that no 
+ * header can follow.
+ * <p>
+ * When one header is a prefix of another, the longest one that the 
+ * file begins with is reported.
+ * <p>
+ * A header may also follow a {@link Preamble}, such as a 
+ * <code>#!</code> line or an XML declaration, that has to stay at 
+ * the top of the file. The start of the file is tried first, and then 
+ * the position after the preamble, so the cost of matching stays 
+ * bounded by the window size plus {@link Preamble#MAX_LENGTH}.
+ * <p>
+ * Line endings are treated the way <code>BufferedReader</code>
+ * treats them, so that results are the same as matching against
+ * the decoded file contents: a line feed in a header matches
+ * <code>\n</code>, <code>\r\n</code> or a lone <code>\r</code> in
+ * the file, and a file that ends without a line terminator is
+ * treated as though it had one.
+ * <p>
+ * Instances are thread safe; each thread reads into its own
+ * reusable buffer.
+ *
+ * @author Michael Fitzmaurice
+ */
+final class HeaderMatcher implements HeaderCheck {
+
+    private static final byte LF = '\n';
+    private static final byte CR = '\r';
+    
+    // states with more exits than this get a full lookup table
+    private static final int MAX_SPARSE_EDGES = 16;
+    
+    // reading this much costs no more than reading a few bytes,
+    // and is enough to recognise most binary files
+    private static final int SNIFF_SIZE = 512;
+    private static final byte[][] BINARY_SIGNATURES = {
+        {'P', 'K', 3, 4},                                       // zip, jar
+        {(byte) 0x89, 'P', 'N', 'G'},                           // png
+        {'G', 'I', 'F', '8'},                                   // gif
+        {(byte) 0xff, (byte) 0xd8, (byte) 0xff},                // jpeg
+        {'%', 'P', 'D', 'F', '-'},                              // pdf
+        {(byte) 0xca, (byte) 0xfe, (byte) 0xba, (byte) 0xbe},   // class
+        {0x7f, 'E', 'L', 'F'},                                  // elf
+        {0x1f, (byte) 0x8b}                                     // gzip
+    };
+
+    // the automaton: for each state, either a table of the state to 
+    // move to for every byte, or the bytes that lead out of it and 
+    // the states they lead to; and the header that ends there, if any
+    private final int[][] dense;
+    private final byte[][] labels;
+    private final int[][] targets;
+    private final int[] accepting;
+    private final int windowSize;
+    private final ThreadLocal<byte[]> buffers;
+    private final ScanMetrics metrics;
+
+    /**
+     * @param headers The headers that files may begin with, using 
+     *          <code>lineSeparator</code> between lines; the position 
+     *          of each in the list identifies it in match results
+     * @param lineSeparator The line separator used in the headers
+     * @param charset The charset used to encode the headers; must 
+     *          encode line feeds and carriage returns as single
+     *          bytes, as ASCII does
+     */
+    HeaderMatcher(List<HeaderTemplate> headers, 
+                    String lineSeparator, 
+                    Charset charset) {
+        this( headers, lineSeparator, charset, new ScanMetrics() );
+    }
+
+    /**
+     * @param headers The headers that files may begin with, using 
+     *          <code>lineSeparator</code> between lines; the position 
+     *          of each in the list identifies it in match results
+     * @param lineSeparator The line separator used in the headers
+     * @param charset The charset used to encode the headers; must 
+     *          encode line feeds and carriage returns as single
+     *          bytes, as ASCII does
+     * @param metrics Where to record the bytes read from files and 
+     *          the time spent reading and matching them
+     */
+    HeaderMatcher(List<HeaderTemplate> headers, 
+                    String lineSeparator, 
+                    Charset charset,
+                    ScanMetrics metrics) {
+
+        Nfa nfa = new Nfa();
+        int longestWindow = 0;
+        for (int header = 0; header < headers.size(); header++) {
+            int window = 
+                nfa.add(header, headers.get(header), lineSeparator, charset);
+            longestWindow = Math.max(longestWindow, window);
+        }
+        
+        // subset construction: each state of the automaton stands 
+        // for the set of NFA states that the bytes so far lead to
+        List<int[]> stateSets = new ArrayList<int[]>();
+        Map<String, Integer> stateIds = new HashMap<String, Integer>();
+        List<SortedMap<Integer, Integer>> exits = 
+            new ArrayList<SortedMap<Integer, Integer>>();
+        int[] start = nfa.closure( Collections.singleton(0) );
+        stateSets.add(start);
+        stateIds.put(Arrays.toString(start), 0);
+        for (int state = 0; state < stateSets.size(); state++) {
+            SortedMap<Integer, Set<Integer>> moves = 
+                nfa.moves( stateSets.get(state) );
+            SortedMap<Integer, Integer> stateExits = 
+                new TreeMap<Integer, Integer>();
+            for ( Map.Entry<Integer, Set<Integer>> move : moves.entrySet() ) {
+                int[] targetSet = nfa.closure( move.getValue() );
+                String key = Arrays.toString(targetSet);
+                Integer target = stateIds.get(key);
+                if (target == null) {
+                    target = stateSets.size();
+                    stateSets.add(targetSet);
+                    stateIds.put(key, target);
+                }
+                stateExits.put(move.getKey(), target);
+            }
+            exits.add(stateExits);
+        }
+        
+        int states = stateSets.size();
+        this.dense = new int[states][];
+        this.labels = new byte[states][];
+        this.targets = new int[states][];
+        this.accepting = new int[states];
+        for (int state = 0; state < states; state++) {
+            SortedMap<Integer, Integer> stateExits = exits.get(state);
+            if (stateExits.size() > MAX_SPARSE_EDGES) {
+                dense[state] = new int[256];
+                Arrays.fill(dense[state], NO_MATCH);
+                for ( Map.Entry<Integer, Integer> exit : stateExits.entrySet() ) {
+                    dense[state][ exit.getKey() ] = exit.getValue();
+                }
+            } else {
+                labels[state] = new byte[ stateExits.size() ];
+                targets[state] = new int[ stateExits.size() ];
+                int edge = 0;
+                for ( Map.Entry<Integer, Integer> exit : stateExits.entrySet() ) {
+                    labels[state][edge] = (byte) exit.getKey().intValue();
+                    targets[state][edge] = exit.getValue();
+                    edge++;
+                }
+            }
+            accepting[state] = nfa.acceptedHeader( stateSets.get(state) );
+        }
+        
+        this.windowSize = longestWindow;
+        this.metrics = metrics;
+        this.buffers = new ThreadLocal<byte[]>() {
+            @Override
+            protected byte[] initialValue() {
+                return new byte[ Math.max(windowSize + Preamble.MAX_LENGTH, 
+                                            SNIFF_SIZE) ];
+            }
+        };
+    }
+
+    /**
+     * @return The maximum number of bytes any of the headers can 
+     *          span; up to {@link Preamble#MAX_LENGTH} more are read 
+     *          from each file, in case the header follows a preamble
+     */
+    int windowSize() {
+        return windowSize;
+    }
+
+    @Override
+    public int matchingHeader(File file, BasicFileAttributes attrs)
+    throws IOException {
+        return match(file);
+    }
+
+    /**
+     * @param file The file to check
+     * @return The position of the header the file begins with, 
+     *          {@link HeaderCheck#NO_MATCH}, or 
+     *          {@link HeaderCheck#BINARY} if the first block of the 
+     *          file holds a NUL byte or starts with the signature of 
+     *          a common binary format
+     * @throws IOException If the file cannot be read
+     */
+    int match(File file)
+    throws IOException {
+
+        byte[] buffer = buffers.get();
+        // opening and closing are timed as reading, as on network 
+        // file systems they can take longer than the read itself
+        long start = System.nanoTime();
+        InputStream in = new FileInputStream(file);
+        int length;
+        try {
+            length = fill(in, buffer);
+        } finally {
+            in.close();
+        }
+
+        return matchRead(buffer, length, start);
+    }
+
+    /**
+     * As {@link #match(File)}, but reading from a stream that is 
+     * already open, such as an entry in an archive. No more bytes are 
+     * read than could take part in a match, and the stream is left 
+     * open, so the caller can skip whatever remains.
+     *
+     * @param in The content of a file, from the start
+     * @throws IOException If the stream cannot be read
+     */
+    int match(InputStream in)
+    throws IOException {
+
+        byte[] buffer = buffers.get();
+        long start = System.nanoTime();
+        int length = fill(in, buffer);
+
+        return matchRead(buffer, length, start);
+    }
+
+    /**
+     * Records the time since reading began, and matches the bytes read
+     */
+    private int matchRead(byte[] buffer, int length, long start) {
+
+        long read = System.nanoTime();
+        metrics.fileRead(length, read - start);
+        int header = HeaderCheck.BINARY;
+        if ( isBinary(buffer, length) == false ) {
+            header = match(buffer, length, length < buffer.length);
+        }
+        metrics.bytesMatched(System.nanoTime() - read);
+
+        return header;
+    }
+
+    /**
+     * Matches the headers against bytes that have already been read, 
+     * at the start of the bytes or else right after any preamble.
+     *
+     * @param bytes The leading bytes of a file
+     * @param length The number of valid bytes in <code>bytes</code>
+     * @param endOfFile Whether those bytes make up the whole file
+     * @return The position of the header the bytes begin with, or
+     *          {@link HeaderCheck#NO_MATCH}
+     */
+    int match(byte[] bytes, int length, boolean endOfFile) {
+        
+        int header = (int) ( longestMatch(bytes, 0, length, endOfFile) >> 32 );
+        if (header == NO_MATCH) {
+            int preamble = Preamble.length(bytes, length);
+            if (preamble > 0) {
+                header = (int) ( longestMatch(bytes, 
+                                            preamble, 
+                                            length, 
+                                            endOfFile) >> 32 );
+            }
+        }
+        
+        return header;
+    }
+
+    /**
+     * Finds where the header that some bytes begin with ends, so 
+     * that it can be replaced.
+     *
+     * @param bytes The leading bytes of a file
+     * @param length The number of valid bytes in <code>bytes</code>
+     * @param endOfFile Whether those bytes make up the whole file
+     * @return The number of bytes the header occupies, including 
+     *          any carriage returns before its line feeds, or
+     *          {@link HeaderCheck#NO_MATCH} if the bytes do not 
+     *          begin with any of the headers
+     */
+    int headerEnd(byte[] bytes, int length, boolean endOfFile) {
+        return headerEnd(bytes, 0, length, endOfFile);
+    }
+
+    /**
+     * As {@link #headerEnd(byte[], int, boolean)}, but looking for 
+     * a header that starts part way into the bytes, as one following 
+     * a preamble does.
+     *
+     * @param from Where the header should start
+     * @return The position the header ends at, or 
+     *          {@link HeaderCheck#NO_MATCH}
+     */
+    int headerEnd(byte[] bytes, int from, int length, boolean endOfFile) {
+        
+        long match = longestMatch(bytes, from, length, endOfFile);
+        if ( (int) (match >> 32) == NO_MATCH ) {
+            return NO_MATCH;
+        }
+        
+        return (int) match;
+    }
+
+    /**
+     * @return The header matched in the high 32 bits, and the 
+     *          position it ends at in the low 32 bits
+     */
+    private long longestMatch(byte[] bytes, 
+                                int from, 
+                                int length, 
+                                boolean endOfFile) {
+
+        // more may have been read than any header can span
+        if (length - from > windowSize) {
+            length = from + windowSize;
+            endOfFile = false;
+        }
+        int matched = accepting[0];
+        int matchedEnd = from;
+        int state = 0;
+        int pos = from;
+        while (pos < length) {
+            byte b = bytes[pos++];
+            if (b == CR) {
+                if (pos < length && bytes[pos] == LF) {
+                    pos++;
+                }
+                b = LF;
+            }
+            state = next(state, b);
+            if (state == NO_MATCH) {
+                return result(matched, matchedEnd);
+            }
+            if (accepting[state] != NO_MATCH) {
+                matched = accepting[state];
+                matchedEnd = pos;
+            }
+        }
+        
+        // BufferedReader terminates the last line for us, so a
+        // final line feed in a header can match end of file
+        if ( endOfFile 
+                && length > from 
+                && bytes[length - 1] != LF
+                && bytes[length - 1] != CR ) {
+            state = next(state, LF);
+            if (state != NO_MATCH && accepting[state] != NO_MATCH) {
+                matched = accepting[state];
+                matchedEnd = length;
+            }
+        }
+
+        return result(matched, matchedEnd);
+    }
+    
+    private static long result(int header, int end) {
+        return ( (long) header << 32 ) | (end & 0xffffffffL);
+    }
+    
+    /**
+     * @return Whether the bytes look like the start of a binary file 
+     *          rather than text. UTF-16 text has NUL bytes too, but 
+     *          could not match a header encoded as ASCII anyway.
+     */
+    static boolean isBinary(byte[] bytes, int length) {
+        
+        for (int pos = 0; pos < length; pos++) {
+            if (bytes[pos] == 0) {
+                return true;
+            }
+        }
+        for (byte[] signature : BINARY_SIGNATURES) {
+            if ( startsWith(bytes, length, signature) ) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    private static boolean startsWith(byte[] bytes, 
+                                        int length, 
+                                        byte[] prefix) {
+        
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int pos = 0; pos < prefix.length; pos++) {
+            if (bytes[pos] != prefix[pos]) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    private int next(int state, byte b) {
+        
+        if (dense[state] != null) {
+            return dense[state][b & 0xff];
+        }
+        byte[] stateLabels = labels[state];
+        for (int edge = 0; edge < stateLabels.length; edge++) {
+            if (stateLabels[edge] == b) {
+                return targets[state][edge];
+            }
+        }
+        
+        return NO_MATCH;
+    }
+
+    /**
+     * A nondeterministic automaton for the headers, built one header 
+     * at a time from a shared start state, before being compiled to 
+     * the deterministic form used for matching
+     */
+    private static final class Nfa {
+        
+        private static final int ANY = -1;
+        
+        // for each state: edges as {lowest byte, highest byte, 
+        // excluded byte or ANY, target state}, and empty moves
+        private final List<List<int[]>> edges = new ArrayList<List<int[]>>();
+        private final List<List<Integer>> emptyMoves = 
+            new ArrayList<List<Integer>>();
+        private final List<Integer> accepting = new ArrayList<Integer>();
+        
+        Nfa() {
+            newState();
+        }
+        
+        /**
+         * @return The most bytes the header can occupy in a file
+         */
+        int add(int header, 
+                HeaderTemplate template, 
+                String lineSeparator, 
+                Charset charset) {
+            
+            int state = 0;
+            int window = 0;
+            for ( Object segment : template.segments() ) {
+                if (segment instanceof HeaderTemplate.Placeholder) {
+                    HeaderTemplate.Placeholder placeholder = 
+                        (HeaderTemplate.Placeholder) segment;
+                    state = addPlaceholder(state, placeholder);
+                    window += placeholder.maxLength();
+                    continue;
+                }
+                String text = 
+                    ( (String) segment ).replace(lineSeparator, "\n");
+                for ( byte b : text.getBytes(charset) ) {
+                    state = addEdge(state, b, b, ANY);
+                    // every line feed in a header may be preceded
+                    // by a carriage return in the file
+                    window += (b == LF) ? 2 : 1;
+                }
+            }
+            if (accepting.get(state) == NO_MATCH) {
+                accepting.set(state, header);
+            }
+            
+            return window;
+        }
+        
+        private int addPlaceholder(int state, 
+                                    HeaderTemplate.Placeholder placeholder) {
+            
+            switch (placeholder) {
+                case YEAR:
+                    return addYear(state);
+                case YEAR_RANGE:
+                    int firstYear = addYear(state);
+                    int end = newState();
+                    emptyMoves.get(firstYear).add(end);
+                    int dash = addEdge(firstYear, '-', '-', ANY);
+                    emptyMoves.get( addYear(dash) ).add(end);
+                    int comma = addEdge(firstYear, ',', ',', ANY);
+                    int space = addEdge(comma, ' ', ' ', ANY);
+                    emptyMoves.get(comma).add(space);
+                    emptyMoves.get( addYear(space) ).add(end);
+                    return end;
+                case AUTHOR:
+                default:
+                    int author = addEdge(state, 0, 255, LF);
+                    edges.get(author).add( new int[] {0, 255, LF, author} );
+                    return author;
+            }
+        }
+        
+        private int addYear(int state) {
+            
+            for (int digit = 0; digit < 4; digit++) {
+                state = addEdge(state, '0', '9', ANY);
+            }
+            
+            return state;
+        }
+        
+        private int addEdge(int from, int low, int high, int excluded) {
+            
+            int to = newState();
+            edges.get(from).add( new int[] {low & 0xff, high & 0xff, excluded, to} );
+            
+            return to;
+        }
+        
+        private int newState() {
+            
+            edges.add( new ArrayList<int[]>() );
+            emptyMoves.add( new ArrayList<Integer>() );
+            accepting.add(NO_MATCH);
+            
+            return edges.size() - 1;
+        }
+        
+        /**
+         * @return The given states plus all those reachable from them 
+         *          by empty moves, sorted
+         */
+        int[] closure(Collection<Integer> states) {
+            
+            SortedSet<Integer> closure = new TreeSet<Integer>(states);
+            Deque<Integer> pending = new ArrayDeque<Integer>(states);
+            while ( pending.isEmpty() == false ) {
+                for ( Integer next : emptyMoves.get( pending.pop() ) ) {
+                    if ( closure.add(next) ) {
+                        pending.push(next);
+                    }
+                }
+            }
+            int[] sorted = new int[ closure.size() ];
+            int i = 0;
+            for (Integer state : closure) {
+                sorted[i++] = state;
+            }
+            
+            return sorted;
+        }
+        
+        /**
+         * @return For each byte that leads anywhere from the given 
+         *          states, the states it leads to
+         */
+        SortedMap<Integer, Set<Integer>> moves(int[] states) {
+            
+            SortedMap<Integer, Set<Integer>> moves = 
+                new TreeMap<Integer, Set<Integer>>();
+            for (int state : states) {
+                for ( int[] edge : edges.get(state) ) {
+                    for (int b = edge[0]; b <= edge[1]; b++) {
+                        if (b == edge[2]) {
+                            continue;
+                        }
+                        Set<Integer> targets = moves.get(b);
+                        if (targets == null) {
+                            targets = new TreeSet<Integer>();
+                            moves.put(b, targets);
+                        }
+                        targets.add( edge[3] );
+                    }
+                }
+            }
+            
+            return moves;
+        }
+        
+        /**
+         * @return The first header that ends at any of the given 
+         *          states, or NO_MATCH
+         */
+        int acceptedHeader(int[] states) {
+            
+            int header = NO_MATCH;
+            for (int state : states) {
+                int accepted = accepting.get(state);
+                if ( accepted != NO_MATCH 
+                        && (header == NO_MATCH || accepted < header) ) {
+                    header = accepted;
+                }
+            }
+            
+            return header;
+        }
+    }
+
+    private static int fill(InputStream in, byte[] buffer)
+    throws IOException {
+
+        int total = 0;
+        while (total < buffer.length) {
+            int read = in.read(buffer, total, buffer.length - total);
+            if (read == -1) {
+                break;
+            }
+            total += read;
+        }
+
+        return total;
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Swaps the header that a file already begins with for a new one, 
+ * for example to bring the year in a copyright statement up to date.
+ * <p>
+ * The existing header is found by matching the start of the file, 
+ * or the text right after a {@link Preamble}, and only the start of 
+ * the file is read to do so. When the new 
+ * header encodes to exactly as many bytes as the old one occupies, 
+ * which is the usual case for a change of year, the new bytes are 
+ * written over the old ones in place and the rest of the file is 
+ * never touched. Otherwise the file is streamed into a new copy 
+ * with the new header in front, and the copy renamed over the 
+ * original, just as {@link HeaderInserter} does. An in place write 
+ * is a single write of a few hundred bytes, but unlike a rename it 
+ * is not atomic.
+ * 
+ * @author Michael Fitzmaurice
+ */
+final class HeaderReplacer {
+    
+    private final FileTypeCache<HeaderMatcher> matchers;
+    private final FileTypeCache<byte[]> headers;
+    private final ScanMetrics metrics;
+    
+    /**
+     * @param matchers Recognise the full text of the headers that 
+     *          may be replaced in each type of file
+     * @param headers The encoded header to replace them with in each 
+     *          type of file
+     * @param metrics Where to record the bytes written and the time 
+     *          spent writing them
+     */
+    HeaderReplacer(FileTypeCache<HeaderMatcher> matchers, 
+                    FileTypeCache<byte[]> headers, 
+                    ScanMetrics metrics) {
+        this.matchers = matchers;
+        this.headers = headers;
+        this.metrics = metrics;
+    }
+    
+    /**
+     * @param file The file whose header is to be replaced
+     * @return Whether the file was amended; false if it does not 
+     *          begin with any of the headers, or already begins with 
+     *          the new header byte for byte
+     * @throws IOException If the file cannot be read or written, or 
+     *          the new version cannot be written to the same directory
+     */
+    boolean replace(File file)
+    throws IOException {
+        
+        long start = System.nanoTime();
+        HeaderMatcher matcher = matchers.forFile(file);
+        byte[] header = headers.forFile(file);
+        byte[] prefix = 
+            new byte[ matcher.windowSize() + Preamble.MAX_LENGTH + 1 ];
+        FileInputStream in = new FileInputStream(file);
+        int length;
+        try {
+            length = HeaderInserter.read(in, prefix);
+        } finally {
+            in.close();
+        }
+        boolean endOfFile = length < prefix.length;
+        int oldHeaderStart = 0;
+        int oldHeaderEnd = matcher.headerEnd(prefix, 0, length, endOfFile);
+        if (oldHeaderEnd == HeaderCheck.NO_MATCH) {
+            oldHeaderStart = Preamble.length(prefix, length);
+            if (oldHeaderStart > 0) {
+                oldHeaderEnd = 
+                    matcher.headerEnd(prefix, oldHeaderStart, length, endOfFile);
+            }
+        }
+        if (oldHeaderEnd == HeaderCheck.NO_MATCH
+                || Arrays.equals( header, 
+                                    Arrays.copyOfRange(prefix, 
+                                                        oldHeaderStart, 
+                                                        oldHeaderEnd) ) ) {
+            return false;
+        }
+        
+        long written;
+        if (oldHeaderEnd - oldHeaderStart == header.length) {
+            overwrite(file, header, oldHeaderStart);
+            written = header.length;
+        } else {
+            written = rewrite(file, 
+                                Arrays.copyOf(prefix, oldHeaderStart), 
+                                header, 
+                                oldHeaderEnd);
+        }
+        metrics.fileWritten(written, System.nanoTime() - start);
+        
+        return true;
+    }
+    
+    /**
+     * Writes the new header over the old one, leaving the rest of 
+     * the file where it is
+     */
+    private void overwrite(File file, byte[] header, long position)
+    throws IOException {
+        
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = out.getChannel();
+            ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+            while ( headerBuffer.hasRemaining() ) {
+                position += channel.write(headerBuffer, position);
+            }
+        } finally {
+            out.close();
+        }
+    }
+    
+    /**
+     * Streams any preamble, the new header, then everything after the 
+     * old header, into a new copy of the file that replaces the original
+     * 
+     * @return The size of the new copy
+     */
+    private long rewrite(File file, 
+                            byte[] preamble, 
+                            byte[] header, 
+                            long oldHeaderEnd)
+    throws IOException {
+        
+        FileInputStream in = new FileInputStream(file);
+        File target = null;
+        File tmpFile = null;
+        long written;
+        try {
+            target = HeaderInserter.resolve(file);
+            tmpFile = File.createTempFile("." + target.getName(), 
+                                            ".tmp", 
+                                            target.getParentFile() );
+            FileOutputStream out = new FileOutputStream(tmpFile);
+            try {
+                FileChannel channel = out.getChannel();
+                HeaderInserter.write(preamble, preamble.length, channel);
+                HeaderInserter.write(header, header.length, channel);
+                HeaderInserter.copy(in.getChannel(), oldHeaderEnd, channel);
+                written = channel.size();
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            in.close();
+            if (tmpFile != null) {
+                tmpFile.delete();
+            }
+            throw e;
+        }
+        in.close();
+        
+        HeaderInserter.replace(tmpFile, target);
+        
+        return written;
+    }
+}
@@ -0,0 +1,331 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a single <code>HeaderTool</code> warm in a long-running 
+ * JVM and serves check and insert requests for named files over 
+ * a localhost TCP socket, so that frequent callers such as commit 
+ * hooks and IDE integrations pay for JVM start-up, class loading 
+ * and JIT compilation once, rather than on every call.
+ * <p>
+ * The protocol is line based UTF-8 text, one request per 
+ * connection. The client sends the server's token, then a command 
+ * (<code>CHECK</code>, <code>INSERT</code> or <code>STOP</code>), 
+ * then one absolute file path per line, then an empty line. The 
+ * server replies with one line for each file lacking the header (for 
+ * <code>CHECK</code>) or given the header (for <code>INSERT</code>), 
+ * then <code>OK</code>; or with <code>ERROR</code> and a message if 
+ * the request failed.
+ * <p>
+ * The socket is only bound to the loopback interface, but any local 
+ * user could connect to it, so each request must carry a random 
+ * token that the server writes on start-up to a file only its owner 
+ * can read. Requests are handled one at a time, in the order they 
+ * arrive, so an insert never races with a check of the same file, 
+ * and a client that stops sending is dropped after a timeout.
+ * 
+ * @see HeaderClient
+ * 
+ * @author Michael Fitzmaurice
+ */
+public class HeaderServer {
+    
+    public static final String SERVER_PORT_SYS_PROP = "server-port";
+    public static final String SERVER_TOKEN_FILE_SYS_PROP = 
+        "server-token-file";
+    public static final int DEFAULT_PORT = 7341;
+    
+    static final String CHECK = "CHECK";
+    static final String INSERT = "INSERT";
+    static final String STOP = "STOP";
+    static final String OK = "OK";
+    static final String ERROR = "ERROR ";
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    private static final int DEFAULT_REQUEST_TIMEOUT_MILLIS = 30000;
+    private static final int TOKEN_BYTES = 32;
+    private static final transient Logger LOG = 
+            LoggerFactory.getLogger(HeaderServer.class); 
+    
+    private final HeaderTool headerTool;
+    private final ServerSocket serverSocket;
+    private final File tokenFile;
+    private final byte[] token;
+    private int requestTimeoutMillis = DEFAULT_REQUEST_TIMEOUT_MILLIS;
+    
+    /**
+     * @param headerTool The tool to handle requests with
+     * @param port The localhost port to listen on, or 0 for any 
+     *          free port
+     * @param tokenFile Where to write the token clients must send, 
+     *          readable only by the current user; replaced if it 
+     *          already exists, and deleted when the server is closed
+     * @throws IOException If the port cannot be bound, or the token 
+     *          file cannot be written
+     */
+    public HeaderServer(HeaderTool headerTool, int port, File tokenFile) 
+    throws IOException {
+        
+        this.headerTool = headerTool;
+        this.tokenFile = tokenFile;
+        this.token = newToken();
+        this.serverSocket = new ServerSocket();
+        // bound first, so a server already on the port keeps its token
+        serverSocket.bind( 
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), port) );
+        try {
+            writeToken(tokenFile, token);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+    
+    private static byte[] newToken() {
+        
+        byte[] random = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(random);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : random) {
+            hex.append( String.format("%02x", b & 0xff) );
+        }
+        
+        return hex.toString().getBytes(UTF8);
+    }
+    
+    /**
+     * Creates the token file afresh, so that it cannot be a file or 
+     * link planted by someone else, with owner only permissions from 
+     * the moment it exists where the file system supports them
+     */
+    private static void writeToken(File tokenFile, byte[] token) 
+    throws IOException {
+        
+        Path path = tokenFile.toPath();
+        Files.deleteIfExists(path);
+        try {
+            Files.createFile( path, 
+                            PosixFilePermissions.asFileAttribute( 
+                                PosixFilePermissions.fromString("rw-------") ) );
+        } catch (UnsupportedOperationException e) {
+            // not a POSIX file system, so rely on the permissions of 
+            // the directory, which is the user's home by default
+            Files.createFile(path);
+        }
+        Files.write(path, token);
+    }
+    
+    /**
+     * @param millis How long to wait for a client to send each part 
+     *          of its request before dropping it
+     */
+    void setRequestTimeout(int millis) {
+        this.requestTimeoutMillis = millis;
+    }
+    
+    /**
+     * @return The port the server is listening on
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+    
+    /**
+     * Handles requests on the calling thread until a client sends 
+     * <code>STOP</code> or the server is closed.
+     * 
+     * @throws IOException If the server socket fails
+     */
+    public void serve() 
+    throws IOException {
+        
+        LOG.info("Header server listening on port {}", getPort() );
+        try {
+            boolean running = true;
+            while (running) {
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (SocketException e) {
+                    if ( serverSocket.isClosed() ) {
+                        break;
+                    }
+                    throw e;
+                }
+                try {
+                    socket.setSoTimeout(requestTimeoutMillis);
+                    running = handle(socket);
+                } catch (IOException e) {
+                    LOG.warn("Failed to handle request", e);
+                } finally {
+                    socket.close();
+                }
+            }
+        } finally {
+            close();
+        }
+        LOG.info("Header server stopped");
+    }
+    
+    /**
+     * Stops accepting requests, and deletes the token file.
+     * 
+     * @throws IOException If the server socket cannot be closed
+     */
+    public void close() 
+    throws IOException {
+        
+        try {
+            serverSocket.close();
+        } finally {
+            Files.deleteIfExists( tokenFile.toPath() );
+        }
+    }
+    
+    /**
+     * @return False if the client asked the server to stop
+     */
+    private boolean handle(Socket socket) 
+    throws IOException {
+        
+        BufferedReader in = 
+            new BufferedReader( 
+                new InputStreamReader(socket.getInputStream(), UTF8) );
+        Writer out = new OutputStreamWriter(socket.getOutputStream(), UTF8);
+        String clientToken = in.readLine();
+        String command = in.readLine();
+        List<File> files = new ArrayList<File>();
+        String line = in.readLine();
+        while (line != null && line.isEmpty() == false) {
+            files.add( new File(line) );
+            line = in.readLine();
+        }
+        LOG.debug("Received {} for {} files", command, files.size() );
+        
+        boolean running = true;
+        try {
+            List<File> results;
+            if ( authorised(clientToken) == false ) {
+                throw new IOException("Missing or wrong server token");
+            } else if ( CHECK.equals(command) ) {
+                results = headerTool.filterFilesWithoutHeader(files);
+            } else if ( INSERT.equals(command) ) {
+                results = headerTool.filterFilesWithoutHeader(files);
+                headerTool.insertHeader(results);
+            } else if ( STOP.equals(command) ) {
+                results = files;
+                running = false;
+            } else {
+                throw new IOException("Unknown command '" + command + "'");
+            }
+            for (File file : results) {
+                out.write( file.getPath() );
+                out.write('\n');
+            }
+            out.write(OK);
+        } catch (IOException e) {
+            LOG.warn("Failed to handle " + command + " request", e);
+            out.write( ERROR + singleLine(e) );
+        } catch (RuntimeException e) {
+            LOG.error("Failed to handle " + command + " request", e);
+            out.write( ERROR + singleLine(e) );
+        }
+        out.write('\n');
+        out.flush();
+        
+        return running;
+    }
+    
+    private boolean authorised(String clientToken) {
+        
+        // compared in constant time, so the token cannot be guessed 
+        // a byte at a time from how long a refusal takes
+        return clientToken != null
+                && MessageDigest.isEqual( token, clientToken.getBytes(UTF8) );
+    }
+    
+    /**
+     * @return The message of an exception, with any line breaks that 
+     *          would end the reply early replaced by spaces
+     */
+    private static String singleLine(Exception e) {
+        
+        String message = e.getMessage();
+        if (message == null) {
+            message = e.getClass().getName();
+        }
+        
+        return message.replaceAll("[\\r\\n]+", " ");
+    }
+    
+    /**
+     * Runs a Header Server until a client stops it. Takes the same 
+     * system properties as {@link HeaderTool#main(String[])}, other 
+     * than <code>insert-mode</code> and <code>changed-since</code>,
+     * which clients choose per request, plus the port to listen on. 
+     * The tool's metrics stay registered with JMX for as long as the 
+     * server runs.
+     * 
+     * <pre>
+     *      -Dserver-port=7341
+     *      -Dserver-token-file=/path/to/token
+     * </pre>
+     * 
+     * The token file defaults to 
+     * <code>.header-tool-server-&lt;port&gt;.token</code> in the 
+     * user's home directory.
+     * 
+     * @param args Runtime arguments, which must include the full 
+     *          path to the header file, or several header files 
+     *          separated by the platform path separator
+     * 
+     * @throws IOException If the server cannot be started
+     */
+    public static void main(String[] args) throws IOException {
+        
+        HeaderTool headerTool = HeaderTool.fromSystemProperties( args[0] );
+        int port = Integer.getInteger(SERVER_PORT_SYS_PROP, DEFAULT_PORT);
+        headerTool.registerMetrics();
+        new HeaderServer(headerTool, 
+                        port, 
+                        HeaderClient.tokenFileFromSystemProperties(port) )
+            .serve();
+    }
+}
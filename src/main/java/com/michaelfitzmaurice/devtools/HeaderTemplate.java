@@ -0,0 +1,158 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The text of a header, split into literal text and placeholders 
+ * for the parts that legitimately vary from file to file:
+ * 
+ * <ul>
+ *   <li><code>${year}</code> - a four digit year</li>
+ *   <li><code>${yearRange}</code> - a year, optionally followed by a 
+ *       second year after <code>-</code>, <code>,</code> or 
+ *       <code>, </code></li>
+ *   <li><code>${author}</code> - any text up to the end of the line</li>
+ * </ul>
+ * 
+ * A header read without placeholder support is a single literal.
+ * 
+ * @author Michael Fitzmaurice
+ */
+final class HeaderTemplate {
+    
+    /**
+     * A variable part of a header, along with the most bytes it 
+     * can occupy in a file
+     */
+    enum Placeholder {
+        
+        YEAR("year", 4), 
+        YEAR_RANGE("yearRange", 4 + 2 + 4), 
+        AUTHOR("author", 128);
+        
+        private final String name;
+        private final int maxLength;
+        
+        private Placeholder(String name, int maxLength) {
+            this.name = name;
+            this.maxLength = maxLength;
+        }
+        
+        int maxLength() {
+            return maxLength;
+        }
+        
+        static Placeholder named(String name) {
+            
+            for ( Placeholder placeholder : values() ) {
+                if ( placeholder.name.equals(name) ) {
+                    return placeholder;
+                }
+            }
+            throw new IllegalArgumentException(
+                        "Unknown header placeholder ${" + name + "}");
+        }
+    }
+    
+    private static final String OPEN = "${";
+    private static final String CLOSE = "}";
+    
+    // each segment is either a literal String or a Placeholder
+    private final List<Object> segments;
+    
+    private HeaderTemplate(List<Object> segments) {
+        this.segments = Collections.unmodifiableList(segments);
+    }
+    
+    /**
+     * @param text A header to be matched exactly
+     */
+    static HeaderTemplate literal(String text) {
+        
+        List<Object> segments = new ArrayList<Object>();
+        segments.add(text);
+        
+        return new HeaderTemplate(segments);
+    }
+    
+    /**
+     * @param text A header that may contain placeholders
+     * @throws IllegalArgumentException If the text contains an 
+     *          unknown or unterminated placeholder
+     */
+    static HeaderTemplate parse(String text) {
+        
+        List<Object> segments = new ArrayList<Object>();
+        int start = 0;
+        int open = text.indexOf(OPEN);
+        while (open >= 0) {
+            int close = text.indexOf( CLOSE, open + OPEN.length() );
+            if (close < 0) {
+                throw new IllegalArgumentException(
+                            "Unterminated header placeholder at '" 
+                            + text.substring(open) + "'");
+            }
+            if (open > start) {
+                segments.add( text.substring(start, open) );
+            }
+            String name = text.substring(open + OPEN.length(), close);
+            segments.add( Placeholder.named(name) );
+            start = close + CLOSE.length();
+            open = text.indexOf(OPEN, start);
+        }
+        if ( start < text.length() ) {
+            segments.add( text.substring(start) );
+        }
+        
+        return new HeaderTemplate(segments);
+    }
+    
+    /**
+     * @return The literal Strings and Placeholders making up the 
+     *          header, in order
+     */
+    List<Object> segments() {
+        return segments;
+    }
+    
+    /**
+     * Fills in the placeholders to give a header suitable for 
+     * inserting into a file.
+     * 
+     * @param year Replaces both <code>${year}</code> and 
+     *          <code>${yearRange}</code>
+     * @param author Replaces <code>${author}</code>
+     */
+    String render(String year, String author) {
+        
+        StringBuilder rendered = new StringBuilder();
+        for (Object segment : segments) {
+            if (segment == Placeholder.AUTHOR) {
+                rendered.append(author);
+            } else if (segment instanceof Placeholder) {
+                rendered.append(year);
+            } else {
+                rendered.append(segment);
+            }
+        }
+        
+        return rendered.toString();
+    }
+}
@@ -16,26 +16,49 @@
 package com.michaelfitzmaurice.devtools;
 
 import static java.util.Arrays.asList;
-import static org.apache.commons.io.FileUtils.listFiles;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.michaelfitzmaurice.devtools.ScanListener.SkipReason;
+
 /**
  * Reports on files in a given directory that do not contain
  * a specified header. Lists files recursively, with optional
  * filtering based on file extension. Can also be run in
  * insert mode, whereby it will insert the header at the 
- * beginning of any file that lacks it. 
+ * beginning of any file that lacks it, or in replace mode, 
+ * whereby it will bring an out of date header up to date. 
  * <p>
  * Also includes the option to match only against the first 
  * line of the header, which I included because the licence 
@@ -53,24 +76,81 @@ import org.slf4j.LoggerFactory;
 public class HeaderTool {
     
     /**
-     * Determines how the match against the header will be carried out
+     * Determines how the match against the header will be carried out. 
+     * <code>TEMPLATE</code> matches the full header, treating 
+     * <code>${year}</code>, <code>${yearRange}</code> and 
+     * <code>${author}</code> in the header file as placeholders for 
+     * text that may differ from file to file.
+     */
+    public enum MatchMode { FULL_MATCH, FIRST_LINE_ONLY, TEMPLATE };
+    
+    /**
+     * Determines whether files are checked on the calling thread, 
+     * in parallel across a pool of worker threads, or with many reads 
+     * in flight at once for high latency file systems such as NFS
      */
-    public enum MatchMode { FULL_MATCH, FIRST_LINE_ONLY };
+    public enum ScanMode { SERIAL, PARALLEL, ASYNC };
     
     public static final String INSERT_MODE_SYS_PROP = "insert-mode";
+    public static final String REPLACE_MODE_SYS_PROP = "replace-mode";
+    public static final String OUTPUT_FORMAT_SYS_PROP = "output-format";
+    public static final String NDJSON_OUTPUT_FORMAT = "ndjson";
+    public static final String PATCH_FILE_SYS_PROP = "patch-file";
+    public static final String STANDARD_OUT = "-";
     public static final String FIRST_LINE_MATCH_SYS_PROP = "first-line-match";
+    public static final String COMMENT_STYLES_SYS_PROP = "comment-styles";
+    public static final String COMMENT_STYLE_MAP_SYS_PROP = "comment-style-map";
+    public static final String INSERT_THREADS_SYS_PROP = "insert-threads";
+    public static final String INSERT_JOURNAL_SYS_PROP = "insert-journal";
+    public static final String INSERT_GROUP_SIZE_SYS_PROP = "insert-group-size";
+    public static final int DEFAULT_INSERT_GROUP_SIZE = 
+        InsertJournal.DEFAULT_GROUP_SIZE;
+    public static final String PARALLEL_SCAN_SYS_PROP = "parallel-scan";
+    public static final String TEMPLATE_MATCH_SYS_PROP = "template-match";
+    public static final String TEMPLATE_AUTHOR_SYS_PROP = "template-author";
+    public static final String ASYNC_SCAN_SYS_PROP = "async-scan";
+    public static final int DEFAULT_ASYNC_READS = 128;
+    public static final String SCAN_THREADS_SYS_PROP = "scan-threads";
+    public static final String SCAN_INDEX_SYS_PROP = "scan-index";
+    public static final String CHANGED_SINCE_SYS_PROP = "changed-since";
     public static final String WILDCARD_FILE_EXTENSION = "*";
+    public static final String EXCLUDE_FILE_SYS_PROP = "exclude-file";
+    public static final String EXCLUDE_SYS_PROP = "exclude";
+    public static final String MAX_FILE_SIZE_SYS_PROP = "max-file-size";
+    public static final long DEFAULT_MAX_FILE_SIZE = 16 * 1024 * 1024;
+    public static final String RESULT_MEMORY_SYS_PROP = "result-memory";
+    public static final String SCAN_ARCHIVES_SYS_PROP = "scan-archives";
+    public static final long DEFAULT_RESULT_MEMORY = 
+        ResultStore.DEFAULT_MEMORY_THRESHOLD;
+    public static final String METRICS_MBEAN_NAME = 
+        "com.michaelfitzmaurice.devtools:type=ScanMetrics";
+    
+    static final String SUMMARY_PREFIX = "header-tool-summary ";
     
     private static final String NEWLINE = System.getProperty("line.separator"); 
     private static final transient Logger LOG = 
             LoggerFactory.getLogger(HeaderTool.class); 
     
-    private final File headerFile;
-    private final String header;
+    private final List<File> headerFiles;
+    private final List<String> headers;
     private final MatchMode matchMode;
+    private Map<String, CommentStyle> commentStyles = 
+        Collections.emptyMap();
+    private FileTypeCache<HeaderMatcher> headerMatchers;
+    private final ScanMode scanMode;
+    private final int scanThreads;
+    private final ScanMetrics metrics;
+    private ScanPools sharedPools;
+    private File scanIndexFile;
+    private long maxFileSize = DEFAULT_MAX_FILE_SIZE;
+    private long resultMemoryThreshold = DEFAULT_RESULT_MEMORY;
+    private boolean scanArchives;
+    private ExclusionRules exclusions = ExclusionRules.NONE;
+    private String templateAuthor = System.getProperty("user.name");
     
     /**
-     * Constructs a new instance of <code> HeaderTool</code>.
+     * Constructs a new instance of <code> HeaderTool</code> that 
+     * scans serially, on the calling thread.
      * 
      * @param headerFile The file containing the header to check against
      * @param mode Whether to look for the entire header text, or just
@@ -80,26 +160,148 @@ public class HeaderTool {
      *         containing the header
      */
     public HeaderTool(File headerFile, MatchMode mode) 
+    throws IOException {
+        this(headerFile, mode, ScanMode.SERIAL, 1);
+    }
+    
+    /**
+     * Constructs a new instance of <code> HeaderTool</code>.
+     * 
+     * @param headerFile The file containing the header to check against
+     * @param mode Whether to look for the entire header text, or just
+     *        the first line
+     * @param scanMode Whether to check files serially or in parallel
+     * @param scanThreads The number of worker threads to use when 
+     *        scanning in parallel, or the most reads to have in flight
+     *        when scanning asynchronously; ignored for serial scans
+     * 
+     * @throws IOException If something goes wrong reading the file 
+     *         containing the header
+     */
+    public HeaderTool(File headerFile, 
+                        MatchMode mode, 
+                        ScanMode scanMode, 
+                        int scanThreads) 
+    throws IOException {
+        this(Collections.singletonList(headerFile), mode, scanMode, scanThreads);
+    }
+    
+    /**
+     * Constructs a new instance of <code> HeaderTool</code> that 
+     * accepts any one of several headers. All of the headers are 
+     * matched in a single pass over the start of each file. The 
+     * first header in the list is the one that gets inserted.
+     * 
+     * @param headerFiles The files containing the headers to check 
+     *        against, the header to insert first
+     * @param mode Whether to look for the entire header text, or just
+     *        the first line
+     * @param scanMode Whether to check files serially or in parallel
+     * @param scanThreads The number of worker threads to use when 
+     *        scanning in parallel, or the most reads to have in flight
+     *        when scanning asynchronously; ignored for serial scans
+     * 
+     * @throws IOException If something goes wrong reading any of the 
+     *         files containing the headers
+     */
+    public HeaderTool(List<File> headerFiles, 
+                        MatchMode mode, 
+                        ScanMode scanMode, 
+                        int scanThreads) 
+    throws IOException {
+        this( headerFiles, mode, scanMode, scanThreads, new ScanMetrics() );
+    }
+    
+    /**
+     * As {@link #HeaderTool(List, MatchMode, ScanMode, int)}, but 
+     * adding to metrics that may be shared with other instances.
+     */
+    HeaderTool(List<File> headerFiles, 
+                MatchMode mode, 
+                ScanMode scanMode, 
+                int scanThreads,
+                ScanMetrics metrics) 
     throws IOException {
         
-        this.headerFile = headerFile;
-        this.header = fileContents(headerFile);
+        if ( headerFiles.isEmpty() ) {
+            throw new IllegalArgumentException(
+                        "At least one header file is required");
+        }
+        if (scanMode != ScanMode.SERIAL && scanThreads < 1) {
+            throw new IllegalArgumentException(
+                        "Scan thread count must be at least 1, not " 
+                        + scanThreads);
+        }
+        this.metrics = metrics;
+        this.headerFiles = new ArrayList<File>(headerFiles);
+        this.headers = new ArrayList<String>();
+        for (File headerFile : headerFiles) {
+            headers.add( fileContents(headerFile) );
+        }
         this.matchMode = mode;
+        this.headerMatchers = 
+            matcherCache(mode == MatchMode.FIRST_LINE_ONLY);
+        this.scanMode = scanMode;
+        this.scanThreads = scanThreads;
+    }
+    
+    /**
+     * Copies the headers, compiled matchers, metrics and settings of 
+     * another instance
+     */
+    private HeaderTool(HeaderTool original) {
+        
+        this.headerFiles = original.headerFiles;
+        this.headers = original.headers;
+        this.matchMode = original.matchMode;
+        this.commentStyles = original.commentStyles;
+        this.headerMatchers = original.headerMatchers;
+        this.scanMode = original.scanMode;
+        this.scanThreads = original.scanThreads;
+        this.metrics = original.metrics;
+        this.sharedPools = original.sharedPools;
+        this.scanIndexFile = original.scanIndexFile;
+        this.maxFileSize = original.maxFileSize;
+        this.exclusions = original.exclusions;
+        this.templateAuthor = original.templateAuthor;
+        this.resultMemoryThreshold = original.resultMemoryThreshold;
+        this.scanArchives = original.scanArchives;
+    }
+    
+    /**
+     * Creates an instance that matches the same headers as this one, 
+     * using the automata already compiled for them, so that, for 
+     * example, each module of a multi-module build can be checked 
+     * with settings of its own without reading and compiling the 
+     * headers again. The copy starts with this instance's settings, 
+     * and changing them afterwards affects only the copy; changing 
+     * the comment styles compiles new matchers for the copy alone. 
+     * Both count their work in the same metrics. Copies may be used 
+     * on different threads at once.
+     * 
+     * @return A new instance sharing this one's compiled headers
+     */
+    public HeaderTool copy() {
+        return new HeaderTool(this);
     }
     
     /**
      * Recursively searches a directory for files matching a
      * given list of file extensions that do not begin with
-     * the string found in the header file.
+     * the string found in the header file (or any of the header 
+     * files, if there are several).
      * 
-     * @param rootDir The directory to begin the search from
+     * @param rootDir The directory to begin the search from, or a 
+     *          zip, jar or tar archive to check the entries of (see 
+     *          {@link #setScanArchives(boolean)})
      * @param fileExtensions an array of extensions, e.g. {"java","xml"}. 
      *          If this parameter is null, all headerless files are 
      *          returned, regardless of file extension.
      * 
      * @return The files that do not begin with the header string (or
      *         first line of the header string, if MatchMode.FIRST_LINE_ONLY
-     *         was specified at construction time).
+     *         was specified at construction time), sorted by path. Every
+     *         scan mode returns the same list for the same tree.
      * 
      * @throws IOException If something goes wrong reading the content
      *         of any of the files being scanned
@@ -107,39 +309,615 @@ public class HeaderTool {
     public Collection<File> listFilesWithoutHeader(File rootDir, 
                                             String[] fileExtensions)
     throws IOException {
+        return listFilesWithoutHeader(rootDir, fileExtensions, null);
+    }
+    
+    /**
+     * As {@link #listFilesWithoutHeader(File, String[])}, but also 
+     * passing the result for each file to a listener as soon as it 
+     * is known, in place of logging it.
+     * 
+     * @param observer Told about each file as it is checked, from 
+     *          several threads at once in parallel and asynchronous 
+     *          scans; or null to log each file instead
+     */
+    List<File> listFilesWithoutHeader(File rootDir, 
+                                        String[] fileExtensions,
+                                        ScanListener observer)
+    throws IOException {
+        
+        List<File> filesWithNoHeader = new ArrayList<File>();
+        scan(rootDir, fileExtensions, observer, filesWithNoHeader);
+        Collections.sort(filesWithNoHeader);
+        
+        return filesWithNoHeader;
+    }
+    
+    /**
+     * Recursively searches a directory for files lacking the header, 
+     * as {@link #listFilesWithoutHeader(File, String[])} does, but 
+     * holding the results compactly, and on disk beyond the threshold 
+     * set by {@link #setResultMemoryThreshold(long)}, so that trees of 
+     * many millions of files can be scanned in a small heap. Iterating 
+     * the results gives the files sorted by path, just as the list 
+     * would hold them.
+     * 
+     * @param rootDir The directory to begin the search from
+     * @param fileExtensions an array of extensions, e.g. {"java","xml"}. 
+     *          If this parameter is null, all headerless files are 
+     *          returned, regardless of file extension.
+     * 
+     * @return The files that do not begin with the header; must be 
+     *          closed once finished with, to delete anything written 
+     *          to disk
+     * 
+     * @throws IOException If something goes wrong reading the content
+     *         of any of the files being scanned
+     */
+    public ResultStore collectFilesWithoutHeader(File rootDir, 
+                                                String[] fileExtensions)
+    throws IOException {
+        return collectFilesWithoutHeader(rootDir, fileExtensions, null);
+    }
+    
+    /**
+     * As {@link #collectFilesWithoutHeader(File, String[])}, but also 
+     * passing the result for each file to a listener as soon as it 
+     * is known, in place of logging it.
+     */
+    ResultStore collectFilesWithoutHeader(File rootDir, 
+                                            String[] fileExtensions,
+                                            ScanListener observer)
+    throws IOException {
+        
+        ResultStore filesWithNoHeader = 
+            new ResultStore(rootDir, resultMemoryThreshold, null);
+        try {
+            scan(rootDir, fileExtensions, observer, filesWithNoHeader);
+        } catch (IOException e) {
+            filesWithNoHeader.close();
+            throw e;
+        } catch (RuntimeException e) {
+            filesWithNoHeader.close();
+            throw e;
+        }
+        
+        return filesWithNoHeader;
+    }
+    
+    /**
+     * Scans in whichever mode was chosen at construction time, adding 
+     * each file found without the header to the given collection, 
+     * from several threads at once in parallel and asynchronous scans
+     */
+    private void scan(File rootDir, 
+                        String[] fileExtensions,
+                        ScanListener observer,
+                        Collection<File> filesWithNoHeader)
+    throws IOException {
         
         LOG.debug("Searching {} for files of type {} lacking header from {}", 
                     new Object[] {
                         rootDir, 
                         fileExtensions, 
-                        headerFile});
+                        headerFiles});
         
-        List<File> filesWithNoHeader = new ArrayList<File>();
-        String toMatch = header;
-        if (matchMode == MatchMode.FIRST_LINE_ONLY) {
-            String firstLineOfHeader = header.split(NEWLINE)[0];
-            LOG.debug("Matching only against first line of header: '{}'", 
-                        firstLineOfHeader);
-            toMatch = firstLineOfHeader;
+        checkScanRoot(rootDir);
+        ResultCollector results = new ResultCollector(filesWithNoHeader);
+        ScanListener listener = loggingListener(results);
+        if (observer != null) {
+            listener = tee(observer, results);
+        }
+        if ( rootDir.isFile() ) {
+            // an archive, which is read in a single pass
+            scanSerially(rootDir, fileExtensions, listener);
+        } else if (scanMode == ScanMode.PARALLEL) {
+            LOG.debug("Scanning in parallel using {} threads", scanThreads);
+            long start = System.nanoTime();
+            ScanIndex index = openScanIndex();
+            ScanPools pools = scanPools();
+            try {
+                ParallelScanner scanner = 
+                    new ParallelScanner(headerCheck(index, 
+                                                    fileExtensions, 
+                                                    listener), 
+                                        headerFiles, 
+                                        pools.forkJoinPool(),
+                                        metrics );
+                scanner.scan(rootDir, 
+                            new FileExtensionFilter(fileExtensions, 
+                                                    scanArchives), 
+                            exclusions,
+                            listener );
+            } finally {
+                releaseScanPools(pools);
+            }
+            saveScanIndex(index, rootDir);
+            metrics.scanned(System.nanoTime() - start);
+        } else if (scanMode == ScanMode.ASYNC) {
+            LOG.debug("Scanning with up to {} reads in flight", scanThreads);
+            long start = System.nanoTime();
+            ScanIndex index = openScanIndex();
+            ScanPools pools = scanPools();
+            try {
+                AsyncScanner scanner = 
+                    new AsyncScanner(headerCheck(index, 
+                                                fileExtensions, 
+                                                listener), 
+                                    headerFiles, 
+                                    pools.ioPool(),
+                                    scanThreads,
+                                    metrics);
+                scanner.scan(rootDir, 
+                            new FileExtensionFilter(fileExtensions, 
+                                                    scanArchives), 
+                            exclusions,
+                            listener );
+            } finally {
+                releaseScanPools(pools);
+            }
+            saveScanIndex(index, rootDir);
+            metrics.scanned(System.nanoTime() - start);
+        } else {
+            scanSerially(rootDir, fileExtensions, listener);
         }
         
-        Collection<File> filesInDir = listFiles(rootDir, fileExtensions, true);
-        for (File file : filesInDir) {
-            if (fileContents(file).startsWith(toMatch) == false) {
-                LOG.debug("{} does not start with the header", file);
-                filesWithNoHeader.add(file);
+        if (headerFiles.size() > 1) {
+            for (File headerFile : headerFiles) {
+                Integer count = results.headerCounts.get(headerFile);
+                LOG.info("Found {} files that begin with the header from {}", 
+                            count == null ? 0 : count, 
+                            headerFile);
             }
         }
+        for ( Map.Entry<SkipReason, Integer> skipped : 
+                results.skipCounts.entrySet() ) {
+            LOG.info("Skipped {} {} files", 
+                        skipped.getValue(), 
+                        skipped.getKey() );
+        }
         LOG.info("Found {} files that lack the header", 
                     filesWithNoHeader.size());
+    }
+    
+    /**
+     * Recursively searches a directory for files matching a
+     * given list of file extensions, checking whether each begins 
+     * with the string found in the header file (or which of the 
+     * header files, if there are several), and passing each result 
+     * to a listener as soon as it is known. Unlike 
+     * {@link #listFilesWithoutHeader(File, String[])}, this holds 
+     * neither the list of files to check nor the list of results 
+     * in memory, so the first result arrives almost immediately and 
+     * memory use does not grow with the size of the tree. 
+     * <p>
+     * The scan always runs on the calling thread, whatever the 
+     * scan mode, and files are reported in the order the walk 
+     * reaches them.
+     * 
+     * @param rootDir The directory to begin the search from
+     * @param fileExtensions an array of extensions, e.g. {"java","xml"}. 
+     *          If this parameter is null, all files are checked, 
+     *          regardless of file extension.
+     * @param listener Told about each file as it is checked
+     * 
+     * @throws IOException If something goes wrong reading the content
+     *         of any of the files being scanned, or the listener fails
+     */
+    public void scanForFilesWithoutHeader(File rootDir, 
+                                            String[] fileExtensions,
+                                            ScanListener listener)
+    throws IOException {
+        
+        scanSerially(rootDir, fileExtensions, loggingListener(listener) );
+    }
+    
+    private void scanSerially(File rootDir, 
+                                String[] fileExtensions,
+                                ScanListener listener)
+    throws IOException {
+        
+        checkScanRoot(rootDir);
+        long start = System.nanoTime();
+        if ( rootDir.isFile() ) {
+            archiveScanner(fileExtensions).scan(rootDir, listener);
+            metrics.scanned(System.nanoTime() - start);
+            return;
+        }
+        ScanIndex index = openScanIndex();
+        SerialScanner scanner = 
+            new SerialScanner(headerCheck(index, fileExtensions, listener), 
+                                headerFiles,
+                                metrics);
+        scanner.scan(rootDir, 
+                    new FileExtensionFilter(fileExtensions, scanArchives), 
+                    exclusions,
+                    listener);
+        saveScanIndex(index, rootDir);
+        metrics.scanned(System.nanoTime() - start);
+    }
+    
+    /**
+     * @throws IllegalArgumentException If the root is neither a 
+     *          directory nor an archive, so that a mistyped path is 
+     *          not reported as a tree with every header in place
+     */
+    private static void checkScanRoot(File rootDir) {
+        
+        if ( rootDir.isDirectory() == false 
+                && ( rootDir.isFile() == false 
+                    || ArchiveScanner.isArchive( rootDir.getName() ) == false ) ) {
+            throw new IllegalArgumentException( 
+                        "Not a directory or archive: " + rootDir);
+        }
+    }
+    
+    /**
+     * The opposite of {@link #listFilesWithoutHeader(File, String[])}: 
+     * recursively searches a directory for files that do begin with 
+     * the header, or any of the headers, for example to find the 
+     * headers to replace. The scan always runs on the calling thread.
+     * 
+     * @param rootDir The directory to begin the search from
+     * @param fileExtensions an array of extensions, e.g. {"java","xml"}. 
+     *          If this parameter is null, all files with a header are 
+     *          returned, regardless of file extension.
+     * 
+     * @return The files that begin with a header, sorted by path
+     * 
+     * @throws IOException If something goes wrong reading the content
+     *         of any of the files being scanned
+     */
+    public List<File> listFilesWithHeader(File rootDir, 
+                                            String[] fileExtensions)
+    throws IOException {
+        
+        final List<File> filesWithHeader = new ArrayList<File>();
+        scanForFilesWithoutHeader(rootDir, 
+                                fileExtensions, 
+                                new ScanListener() {
+            @Override
+            public void headerFound(File file, File headerFile) {
+                filesWithHeader.add(file);
+            }
+            
+            @Override
+            public void headerMissing(File file) {
+                // only interested in files with a header
+            }
+            
+            @Override
+            public void fileSkipped(File file, SkipReason reason) {
+                // only interested in files with a header
+            }
+        });
+        Collections.sort(filesWithHeader);
+        LOG.info("Found {} files that begin with a header", 
+                    filesWithHeader.size() );
+        
+        return filesWithHeader;
+    }
+    
+    /**
+     * Like {@link #listFilesWithoutHeader(File, String[])}, but only 
+     * checks files that have been added or modified relative to a 
+     * given commit, according to the local Git repository that 
+     * <code>rootDir</code> belongs to. Committed, staged and unstaged 
+     * changes all count, as do untracked files that are not ignored, 
+     * so the number of files read depends on the size of the change 
+     * rather than the size of the tree.
+     * 
+     * @param rootDir A directory inside a Git working tree
+     * @param fileExtensions an array of extensions, e.g. {"java","xml"}. 
+     *          If this parameter is null, all changed headerless files 
+     *          are returned, regardless of file extension.
+     * @param baseRef The commit to compare against, e.g. "origin/master"; 
+     *          "HEAD" gives only the uncommitted changes
+     * 
+     * @return The changed files that do not begin with the header, 
+     *          sorted by path
+     * 
+     * @throws IOException If <code>rootDir</code> is not in a Git working 
+     *          tree, the commit cannot be found, or something goes wrong 
+     *          reading the repository or any of the files being scanned
+     */
+    public Collection<File> listChangedFilesWithoutHeader(
+                                                File rootDir, 
+                                                String[] fileExtensions,
+                                                String baseRef)
+    throws IOException {
+        return listChangedFilesWithoutHeader(rootDir, 
+                                            fileExtensions, 
+                                            baseRef, 
+                                            null);
+    }
+    
+    /**
+     * As {@link #listChangedFilesWithoutHeader(File, String[], String)}, 
+     * but also passing the result for each changed file to a listener 
+     * as soon as it is known.
+     * 
+     * @param observer Told about each changed file as it is checked, 
+     *          or null
+     */
+    List<File> listChangedFilesWithoutHeader(File rootDir, 
+                                            String[] fileExtensions,
+                                            String baseRef,
+                                            ScanListener observer)
+    throws IOException {
+        
+        LOG.debug("Searching {} for files of type {} changed since {} " 
+                    + "lacking header from {}", 
+                    new Object[] {
+                        rootDir, 
+                        fileExtensions, 
+                        baseRef,
+                        headerFiles});
+        
+        List<File> changedFiles = 
+            GitChangedFiles.list(rootDir, 
+                                baseRef, 
+                                new FileExtensionFilter(fileExtensions) );
+        List<File> filesWithNoHeader = 
+            filterFilesWithoutHeader(rootDir, 
+                                    fileExtensions, 
+                                    changedFiles, 
+                                    observer);
+        LOG.info("Found {} of {} changed files that lack the header", 
+                    filesWithNoHeader.size(),
+                    changedFiles.size() );
+        
+        return filesWithNoHeader;
+    }
+    
+    /**
+     * Checks each of a given set of files, with no directory walk 
+     * and no extension filtering. Binary and oversized files are 
+     * skipped, as they are in scans.
+     * 
+     * @param files The files to check
+     * 
+     * @return Those of the files that do not begin with the header, 
+     *          in the order given
+     * 
+     * @throws IOException If something goes wrong reading any of 
+     *          the files
+     */
+    public List<File> filterFilesWithoutHeader(Collection<File> files)
+    throws IOException {
+        return filterFilesWithoutHeader(files, null);
+    }
+    
+    /**
+     * Checks each of a given set of files under a directory, such as 
+     * those a build or an editor reports as changed, skipping those 
+     * that a scan of the directory would not have checked: files 
+     * without one of the extensions, and files that are excluded, or 
+     * are in an excluded directory, relative to <code>rootDir</code>.
+     * 
+     * @param rootDir The directory the files are under
+     * @param fileExtensions an array of extensions, e.g. {"java","xml"}. 
+     *          If this parameter is null, files are checked regardless 
+     *          of file extension.
+     * @param files The files to check
+     * 
+     * @return Those of the files that are checked and do not begin 
+     *          with the header, in the order given
+     * 
+     * @throws IOException If something goes wrong reading any of 
+     *          the files
+     */
+    public List<File> filterFilesWithoutHeader(File rootDir, 
+                                                String[] fileExtensions,
+                                                Collection<File> files)
+    throws IOException {
+        return filterFilesWithoutHeader(rootDir, fileExtensions, files, null);
+    }
+    
+    private List<File> filterFilesWithoutHeader(File rootDir, 
+                                                String[] fileExtensions,
+                                                Collection<File> files,
+                                                ScanListener observer)
+    throws IOException {
+        
+        FileExtensionFilter filter = new FileExtensionFilter(fileExtensions);
+        Path rootPath = rootDir.toPath();
+        List<File> toCheck = new ArrayList<File>();
+        for (File file : files) {
+            if ( filter.accept( file.getName() ) == false ) {
+                continue;
+            }
+            if ( exclusions.isEmpty() == false ) {
+                String relativePath = 
+                    rootPath.relativize( file.toPath() ).toString();
+                if ( exclusions.excludesFile( 
+                        relativePath.replace(File.separatorChar, '/') ) ) {
+                    continue;
+                }
+            }
+            toCheck.add(file);
+        }
+        
+        return filterFilesWithoutHeader(toCheck, observer);
+    }
+    
+    private List<File> filterFilesWithoutHeader(Collection<File> files, 
+                                                ScanListener observer)
+    throws IOException {
+        
+        long start = System.nanoTime();
+        ScanIndex index = openScanIndex();
+        HeaderCheck check = headerCheck(index);
+        List<File> filesWithNoHeader = new ArrayList<File>();
+        for (File file : files) {
+            BasicFileAttributes attrs = 
+                Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            int header = check.matchingHeader(file, attrs);
+            if (observer != null) {
+                SerialScanner.report(header, file, headerFiles, observer);
+            }
+            if (header == HeaderCheck.NO_MATCH) {
+                LOG.debug("{} does not start with the header", file);
+                filesWithNoHeader.add(file);
+            } else if (header == HeaderCheck.BINARY) {
+                LOG.info("Skipping binary file {}", file);
+            } else if (header == HeaderCheck.OVERSIZED) {
+                LOG.info("Skipping oversized file {}", file);
+            }
+        }
+        saveScanIndex(index, null);
+        metrics.scanned(System.nanoTime() - start);
         
         return filesWithNoHeader;
     }
     
+    /**
+     * Keeps the result of checking each file in an index, so that 
+     * later scans only read files whose size or modification time 
+     * has changed since. Files that are unchanged cost a single 
+     * <code>stat</code>, which the directory walk makes anyway.
+     * The index is discarded and rebuilt whenever the header or 
+     * match mode differs from the one it was built with.
+     * 
+     * @param indexFile Where to keep the index, or null to check 
+     *          every file on every scan (the default). The file need 
+     *          not exist yet; it is written at the end of each scan.
+     */
+    public void setScanIndex(File indexFile) {
+        this.scanIndexFile = indexFile;
+    }
+    
+    /**
+     * Excludes files and directories from scans, so that build 
+     * output, dependencies and version control metadata are neither 
+     * reported nor amended. Excluded directories are not entered at 
+     * all. Patterns use <code>.gitignore</code> syntax: for example 
+     * <code>target/</code>, <code>*.min.js</code>, 
+     * <code>/docs/generated/</code> or <code>!keep.txt</code>.
+     * 
+     * @param patterns One pattern per entry, applied in order so 
+     *          that later patterns override earlier ones; blank 
+     *          entries and <code>#</code> comments are ignored
+     */
+    public void setExclusions(List<String> patterns) {
+        this.exclusions = ExclusionRules.parse(patterns);
+    }
+    
+    /**
+     * Files larger than this are skipped without being opened, 
+     * and reported as oversized rather than as lacking the header. 
+     * Binary files, recognised from their first few hundred bytes, 
+     * are always skipped.
+     * 
+     * @param bytes The largest file to check, or zero for no limit;
+     *          {@link #DEFAULT_MAX_FILE_SIZE} by default
+     */
+    public void setMaxFileSize(long bytes) {
+        this.maxFileSize = bytes;
+    }
+    
+    /**
+     * Checks the entries of each zip, jar or tar archive found while 
+     * walking the tree, rather than skipping the archive as binary, 
+     * without extracting anything to disk. Each entry is reported as 
+     * a file with the path <code>archive!/entry</code>, is filtered by 
+     * extension and checked just as a file would be, and is excluded 
+     * by its path within the archive. Only the start of each entry is 
+     * read. Entries can only be reported; they cannot be amended.
+     * <p>
+     * The directory given to a scan may also be an archive, in which 
+     * case its entries are checked whether or not this is set.
+     * 
+     * @param scanArchives Whether to look inside archives; false by 
+     *          default
+     */
+    public void setScanArchives(boolean scanArchives) {
+        this.scanArchives = scanArchives;
+    }
+    
+    /**
+     * Limits the memory that 
+     * {@link #collectFilesWithoutHeader(File, String[])} and the 
+     * command line use to hold the files found without the header. 
+     * Beyond this, the paths found are sorted and written to 
+     * temporary files, to be merged back in order when read. In 
+     * memory, each path takes its whole length in UTF-8, relative to 
+     * the directory scanned, plus one to five bytes for that length 
+     * and four for its offset: about 65 bytes for a path of 60 ASCII 
+     * characters, so the default holds around a million paths before 
+     * writing any to disk. Only the copies on disk share leading 
+     * characters with the path before. The arrays holding the paths 
+     * grow by doubling, so the heap they take may briefly reach twice 
+     * the threshold.
+     * 
+     * @param bytes The encoded size the paths in memory may reach; 
+     *          {@link #DEFAULT_RESULT_MEMORY} by default
+     */
+    public void setResultMemoryThreshold(long bytes) {
+        if (bytes < 1) {
+            throw new IllegalArgumentException(
+                        "Result memory threshold must be at least 1, not " 
+                        + bytes);
+        }
+        this.resultMemoryThreshold = bytes;
+    }
+    
+    /**
+     * Treats the header files as plain text, with no comment markers, 
+     * and wraps the headers in the comment style that suits each 
+     * file's extension, both when matching and when inserting or 
+     * replacing, so that one header serves files in every language 
+     * in a single run. Each style of header is rendered, encoded and 
+     * compiled into a matcher once, the first time a file needing it 
+     * is seen. In <code>FIRST_LINE_ONLY</code> match mode, the first 
+     * line of the header is matched along with any opening line the 
+     * comment style adds, such as <code>/*</code>.
+     * 
+     * @param styles The comment style for each file extension, keyed 
+     *          by extension without the dot, e.g. 
+     *          {@link CommentStyle#defaults()}; files with any other 
+     *          extension get the header exactly as written. Empty to 
+     *          use the header exactly as written for every file (the 
+     *          default).
+     */
+    public void setCommentStyles(Map<String, CommentStyle> styles) {
+        
+        this.commentStyles = 
+            Collections.unmodifiableMap( 
+                new HashMap<String, CommentStyle>(styles) );
+        this.headerMatchers = 
+            matcherCache(matchMode == MatchMode.FIRST_LINE_ONLY);
+    }
+    
+    /**
+     * @param author The text inserted in place of <code>${author}</code>
+     *          when inserting a header in <code>TEMPLATE</code> match 
+     *          mode; defaults to the current user name
+     */
+    public void setTemplateAuthor(String author) {
+        this.templateAuthor = author;
+    }
+    
+    /**
+     * @return Running totals of the files checked and amended, and 
+     *          the time spent on each stage, across every scan and 
+     *          insert made by this instance
+     */
+    public ScanMetricsMBean getMetrics() {
+        return metrics;
+    }
+    
     /**
      * Inserts the header at the beginning of each file.
      * Does not check whether or not the header is already
-     * present.
+     * present. Each file is streamed into a new copy with the 
+     * header in front, which then atomically replaces the 
+     * original, so memory use does not depend on file size, 
+     * the original content is kept byte for byte, and an 
+     * interrupted run never leaves a file half written. In 
+     * <code>TEMPLATE</code> match mode, the inserted header has 
+     * its placeholders filled in with the current year and the 
+     * template author.
      * 
      * @param files The files to be amended
      * @throws IOException If something goes wrong reading 
@@ -149,52 +927,689 @@ public class HeaderTool {
     throws IOException {
         
         LOG.info("Inserting header from {} into {} files", 
-                    headerFile, 
+                    headerFiles.get(0), 
                     files.size() );
         
+        HeaderInserter inserter = createInserter();
         for (File file : files) {
-            String originalFileContent = fileContents(file);
-            FileWriter writer = new FileWriter(file);
-            writer.write(header);
-            writer.write(originalFileContent);
-            writer.close();
+            inserter.insert(file);
             LOG.info("Added header to {}", file);
         }
     }
     
-    private String fileContents(File file) 
-    throws IOException {
-             
-        LOG.debug("Reading contents of {}", file);
-        StringBuffer contentBuffer = new StringBuffer();
-        FileReader fileReader = new FileReader(file);
-        BufferedReader bufReader = new BufferedReader(fileReader);
-        String line = bufReader.readLine();
-        while (line != null) {
-            contentBuffer.append(line);
-            contentBuffer.append(NEWLINE);
-            line = bufReader.readLine();
-        }
-        bufReader.close();
-
-        return contentBuffer.toString();
-    }
-    
     /**
-     * Runs the Header Tool. Supports optional system properties to
-     * control the matching behaviour (default is full - see class
-     * comments) and what to do with files that do not include the 
-     * header (default is simply to report on them):
+     * Inserts the header at the beginning of each file, as 
+     * {@link #insertHeader(Collection)} does, but using several 
+     * writer threads at once, and carrying on past files that 
+     * cannot be amended rather than stopping at the first.
      * 
-     * <pre>
-     *      -Dinsert-mode=true
+     * @param files The files to be amended
+     * @param writerThreads The number of files to write at once
+     * @return The files that could not be amended, sorted by 
+     *          path, with the reason for each; empty if all of 
+     *          them were amended
+     * @throws InterruptedIOException If the calling thread is 
+     *          interrupted before all of the files are written
+     */
+    public SortedMap<File, IOException> insertHeader(Collection<File> files, 
+                                                    int writerThreads) 
+    throws InterruptedIOException {
+        
+        if (writerThreads < 1) {
+            throw new IllegalArgumentException(
+                        "Writer thread count must be at least 1, not " 
+                        + writerThreads);
+        }
+        LOG.info("Inserting header from {} into {} files using {} threads", 
+                    new Object[] {
+                        headerFiles.get(0), 
+                        files.size(), 
+                        writerThreads});
+        
+        SortedMap<File, IOException> failures = 
+            new InsertPipeline(createInserter(), writerThreads)
+                .insertAll(files);
+        if (failures.isEmpty() == false) {
+            LOG.error("Failed to add header to {} of {} files", 
+                        failures.size(), 
+                        files.size() );
+        }
+        
+        return failures;
+    }
+    
+    /**
+     * Inserts the header at the beginning of each file, as 
+     * {@link #insertHeader(Collection, int)} does, but so that a crash 
+     * or power cut at any point leaves every file either as it was or 
+     * with the header, and safely on disk. The files are amended in 
+     * groups, recorded in a journal before each group starts, and 
+     * flushed to disk together when each group finishes, so the cost 
+     * of durability is a few syncs per group rather than one per file. 
+     * Any group left unfinished by an earlier run is rolled back first 
+     * (see {@link #recoverInsertJournal(File)}). The journal is deleted 
+     * once every group has been committed.
+     * 
+     * @param files The files to be amended
+     * @param writerThreads The number of files to write at once
+     * @param journal Where to keep the journal; must be outside the 
+     *          tree being amended
+     * @param groupSize The number of files to commit at once, e.g. 
+     *          {@link #DEFAULT_INSERT_GROUP_SIZE}
+     * @return The files that could not be amended, sorted by 
+     *          path, with the reason for each; empty if all of 
+     *          them were amended
+     * @throws IOException If the journal cannot be written, or the 
+     *          amended files cannot be flushed to disk
+     */
+    public SortedMap<File, IOException> insertHeaderDurably(
+                                                Collection<File> files, 
+                                                int writerThreads,
+                                                File journal,
+                                                int groupSize) 
+    throws IOException {
+        
+        if (writerThreads < 1 || groupSize < 1) {
+            throw new IllegalArgumentException(
+                        "Writer thread count and group size must be at " 
+                        + "least 1, not " + writerThreads 
+                        + " and " + groupSize);
+        }
+        LOG.info("Durably inserting header from {} into {} files " 
+                    + "in groups of {}", 
+                    new Object[] {
+                        headerFiles.get(0), 
+                        files.size(), 
+                        groupSize});
+        
+        SortedMap<File, IOException> failures = 
+            new InsertJournal(journal).insertAll(files, 
+                                                createInserter(true), 
+                                                writerThreads, 
+                                                groupSize);
+        if (failures.isEmpty() == false) {
+            LOG.error("Failed to add header to {} of {} files", 
+                        failures.size(), 
+                        files.size() );
+        }
+        
+        return failures;
+    }
+    
+    /**
+     * Restores the files in any group that a durable insertion left 
+     * unfinished, for instance because the machine crashed, so that 
+     * they can be found and amended again, and tidies up after any 
+     * group that was committed. Does nothing if there is no journal.
+     * 
+     * @param journal The journal given to 
+     *          {@link #insertHeaderDurably(Collection, int, File, int)}
+     * @throws IOException If the journal cannot be read, or a file 
+     *          cannot be restored
+     */
+    public static void recoverInsertJournal(File journal) 
+    throws IOException {
+        new InsertJournal(journal).recover();
+    }
+    
+    /**
+     * Recursively searches a directory for files lacking the header, 
+     * as {@link #listFilesWithoutHeader(File, String[])} does, and 
+     * writes the changes that {@link #insertHeader(Collection)} would 
+     * make to them as a unified diff, rather than making them. The 
+     * diff for each file is written as soon as the file is found, 
+     * reading no more of it than the few lines of context the diff 
+     * shows, and nothing under <code>rootDir</code> is written to. 
+     * Paths in the diff are relative to <code>rootDir</code>, so 
+     * <code>git apply</code> or <code>patch -p1</code> run from there 
+     * makes the same change as insert mode.
+     * 
+     * @param rootDir The directory to begin the search from
+     * @param fileExtensions an array of extensions, e.g. {"java","xml"}. 
+     *          If this parameter is null, all headerless files are 
+     *          included, regardless of file extension.
+     * @param patch Where to write the diff; not closed
+     * 
+     * @return The files that do not begin with the header, sorted by 
+     *          path
+     * 
+     * @throws IOException If something goes wrong reading the content
+     *         of any of the files being scanned, or writing the diff
+     */
+    public Collection<File> writeInsertPatch(File rootDir, 
+                                            String[] fileExtensions,
+                                            OutputStream patch)
+    throws IOException {
+        return listFilesWithoutHeader(rootDir, 
+                                        fileExtensions, 
+                                        patchWriter(rootDir, patch) );
+    }
+    
+    /**
+     * @return A listener that writes the change inserting the header 
+     *          would make to each file found without it
+     */
+    ScanListener patchWriter(File rootDir, OutputStream patch) {
+        return new PatchWriter( rootDir, renderedHeaders(), patch );
+    }
+    
+    /**
+     * Replaces the header that each file already begins with by the 
+     * header to insert, so that, for instance, the year in a 
+     * copyright statement can be brought up to date across a whole 
+     * tree. The existing header must match one of the headers in 
+     * full, whatever the match mode; in <code>TEMPLATE</code> match 
+     * mode that means matching with any year and author, and 
+     * otherwise an old header may be recognised by giving its file 
+     * as one of the headers. Files that begin with none of the 
+     * headers, or already begin with exactly the header to insert, 
+     * are left alone. Where the old and new headers are the same 
+     * length, as when only the year differs, the new header is 
+     * written over the old one in place and the rest of the file 
+     * is never copied; otherwise the file is streamed into a new 
+     * copy that atomically replaces the original.
+     * 
+     * @param files The files to be amended
+     * @return Those of the files that were amended, in the order 
+     *          given
+     * @throws IOException If something goes wrong reading 
+     *          from or writing to any of the files
+     */
+    public List<File> replaceHeader(Collection<File> files) 
+    throws IOException {
+        
+        LOG.info("Replacing headers in {} files with header from {}", 
+                    files.size(), 
+                    headerFiles.get(0) );
+        
+        HeaderReplacer replacer = 
+            new HeaderReplacer(matcherCache(false), 
+                                renderedHeaders(), 
+                                metrics);
+        List<File> replaced = new ArrayList<File>();
+        for (File file : files) {
+            if ( replacer.replace(file) ) {
+                LOG.info("Replaced header in {}", file);
+                replaced.add(file);
+            } else {
+                LOG.debug("{} has no header to replace", file);
+            }
+        }
+        
+        return replaced;
+    }
+    
+    /**
+     * Shares worker threads with other instances, rather than 
+     * starting new ones for each parallel or asynchronous scan. 
+     * The pools must have at least as many threads as this instance 
+     * scans with, and are not closed by it.
+     * 
+     * @param pools The pools to scan with, or null for pools of 
+     *          this instance's own for each scan
+     */
+    void setScanPools(ScanPools pools) {
+        this.sharedPools = pools;
+    }
+    
+    private ScanPools scanPools() {
+        
+        if (sharedPools != null) {
+            return sharedPools;
+        }
+        
+        return new ScanPools(scanThreads);
+    }
+    
+    private void releaseScanPools(ScanPools pools) {
+        
+        if (pools != sharedPools) {
+            pools.close();
+        }
+    }
+    
+    private HeaderInserter createInserter() {
+        return createInserter(false);
+    }
+    
+    private HeaderInserter createInserter(boolean journaled) {
+        return new HeaderInserter( renderedHeaders(), metrics, journaled );
+    }
+    
+    /**
+     * @return The header to insert, filled in and encoded once for 
+     *          each comment style as it is first needed
+     */
+    private FileTypeCache<byte[]> renderedHeaders() {
+        
+        final String year = 
+            String.valueOf( Calendar.getInstance().get(Calendar.YEAR) );
+        
+        return new FileTypeCache<byte[]>(commentStyles) {
+            @Override
+            protected byte[] create(CommentStyle style) {
+                
+                String text = 
+                    template( style.render(headers.get(0), NEWLINE) )
+                        .render(year, templateAuthor);
+                
+                return text.getBytes( Charset.defaultCharset() );
+            }
+        };
+    }
+    
+    private ScanIndex openScanIndex() 
+    throws IOException {
+        
+        if (scanIndexFile == null) {
+            return null;
+        }
+        
+        return ScanIndex.open(scanIndexFile, 
+                                headerFingerprint(), 
+                                matcherCheck() );
+    }
+    
+    private HeaderCheck headerCheck(ScanIndex index) {
+        
+        HeaderCheck check = matcherCheck();
+        if (index != null) {
+            check = index;
+        }
+        
+        return metrics.metered( sizeLimited(check) );
+    }
+    
+    /**
+     * As {@link #headerCheck(ScanIndex)}, but if archives are to be 
+     * scanned, checking the entries of each archive found and 
+     * reporting them in its place. Archives are recognised ahead of 
+     * the scan index and the size limit, so that neither applies to 
+     * the archive itself.
+     * 
+     * @param listener Told about each entry of each archive
+     */
+    private HeaderCheck headerCheck(ScanIndex index, 
+                                    String[] fileExtensions,
+                                    final ScanListener listener) {
+        
+        final HeaderCheck check = headerCheck(index);
+        if (scanArchives == false) {
+            return check;
+        }
+        final ArchiveScanner archives = archiveScanner(fileExtensions);
+        
+        return new HeaderCheck() {
+            @Override
+            public int matchingHeader(File file, BasicFileAttributes attrs)
+            throws IOException {
+                
+                if ( ArchiveScanner.isArchive( file.getName() ) ) {
+                    archives.scan(file, listener);
+                    return ARCHIVE;
+                }
+                
+                return check.matchingHeader(file, attrs);
+            }
+        };
+    }
+    
+    private ArchiveScanner archiveScanner(String[] fileExtensions) {
+        return new ArchiveScanner(headerMatchers, 
+                                    headerFiles, 
+                                    new FileExtensionFilter(fileExtensions), 
+                                    exclusions, 
+                                    maxFileSize, 
+                                    metrics);
+    }
+    
+    /**
+     * Rejects oversized files using the size read during the walk, 
+     * before the scan index or the file itself is consulted
+     */
+    private HeaderCheck sizeLimited(final HeaderCheck check) {
+        
+        if (maxFileSize <= 0) {
+            return check;
+        }
+        
+        return new HeaderCheck() {
+            @Override
+            public int matchingHeader(File file, BasicFileAttributes attrs)
+            throws IOException {
+                
+                if (attrs.size() > maxFileSize) {
+                    return OVERSIZED;
+                }
+                
+                return check.matchingHeader(file, attrs);
+            }
+        };
+    }
+    
+    /**
+     * Matches each file against the headers in the comment style for 
+     * its extension
+     */
+    private HeaderCheck matcherCheck() {
+        
+        if ( commentStyles.isEmpty() ) {
+            return headerMatchers.forStyle(CommentStyle.NONE);
+        }
+        final FileTypeCache<HeaderMatcher> matchers = headerMatchers;
+        
+        return new HeaderCheck() {
+            @Override
+            public int matchingHeader(File file, BasicFileAttributes attrs)
+            throws IOException {
+                return matchers.forFile(file).matchingHeader(file, attrs);
+            }
+        };
+    }
+    
+    /**
+     * @param walkedRoot The directory whose whole tree was just 
+     *          walked, so that entries for files under it that are 
+     *          gone can be dropped; null if only some files were checked
+     */
+    private void saveScanIndex(ScanIndex index, File walkedRoot) 
+    throws IOException {
+        
+        if (index != null) {
+            index.save(walkedRoot);
+        }
+    }
+    
+    /**
+     * A 64 bit FNV-1a hash of everything that decides whether a 
+     * file matches: the header texts, the match mode and the comment 
+     * style for each extension.
+     */
+    private long headerFingerprint() {
+        
+        StringBuilder matchedOn = new StringBuilder( matchMode.name() );
+        for (String text : headers) {
+            matchedOn.append('\0').append(text);
+        }
+        for ( Map.Entry<String, CommentStyle> style : 
+                new TreeMap<String, CommentStyle>(commentStyles).entrySet() ) {
+            matchedOn.append('\0')
+                .append( style.getKey() )
+                .append('=')
+                .append( style.getValue().name() );
+        }
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < matchedOn.length(); i++) {
+            hash ^= matchedOn.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        
+        return hash;
+    }
+    
+    private HeaderTemplate template(String text) {
+        
+        if (matchMode == MatchMode.TEMPLATE) {
+            return HeaderTemplate.parse(text);
+        }
+        
+        return HeaderTemplate.literal(text);
+    }
+    
+    /**
+     * @return Matchers for the headers in each comment style, each 
+     *          built when first needed
+     */
+    private FileTypeCache<HeaderMatcher> matcherCache(
+                                            final boolean firstLineOnly) {
+        
+        return new FileTypeCache<HeaderMatcher>(commentStyles) {
+            @Override
+            protected HeaderMatcher create(CommentStyle style) {
+                return createMatcher(style, firstLineOnly);
+            }
+        };
+    }
+    
+    private HeaderMatcher createMatcher(CommentStyle style, 
+                                        boolean firstLineOnly) {
+        
+        List<HeaderTemplate> toMatch = new ArrayList<HeaderTemplate>();
+        for (String text : headers) {
+            text = style.render(text, NEWLINE);
+            if (firstLineOnly) {
+                String[] lines = text.split(NEWLINE);
+                StringBuilder firstLineOfHeader = new StringBuilder();
+                int keep = Math.min(style.openingLines() + 1, lines.length);
+                for (int i = 0; i < keep; i++) {
+                    if (i > 0) {
+                        firstLineOfHeader.append(NEWLINE);
+                    }
+                    firstLineOfHeader.append(lines[i]);
+                }
+                LOG.debug("Matching only against first line of header: '{}'", 
+                            firstLineOfHeader);
+                text = firstLineOfHeader.toString();
+            }
+            toMatch.add( template(text) );
+        }
+        
+        // FileReader decodes using the platform default charset, 
+        // so encoding the headers the same way keeps results unchanged
+        return new HeaderMatcher(toMatch, 
+                                NEWLINE, 
+                                Charset.defaultCharset(),
+                                metrics);
+    }
+    
+    private static ScanListener loggingListener(final ScanListener listener) {
+        
+        if ( LOG.isDebugEnabled() == false ) {
+            return listener;
+        }
+        
+        return new ScanListener() {
+            @Override
+            public void headerFound(File file, File headerFile)
+            throws IOException {
+                LOG.debug("{} starts with the header from {}", 
+                            file, 
+                            headerFile);
+                listener.headerFound(file, headerFile);
+            }
+            
+            @Override
+            public void headerMissing(File file) throws IOException {
+                LOG.debug("{} does not start with the header", file);
+                listener.headerMissing(file);
+            }
+            
+            @Override
+            public void fileSkipped(File file, SkipReason reason) 
+            throws IOException {
+                LOG.debug("Skipping {} file {}", reason, file);
+                listener.fileSkipped(file, reason);
+            }
+        };
+    }
+    
+    /**
+     * @return A listener that passes each result to one listener 
+     *          and then the other
+     */
+    private static ScanListener tee(final ScanListener first, 
+                                    final ScanListener second) {
+        
+        return new ScanListener() {
+            @Override
+            public void headerFound(File file, File headerFile)
+            throws IOException {
+                first.headerFound(file, headerFile);
+                second.headerFound(file, headerFile);
+            }
+            
+            @Override
+            public void headerMissing(File file) throws IOException {
+                first.headerMissing(file);
+                second.headerMissing(file);
+            }
+            
+            @Override
+            public void fileSkipped(File file, SkipReason reason) 
+            throws IOException {
+                first.fileSkipped(file, reason);
+                second.fileSkipped(file, reason);
+            }
+        };
+    }
+    
+    /**
+     * Gathers headerless files, and counts the files found with 
+     * each header and the files skipped, from scans on one or many 
+     * threads
+     */
+    private static class ResultCollector implements ScanListener {
+        
+        private final Collection<File> filesWithNoHeader;
+        private final Map<File, Integer> headerCounts = 
+            new HashMap<File, Integer>();
+        private final Map<SkipReason, Integer> skipCounts = 
+            new EnumMap<SkipReason, Integer>(SkipReason.class);
+        
+        ResultCollector(Collection<File> filesWithNoHeader) {
+            this.filesWithNoHeader = filesWithNoHeader;
+        }
+        
+        @Override
+        public synchronized void headerFound(File file, File headerFile) {
+            
+            Integer count = headerCounts.get(headerFile);
+            headerCounts.put(headerFile, count == null ? 1 : count + 1);
+        }
+        
+        @Override
+        public synchronized void headerMissing(File file) {
+            filesWithNoHeader.add(file);
+        }
+        
+        @Override
+        public synchronized void fileSkipped(File file, SkipReason reason) {
+            
+            Integer count = skipCounts.get(reason);
+            skipCounts.put(reason, count == null ? 1 : count + 1);
+        }
+    }
+    
+    private String fileContents(File file) 
+    throws IOException {
+             
+        LOG.debug("Reading contents of {}", file);
+        StringBuffer contentBuffer = new StringBuffer();
+        FileReader fileReader = new FileReader(file);
+        BufferedReader bufReader = new BufferedReader(fileReader);
+        String line = bufReader.readLine();
+        while (line != null) {
+            contentBuffer.append(line);
+            contentBuffer.append(NEWLINE);
+            line = bufReader.readLine();
+        }
+        bufReader.close();
+
+        return contentBuffer.toString();
+    }
+    
+    /**
+     * Runs the Header Tool. Supports optional system properties to
+     * control the matching behaviour (default is full - see class
+     * comments), what to do with files that do not include the 
+     * header (default is simply to report on them) and whether to 
+     * check files in parallel (default is serially):
+     * 
+     * <pre>
+     *      -Dinsert-mode=true
+     *      -Dreplace-mode=true
+     *      -Dinsert-threads=8
+     *      -Dinsert-journal=/path/to/journal
+     *      -Dinsert-group-size=1024
      *      -Dfirst-line-match=true
+     *      -Dcomment-styles=true
+     *      -Dcomment-style-map=gradle=block,vm=hash
+     *      -Dtemplate-match=true
+     *      -Dtemplate-author="Jane Doe"
+     *      -Dparallel-scan=true
+     *      -Dasync-scan=true
+     *      -Dscan-threads=8
+     *      -Dscan-index=/path/to/index
+     *      -Dmax-file-size=16777216
+     *      -Dresult-memory=67108864
+     *      -Dscan-archives=true
+     *      -Dexclude-file=/path/to/.headerignore
+     *      -Dexclude=target/,node_modules/,.git/
+     *      -Dchanged-since=origin/master
+     *      -Doutput-format=ndjson
+     *      -Dpatch-file=/path/to/headers.patch
      * </pre>
      * 
+     * Template matching treats <code>${year}</code>, 
+     * <code>${yearRange}</code> and <code>${author}</code> in the 
+     * header files as placeholders; inserted headers get the current 
+     * year and <code>template-author</code> (or the user name).
+     * In insert mode, <code>insert-threads</code> files are written at 
+     * once (default 1), and a file that cannot be amended does not 
+     * stop the rest; the run fails at the end if any could not be.
+     * With <code>insert-journal</code>, insertion is crash safe: files 
+     * are amended and flushed to disk in groups of 
+     * <code>insert-group-size</code>, and any group left unfinished by 
+     * an earlier run is rolled back before the scan.
+     * In replace mode, every file found with a header has that header 
+     * replaced by the first header, filled in as for insertion, unless 
+     * it is already identical; the whole tree is checked, whether or 
+     * not <code>changed-since</code> is given.
+     * With <code>comment-styles</code>, the header files hold plain 
+     * text that is wrapped in the comment style for each file's 
+     * extension (see {@link CommentStyle#defaults()}), with the 
+     * defaults added to or overridden by <code>comment-style-map</code>.
+     * Exclusion patterns, in <code>.gitignore</code> syntax, are read 
+     * from <code>exclude-file</code> and then from the comma separated
+     * <code>exclude</code> list; excluded directories are not walked.
+     * Binary files, and files larger than <code>max-file-size</code> 
+     * bytes (zero for no limit), are skipped and counted separately.
+     * The files found without the header are held compactly, and 
+     * spilled to temporary files once they take more than 
+     * <code>result-memory</code> bytes (see {@link ResultStore}).
+     * With <code>scan-archives</code>, the entries of zip, jar and tar 
+     * archives found in the tree are checked and reported as 
+     * <code>archive!/entry</code>; the source directory may also be an 
+     * archive itself. Archive entries cannot be amended, so neither 
+     * option can be combined with insert, replace or patch output.
+     * While the tool runs, its metrics are registered with the 
+     * platform MBean server as {@value #METRICS_MBEAN_NAME}, and a 
+     * summary of them is printed to standard out as the last line.
+     * Parallel scans use one thread per available processor unless
+     * <code>scan-threads</code> says otherwise. Asynchronous scans 
+     * keep up to <code>scan-threads</code> reads in flight, 
+     * {@value #DEFAULT_ASYNC_READS} by default. When a scan index is 
+     * named, only files that have changed since the previous run are 
+     * read. When a Git commit is named with <code>changed-since</code>,
+     * only files added or modified since that commit are checked.
+     * With <code>output-format</code> set to <code>ndjson</code>, the 
+     * result for each file is written to standard out as a line of 
+     * JSON as soon as it is known (see {@link NdjsonResultWriter}), in 
+     * place of logging it, and the summary goes to standard error.
+     * With <code>patch-file</code> set, nothing is inserted or 
+     * replaced; instead the changes insert mode would make are written 
+     * to that file as a unified diff (see {@link PatchWriter}), or to 
+     * standard out if it is <code>-</code>, in which case the summary 
+     * goes to standard error.
+     * 
      * @param args Runtime arguments, which must include:
      *   <ol>
      *     <li>Full path to source directory</li>
-     *     <li>Full path to header file</li>
+     *     <li>Full path to header file. Several header files may be 
+     *         given, separated by the platform path separator (':' on
+     *         *nix, ';' on Windows); files beginning with any of them 
+     *         count as having a header, and the first is the one 
+     *         inserted</li>
      *     <li>Variable number of file extensions to check (space separated). 
      *         Passing only the * character provides wildcard extension 
      *         matching
@@ -206,23 +1621,319 @@ public class HeaderTool {
     public static void main(String[] args) throws IOException {
         
         File rootDir = new File(args[0]);
-        File headerFile = new File(args[1]);
         String[] fileExtensions = new String[args.length - 2];
         System.arraycopy(args, 2, fileExtensions, 0, fileExtensions.length);
         if ( asList(fileExtensions).contains(WILDCARD_FILE_EXTENSION) ) {
             fileExtensions = null;
         }
+        
+        HeaderTool headerTool = fromSystemProperties( args[1] );
+        ObjectName metricsName = headerTool.registerMetrics();
+        try {
+            headerTool.runFromSystemProperties(rootDir, fileExtensions);
+        } finally {
+            unregisterMetrics(metricsName);
+            reportStream().println( SUMMARY_PREFIX 
+                                    + headerTool.metrics.summary() );
+        }
+    }
+    
+    /**
+     * Checks one source directory, then replaces and inserts headers 
+     * if the system properties described in {@link #main(String[])} 
+     * say to.
+     * 
+     * @return The number of files that lacked the header before any 
+     *          were inserted
+     * @throws IOException If any of the files cannot be read, or any 
+     *          that should have been amended could not be
+     */
+    int runFromSystemProperties(File rootDir, 
+                                            String[] fileExtensions) 
+    throws IOException {
+        
+        if ( ( scanArchives || rootDir.isFile() ) 
+                && ( Boolean.getBoolean(INSERT_MODE_SYS_PROP) 
+                    || Boolean.getBoolean(REPLACE_MODE_SYS_PROP) 
+                    || System.getProperty(PATCH_FILE_SYS_PROP) != null ) ) {
+            throw new IllegalArgumentException(
+                        "Archive entries can be checked but not amended");
+        }
+        String insertJournal = System.getProperty(INSERT_JOURNAL_SYS_PROP);
+        if (insertJournal != null) {
+            // before the scan, so restored files are found without a header
+            recoverInsertJournal( new File(insertJournal) );
+        }
+        ScanListener observer = null;
+        if ( ndjsonOutput() ) {
+            observer = new NdjsonResultWriter(System.out, metrics);
+        }
+        String patchFile = System.getProperty(PATCH_FILE_SYS_PROP);
+        OutputStream patch = null;
+        if (patchFile != null) {
+            patch = System.out;
+            if ( STANDARD_OUT.equals(patchFile) == false ) {
+                patch = new BufferedOutputStream( 
+                            new FileOutputStream(patchFile) );
+            }
+            ScanListener patchWriter = patchWriter(rootDir, patch);
+            observer = 
+                observer == null ? patchWriter : tee(observer, patchWriter);
+        }
+        String changedSince = System.getProperty(CHANGED_SINCE_SYS_PROP);
+        Collection<File> filesWithNoHeader;
+        try {
+            if (changedSince == null) {
+                filesWithNoHeader = 
+                    collectFilesWithoutHeader(rootDir, 
+                                                fileExtensions, 
+                                                observer);
+            } else {
+                filesWithNoHeader = 
+                    listChangedFilesWithoutHeader(rootDir, 
+                                                    fileExtensions, 
+                                                    changedSince,
+                                                    observer);
+            }
+        } finally {
+            if (patch != null && patch != System.out) {
+                patch.close();
+            }
+        }
+        int filesWithNoHeaderCount = filesWithNoHeader.size();
+        try {
+            if (patch != null) {
+                LOG.info("Wrote patch for {} files to {}; no files were changed", 
+                            filesWithNoHeaderCount, 
+                            patchFile);
+            } else {
+                amendFromSystemProperties(rootDir, 
+                                            fileExtensions, 
+                                            filesWithNoHeader, 
+                                            insertJournal);
+            }
+        } finally {
+            if (filesWithNoHeader instanceof ResultStore) {
+                ( (ResultStore) filesWithNoHeader ).close();
+            }
+        }
+        
+        return filesWithNoHeaderCount;
+    }
+    
+    /**
+     * Replaces and inserts headers if the system properties described 
+     * in {@link #main(String[])} say to.
+     */
+    private void amendFromSystemProperties(File rootDir, 
+                                            String[] fileExtensions,
+                                            Collection<File> filesWithNoHeader,
+                                            String insertJournal) 
+    throws IOException {
+        
+        if (Boolean.getBoolean(REPLACE_MODE_SYS_PROP) == true) {
+            replaceHeader( listFilesWithHeader(rootDir, fileExtensions) );
+        }
+        if (Boolean.getBoolean(INSERT_MODE_SYS_PROP) == true) {
+            int insertThreads = 
+                Integer.getInteger(INSERT_THREADS_SYS_PROP, 1);
+            Map<File, IOException> failures;
+            if (insertJournal == null) {
+                failures = insertHeader(filesWithNoHeader, insertThreads);
+            } else {
+                failures = 
+                    insertHeaderDurably(filesWithNoHeader, 
+                                        insertThreads, 
+                                        new File(insertJournal), 
+                                        Integer.getInteger( 
+                                            INSERT_GROUP_SIZE_SYS_PROP, 
+                                            DEFAULT_INSERT_GROUP_SIZE) );
+            }
+            if (failures.isEmpty() == false) {
+                throw new IOException("Failed to add header to " 
+                                        + failures.size() 
+                                        + " files; first was " 
+                                        + failures.keySet().iterator().next(), 
+                                        failures.values().iterator().next() );
+            }
+        }
+    }
+    
+    /**
+     * @return Whether the system properties ask for a line of JSON 
+     *          per file on standard out
+     */
+    static boolean ndjsonOutput() {
+        return NDJSON_OUTPUT_FORMAT.equals( 
+                    System.getProperty(OUTPUT_FORMAT_SYS_PROP) );
+    }
+    
+    /**
+     * @return Where to print summary lines: standard out, unless it 
+     *          is reserved for JSON records or a patch
+     */
+    static PrintStream reportStream() {
+        
+        if ( ndjsonOutput() 
+                || STANDARD_OUT.equals( 
+                        System.getProperty(PATCH_FILE_SYS_PROP) ) ) {
+            return System.err;
+        }
+        
+        return System.out;
+    }
+    
+    /**
+     * Makes the metrics visible to JMX clients such as 
+     * <code>jconsole</code> for as long as the run lasts.
+     * 
+     * @return The name the metrics were registered under, or null 
+     *          if they could not be registered
+     */
+    ObjectName registerMetrics() {
+        return registerMetrics(metrics);
+    }
+    
+    static ObjectName registerMetrics(ScanMetrics metrics) {
+        
+        try {
+            ObjectName name = new ObjectName(METRICS_MBEAN_NAME);
+            ManagementFactory.getPlatformMBeanServer()
+                .registerMBean( new StandardMBean(metrics, 
+                                                ScanMetricsMBean.class), 
+                                name );
+            return name;
+        } catch (JMException e) {
+            LOG.warn("Unable to register scan metrics with JMX", e);
+            return null;
+        }
+    }
+    
+    static void unregisterMetrics(ObjectName name) {
+        
+        if (name == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            LOG.warn("Unable to unregister scan metrics from JMX", e);
+        }
+    }
+    
+    /**
+     * Creates a <code>HeaderTool</code> configured by the system 
+     * properties described in {@link #main(String[])}.
+     * 
+     * @param headerPaths One or more header file paths, separated 
+     *          by the platform path separator
+     */
+    static HeaderTool fromSystemProperties(String headerPaths) 
+    throws IOException {
+        
         MatchMode matchMode = MatchMode.FULL_MATCH;
         if (Boolean.getBoolean(FIRST_LINE_MATCH_SYS_PROP) == true) {
             matchMode = MatchMode.FIRST_LINE_ONLY;
         }
+        if (Boolean.getBoolean(TEMPLATE_MATCH_SYS_PROP) == true) {
+            matchMode = MatchMode.TEMPLATE;
+        }
         
-        HeaderTool headerTool = new HeaderTool(headerFile, matchMode);
-        Collection<File> filesWithNoHeader = 
-            headerTool.listFilesWithoutHeader(rootDir, fileExtensions);
-        if (Boolean.getBoolean(INSERT_MODE_SYS_PROP) == true) {
-            headerTool.insertHeader(filesWithNoHeader);
+        return fromSystemProperties( headerFiles(headerPaths), 
+                                    matchMode, 
+                                    new ScanMetrics() );
+    }
+    
+    /**
+     * Creates a <code>HeaderTool</code> with the given headers and 
+     * match mode, otherwise configured by the system properties 
+     * described in {@link #main(String[])}.
+     * 
+     * @param metrics Where to count the work done, perhaps along 
+     *          with that of other instances
+     */
+    static HeaderTool fromSystemProperties(List<File> headerFiles, 
+                                            MatchMode matchMode, 
+                                            ScanMetrics metrics) 
+    throws IOException {
+        
+        ScanMode scanMode = ScanMode.SERIAL;
+        if (Boolean.getBoolean(PARALLEL_SCAN_SYS_PROP) == true) {
+            scanMode = ScanMode.PARALLEL;
+        }
+        if (Boolean.getBoolean(ASYNC_SCAN_SYS_PROP) == true) {
+            scanMode = ScanMode.ASYNC;
+        }
+        HeaderTool headerTool = 
+            new HeaderTool(headerFiles, 
+                            matchMode, 
+                            scanMode, 
+                            scanThreadsFromSystemProperties(),
+                            metrics);
+        String templateAuthor = System.getProperty(TEMPLATE_AUTHOR_SYS_PROP);
+        if (templateAuthor != null) {
+            headerTool.setTemplateAuthor(templateAuthor);
+        }
+        String scanIndex = System.getProperty(SCAN_INDEX_SYS_PROP);
+        if (scanIndex != null) {
+            headerTool.setScanIndex( new File(scanIndex) );
         }
+        headerTool.setMaxFileSize( 
+            Long.getLong(MAX_FILE_SIZE_SYS_PROP, DEFAULT_MAX_FILE_SIZE) );
+        headerTool.setResultMemoryThreshold( 
+            Long.getLong(RESULT_MEMORY_SYS_PROP, DEFAULT_RESULT_MEMORY) );
+        headerTool.setScanArchives( 
+            Boolean.getBoolean(SCAN_ARCHIVES_SYS_PROP) );
+        List<String> exclusions = new ArrayList<String>();
+        String excludeFile = System.getProperty(EXCLUDE_FILE_SYS_PROP);
+        if (excludeFile != null) {
+            exclusions.addAll( 
+                FileUtils.readLines( new File(excludeFile), "UTF-8" ) );
+        }
+        String exclude = System.getProperty(EXCLUDE_SYS_PROP);
+        if (exclude != null) {
+            exclusions.addAll( asList( exclude.split(",") ) );
+        }
+        headerTool.setExclusions(exclusions);
+        if (Boolean.getBoolean(COMMENT_STYLES_SYS_PROP) == true) {
+            Map<String, CommentStyle> styles = 
+                new HashMap<String, CommentStyle>( CommentStyle.defaults() );
+            String styleMap = System.getProperty(COMMENT_STYLE_MAP_SYS_PROP);
+            if (styleMap != null) {
+                styles.putAll( CommentStyle.parse(styleMap) );
+            }
+            headerTool.setCommentStyles(styles);
+        }
+        
+        return headerTool;
+    }
+    
+    /**
+     * @return The scan thread count given by the system properties, 
+     *          or the default for the scan mode they choose
+     */
+    static int scanThreadsFromSystemProperties() {
+        
+        int defaultScanThreads = Runtime.getRuntime().availableProcessors();
+        if (Boolean.getBoolean(ASYNC_SCAN_SYS_PROP) == true) {
+            defaultScanThreads = DEFAULT_ASYNC_READS;
+        }
+        
+        return Integer.getInteger(SCAN_THREADS_SYS_PROP, defaultScanThreads);
+    }
+    
+    /**
+     * @param headerPaths One or more header file paths, separated 
+     *          by the platform path separator
+     */
+    static List<File> headerFiles(String headerPaths) {
+        
+        List<File> headerFiles = new ArrayList<File>();
+        for ( String headerPath : headerPaths.split(File.pathSeparator) ) {
+            headerFiles.add( new File(headerPath) );
+        }
+        
+        return headerFiles;
     }
 
-}
+}
\ No newline at end of file
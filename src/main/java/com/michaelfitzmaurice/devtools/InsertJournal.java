@@ -0,0 +1,396 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Inserts headers so that a crash or power cut part way through a 
+ * large run leaves every file either untouched or fully amended and 
+ * safely on disk, without waiting for a sync after every file.
+ * <p>
+ * Files are amended in groups. Before a group is started, the files 
+ * in it are written to a journal, which is synced once (and the 
+ * directory holding the journal once per run, so that the journal 
+ * itself survives a crash). A new copy of each file is then written 
+ * beside it, and the original kept as a hard link alongside, costing 
+ * no more than a directory entry. When the whole group has been 
+ * written, the new copies are forced to disk, all at once from 
+ * several threads so that a journaling file system can commit them 
+ * together in a few device flushes, and each directory touched is 
+ * synced so that the backups are on disk too. Only then is each new 
+ * copy renamed over its original, and each directory synced again 
+ * for the renames. A commit record is then synced to the journal 
+ * and the backups removed: two journal syncs and two syncs per 
+ * directory for each group, in place of a sync per file and per 
+ * rename.
+ * <p>
+ * A journal left behind by a run that did not finish is replayed 
+ * by {@link #recover()}: a group that was committed has any remaining 
+ * backups removed, and a group that was not has every file restored 
+ * from its backup, to be amended again by the next run.
+ * 
+ * @author Michael Fitzmaurice
+ */
+final class InsertJournal {
+    
+    static final int DEFAULT_GROUP_SIZE = 1024;
+    
+    private static final String BEGIN = "begin ";
+    private static final String FILE = "file ";
+    private static final String COMMIT = "commit";
+    private static final String BACKUP_SUFFIX = ".header-backup";
+    private static final String TMP_SUFFIX = ".header-tmp";
+    private static final int SYNC_THREADS = 16;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final transient Logger LOG = 
+            LoggerFactory.getLogger(InsertJournal.class);
+    
+    /**
+     * Forces a file, or the entries of a directory, to disk
+     */
+    interface Syncer {
+        
+        void sync(File file) throws IOException;
+    }
+    
+    /**
+     * Syncs through the file system, as far as the platform allows
+     */
+    static final Syncer FILE_SYSTEM = new Syncer() {
+        @Override
+        public void sync(File file) throws IOException {
+            force(file);
+        }
+    };
+    
+    private final File journalFile;
+    private final Syncer syncer;
+    
+    /**
+     * @param journalFile Where to keep the journal while headers are 
+     *          being inserted; it is deleted when a run completes
+     */
+    InsertJournal(File journalFile) {
+        this(journalFile, FILE_SYSTEM);
+    }
+    
+    /**
+     * @param syncer How to force files and directories to disk
+     */
+    InsertJournal(File journalFile, Syncer syncer) {
+        this.journalFile = journalFile;
+        this.syncer = syncer;
+    }
+    
+    /**
+     * @return Where the original of a file is kept while a group that 
+     *          includes it is in progress
+     */
+    static File backupOf(File file) {
+        return sibling(file, BACKUP_SUFFIX);
+    }
+    
+    /**
+     * @return Where the new version of a file is written before it 
+     *          replaces the original
+     */
+    static File tmpFileOf(File file) {
+        return sibling(file, TMP_SUFFIX);
+    }
+    
+    private static File sibling(File file, String suffix) {
+        return new File( file.getAbsoluteFile().getParentFile(), 
+                        "." + file.getName() + suffix );
+    }
+    
+    /**
+     * Inserts the header into each file, a group at a time, recovering 
+     * from any earlier run that did not finish first.
+     * 
+     * @param files The files to insert the header into
+     * @param inserter A journaled inserter
+     * @param writers The number of files to write at once
+     * @param groupSize The number of files to commit at once
+     * @return The files that could not be amended, sorted by path, 
+     *          with the reason for each
+     * @throws IOException If the journal cannot be written, or the 
+     *          amended files cannot be forced to disk; files in the 
+     *          group in progress are restored by the next recovery
+     */
+    SortedMap<File, IOException> insertAll(Collection<File> files, 
+                                            HeaderInserter inserter, 
+                                            int writers, 
+                                            int groupSize)
+    throws IOException {
+        
+        recover();
+        SortedMap<File, IOException> failures = 
+            new TreeMap<File, IOException>();
+        InsertPipeline pipeline = new InsertPipeline(inserter, writers);
+        FileChannel journal = 
+            FileChannel.open(journalFile.toPath(), 
+                            StandardOpenOption.CREATE, 
+                            StandardOpenOption.WRITE);
+        try {
+            // the journal is no use after a crash if its own directory 
+            // entry was lost
+            syncer.sync( journalFile.getAbsoluteFile().getParentFile() );
+            List<File> group = new ArrayList<File>(groupSize);
+            for (File file : files) {
+                group.add(file);
+                if (group.size() == groupSize) {
+                    insertGroup(journal, group, pipeline, failures);
+                    group.clear();
+                }
+            }
+            if ( group.isEmpty() == false ) {
+                insertGroup(journal, group, pipeline, failures);
+            }
+        } finally {
+            journal.close();
+        }
+        Files.delete( journalFile.toPath() );
+        
+        return failures;
+    }
+    
+    private void insertGroup(FileChannel journal, 
+                                List<File> group, 
+                                InsertPipeline pipeline, 
+                                SortedMap<File, IOException> failures)
+    throws IOException {
+        
+        // the files that will actually be replaced, where the group 
+        // names symbolic links
+        List<File> targets = new ArrayList<File>( group.size() );
+        StringBuilder intent = new StringBuilder();
+        intent.append(BEGIN).append( group.size() ).append('\n');
+        for (File file : group) {
+            File target = HeaderInserter.resolve(file);
+            targets.add(target);
+            intent.append(FILE).append( target.getPath() ).append('\n');
+        }
+        journal.truncate(0);
+        append(journal, intent);
+        journal.force(false);
+        
+        SortedMap<File, IOException> groupFailures = pipeline.insertAll(group);
+        failures.putAll(groupFailures);
+        List<File> amended = new ArrayList<File>();
+        List<File> tmpFiles = new ArrayList<File>();
+        Set<File> directories = new LinkedHashSet<File>();
+        for (int i = 0; i < group.size(); i++) {
+            if ( groupFailures.containsKey( group.get(i) ) == false ) {
+                amended.add( targets.get(i) );
+                tmpFiles.add( tmpFileOf( targets.get(i) ) );
+                directories.add( targets.get(i).getParentFile() );
+            }
+        }
+        // no original may be replaced until its new version and its 
+        // backup are both on disk, or a crash could lose the file
+        forceAll(tmpFiles);
+        forceAll(directories);
+        for (File file : amended) {
+            HeaderInserter.rename(tmpFileOf(file), file);
+        }
+        // nor the group committed until the renames are on disk, or a 
+        // crash could undo them after the backups are gone
+        forceAll(directories);
+        
+        append( journal, new StringBuilder(COMMIT).append('\n') );
+        journal.force(false);
+        removeBackups(targets);
+        LOG.debug("Committed header insertion into {} files", group.size());
+    }
+    
+    /**
+     * Finishes or undoes the last group of insertions made by a run 
+     * that did not complete, if there was one, and removes its journal.
+     * 
+     * @throws IOException If the journal cannot be read, or a file 
+     *          cannot be restored from its backup
+     */
+    void recover()
+    throws IOException {
+        
+        if ( journalFile.exists() == false ) {
+            return;
+        }
+        List<File> group = new ArrayList<File>();
+        boolean committed = false;
+        BufferedReader reader = 
+            new BufferedReader( new InputStreamReader( 
+                                    new FileInputStream(journalFile), 
+                                    UTF8 ) );
+        try {
+            String line = reader.readLine();
+            while (line != null) {
+                if ( line.startsWith(FILE) ) {
+                    group.add( new File( line.substring( FILE.length() ) ) );
+                } else if ( line.equals(COMMIT) ) {
+                    committed = true;
+                }
+                line = reader.readLine();
+            }
+        } finally {
+            reader.close();
+        }
+        
+        if (committed) {
+            LOG.info("Removing backups left by committed header insertion "
+                        + "into {} files", 
+                        group.size() );
+            removeBackups(group);
+        } else {
+            LOG.warn("Restoring {} files left by unfinished header insertion", 
+                        group.size() );
+            Set<File> directories = new LinkedHashSet<File>();
+            for (File file : group) {
+                File backup = backupOf(file);
+                if ( backup.exists() ) {
+                    restore(backup, file);
+                    directories.add( file.getParentFile() );
+                }
+                Files.deleteIfExists( tmpFileOf(file).toPath() );
+            }
+            forceAll(directories);
+        }
+        Files.delete( journalFile.toPath() );
+    }
+    
+    private static void restore(File backup, File file)
+    throws IOException {
+        
+        try {
+            Files.move(backup.toPath(), 
+                        file.toPath(), 
+                        StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(backup.toPath(), 
+                        file.toPath(), 
+                        StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+    
+    private static void removeBackups(List<File> group)
+    throws IOException {
+        
+        for (File file : group) {
+            Files.deleteIfExists( backupOf(file).toPath() );
+            Files.deleteIfExists( tmpFileOf(file).toPath() );
+        }
+    }
+    
+    private static void append(FileChannel journal, CharSequence text)
+    throws IOException {
+        
+        ByteBuffer bytes = UTF8.encode( text.toString() );
+        while ( bytes.hasRemaining() ) {
+            journal.write(bytes);
+        }
+    }
+    
+    /**
+     * Forces files or directories to disk, many at once, so the file 
+     * system can group the flushes together
+     */
+    private void forceAll(Collection<File> files)
+    throws IOException {
+        
+        if ( files.isEmpty() ) {
+            return;
+        }
+        ExecutorService pool = 
+            Executors.newFixedThreadPool( Math.min(SYNC_THREADS, 
+                                                    files.size() ) );
+        try {
+            List<Future<Void>> forced = new ArrayList<Future<Void>>();
+            for (final File file : files) {
+                forced.add( pool.submit( new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        syncer.sync(file);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> force : forced) {
+                force.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( 
+                        "Interrupted while syncing amended files");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException( e.getCause() );
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+    
+    private static void force(File file)
+    throws IOException {
+        
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            if ( file.isDirectory() ) {
+                // some platforms, Windows among them, cannot open a
+                // directory, and make renames durable without being asked
+                LOG.debug("Unable to sync directory " + file, e);
+                return;
+            }
+            throw e;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Inserts a header into many files at once using a fixed number of 
+ * writer threads, so that on slow or high latency file systems the 
+ * time spent waiting on one file overlaps with work on others. 
+ * <p>
+ * Files are handed to the writers through a bounded queue; when it 
+ * is full the submitting thread inserts the next file itself, which 
+ * both keeps it busy and stops it running ahead of the writers. A 
+ * failure to insert into one file is recorded and the rest of the 
+ * batch carries on, whether it is an I/O error or an unexpected 
+ * runtime exception.
+ * 
+ * @author Michael Fitzmaurice
+ */
+final class InsertPipeline {
+    
+    private static final int QUEUED_FILES_PER_WRITER = 4;
+    private static final transient Logger LOG = 
+            LoggerFactory.getLogger(InsertPipeline.class); 
+    
+    private final HeaderInserter inserter;
+    private final int writers;
+    
+    /**
+     * @param inserter Inserts the header into each file
+     * @param writers The number of threads writing files at once
+     */
+    InsertPipeline(HeaderInserter inserter, int writers) {
+        this.inserter = inserter;
+        this.writers = writers;
+    }
+    
+    /**
+     * @param files The files to insert the header into
+     * @return The files that could not be amended, sorted by path, 
+     *          with the reason for each
+     * @throws InterruptedIOException If the calling thread is 
+     *          interrupted while waiting for the writers to finish
+     */
+    SortedMap<File, IOException> insertAll(Collection<File> files) 
+    throws InterruptedIOException {
+        
+        final Map<File, IOException> failures = 
+            new HashMap<File, IOException>();
+        ThreadPoolExecutor pool = 
+            new ThreadPoolExecutor(
+                    writers, 
+                    writers, 
+                    0, 
+                    TimeUnit.MILLISECONDS, 
+                    new ArrayBlockingQueue<Runnable>(
+                                        writers * QUEUED_FILES_PER_WRITER), 
+                    new ThreadPoolExecutor.CallerRunsPolicy() );
+        try {
+            for (final File file : files) {
+                pool.execute( new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            inserter.insert(file);
+                            LOG.info("Added header to {}", file);
+                        } catch (IOException e) {
+                            failed(e);
+                        } catch (RuntimeException e) {
+                            // recorded like any other failure, rather 
+                            // than lost with the pool thread
+                            failed( new IOException("Failed to add header to " 
+                                                        + file, 
+                                                    e) );
+                        }
+                    }
+                    
+                    private void failed(IOException e) {
+                        
+                        LOG.error("Failed to add header to " + file, e);
+                        synchronized (failures) {
+                            failures.put(file, e);
+                        }
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+        }
+        try {
+            while ( pool.awaitTermination(1, TimeUnit.MINUTES) == false ) {
+                LOG.debug("Waiting for header insertion to finish");
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                        "Interrupted while inserting headers");
+        }
+        
+        synchronized (failures) {
+            return new TreeMap<File, IOException>(failures);
+        }
+    }
+}
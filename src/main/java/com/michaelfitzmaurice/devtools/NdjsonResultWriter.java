@@ -0,0 +1,124 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * Writes the result for each file to a stream as a line of JSON, 
+ * as soon as the file has been checked, so that tools downstream 
+ * can start work before the scan finishes. Each record looks like:
+ * 
+ * <pre> 
+ * {"path":"/src/Foo.java","status":"header","header":"/h/apache.txt","bytes_read":617} 
+ * </pre>
+ * 
+ * where <code>status</code> is <code>header</code>, 
+ * <code>missing</code>, <code>binary</code> or 
+ * <code>oversized</code>, <code>header</code> is null unless a 
+ * header was found, and <code>bytes_read</code> is zero for files 
+ * that were not opened. The stream is flushed after every record.
+ * <p>
+ * Results from a parallel scan arrive on several threads at once; 
+ * each record is written whole, but records are in no particular 
+ * order.
+ * 
+ * @author Michael Fitzmaurice
+ */
+final class NdjsonResultWriter implements ScanListener {
+    
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    
+    private final Writer out;
+    private final ScanMetrics metrics;
+    private final StringBuilder record = new StringBuilder(256);
+    
+    /**
+     * @param out Where to write the records; never closed
+     * @param metrics The metrics the header check records its 
+     *          reads in, for the bytes read from each file
+     */
+    NdjsonResultWriter(OutputStream out, ScanMetrics metrics) {
+        this.out = new OutputStreamWriter(out, UTF8);
+        this.metrics = metrics;
+    }
+    
+    @Override
+    public void headerFound(File file, File headerFile) 
+    throws IOException {
+        write(file, "header", headerFile);
+    }
+    
+    @Override
+    public void headerMissing(File file) 
+    throws IOException {
+        write(file, "missing", null);
+    }
+    
+    @Override
+    public void fileSkipped(File file, SkipReason reason) 
+    throws IOException {
+        write( file, reason.name().toLowerCase(Locale.ENGLISH), null );
+    }
+    
+    private void write(File file, String status, File headerFile) 
+    throws IOException {
+        
+        // read on this thread before taking the lock
+        long bytesRead = metrics.bytesReadByLastCheck();
+        synchronized (this) {
+            record.setLength(0);
+            record.append("{\"path\":");
+            appendString( file.getPath() );
+            record.append(",\"status\":\"").append(status).append('"');
+            record.append(",\"header\":");
+            if (headerFile == null) {
+                record.append("null");
+            } else {
+                appendString( headerFile.getPath() );
+            }
+            record.append(",\"bytes_read\":").append(bytesRead);
+            record.append("}\n");
+            out.append(record);
+            out.flush();
+        }
+    }
+    
+    private void appendString(String value) {
+        
+        record.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                record.append('\\').append(c);
+            } else if (c < 0x20) {
+                record.append("\\u00")
+                    .append( HEX[c >> 4] )
+                    .append( HEX[c & 0xf] );
+            } else {
+                record.append(c);
+            }
+        }
+        record.append('"');
+    }
+}
@@ -0,0 +1,278 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Checks each file in a directory tree for headers using a fork-join 
+ * pool, with one task per directory. Sub-directories are forked as 
+ * soon as they are found, so idle worker threads steal whole 
+ * sub-trees from busy ones, while files are checked by the thread 
+ * that listed their directory.
+ * <p>
+ * Like a serial scan, the walk follows symbolic links, and skips a 
+ * link to a directory that is already being walked further up the 
+ * same path, so that a link pointing back up the tree neither loops 
+ * nor reports the same files twice.
+ * 
+ * @author Michael Fitzmaurice
+ */
+final class ParallelScanner {
+    
+    private final HeaderCheck headerCheck;
+    private final List<File> headerFiles;
+    private final ForkJoinPool pool;
+    private final ScanMetrics metrics;
+    
+    /**
+     * @param headerCheck Decides which header each file begins with
+     * @param headerFiles The files holding the headers, in the order 
+     *          the header check numbers them
+     * @param pool The worker threads to scan with
+     * @param metrics Where to count the files walked past and time 
+     *          the listing of each directory
+     */
+    ParallelScanner(HeaderCheck headerCheck, 
+                    List<File> headerFiles, 
+                    ForkJoinPool pool,
+                    ScanMetrics metrics) {
+        this.headerCheck = headerCheck;
+        this.headerFiles = headerFiles;
+        this.pool = pool;
+        this.metrics = metrics;
+    }
+    
+    /**
+     * @param rootDir The directory to begin the search from
+     * @param filter Decides which files are checked
+     * @param exclusions Decides which files are skipped, and which 
+     *          directories are not listed at all
+     * @param listener Told about each file as it is checked; called 
+     *          from several threads at once, in no particular order
+     * 
+     * @throws IOException If something goes wrong reading the content
+     *         of any of the files being scanned, or the listener fails
+     */
+    void scan(File rootDir, 
+                FileExtensionFilter filter, 
+                ExclusionRules exclusions,
+                ScanListener listener) 
+    throws IOException {
+        
+        BasicFileAttributes rootAttrs = attributes(rootDir);
+        if ( rootAttrs == null || rootAttrs.isDirectory() == false ) {
+            return;
+        }
+        try {
+            pool.invoke( 
+                new DirectoryScan(rootDir, 
+                                    "", 
+                                    new Ancestor( 
+                                        directoryKey(rootDir, rootAttrs), 
+                                        null ),
+                                    filter, 
+                                    exclusions, 
+                                    listener) );
+        } catch (ScanFailure e) {
+            throw e.getCause();
+        }
+    }
+    
+    private class DirectoryScan extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final File dir;
+        private final String relativePath;
+        private final Ancestor ancestors;
+        private final FileExtensionFilter filter;
+        private final ExclusionRules exclusions;
+        private final ScanListener listener;
+        
+        DirectoryScan(File dir, 
+                        String relativePath,
+                        Ancestor ancestors,
+                        FileExtensionFilter filter, 
+                        ExclusionRules exclusions,
+                        ScanListener listener) {
+            this.dir = dir;
+            this.relativePath = relativePath;
+            this.ancestors = ancestors;
+            this.filter = filter;
+            this.exclusions = exclusions;
+            this.listener = listener;
+        }
+        
+        @Override
+        protected void compute() {
+            
+            long start = System.nanoTime();
+            File[] children = dir.listFiles();
+            if (children == null) {
+                return;
+            }
+            
+            List<DirectoryScan> subDirScans = new ArrayList<DirectoryScan>();
+            List<File> files = new ArrayList<File>();
+            List<BasicFileAttributes> fileAttrs = 
+                new ArrayList<BasicFileAttributes>();
+            int filesVisited = 0;
+            try {
+                for (File child : children) {
+                    BasicFileAttributes attrs = attributes(child);
+                    if ( attrs == null ) {
+                        // vanished since the directory was listed
+                        continue;
+                    }
+                    String name = child.getName();
+                    String childPath = relativePath.isEmpty() 
+                                        ? name 
+                                        : relativePath + "/" + name;
+                    if ( attrs.isDirectory() ) {
+                        if ( exclusions.excludes(childPath, name, true) ) {
+                            continue;
+                        }
+                        Object key = directoryKey(child, attrs);
+                        if ( ancestors.contains(key) ) {
+                            // a link back up the tree, which walkFileTree 
+                            // reports as a FileSystemLoopException
+                            continue;
+                        }
+                        DirectoryScan subDirScan = 
+                            new DirectoryScan(child, 
+                                                childPath, 
+                                                new Ancestor(key, ancestors),
+                                                filter, 
+                                                exclusions, 
+                                                listener);
+                        subDirScan.fork();
+                        subDirScans.add(subDirScan);
+                    } else {
+                        filesVisited++;
+                        if ( filter.accept(name) 
+                                && exclusions.excludes(childPath, name, false) == false ) {
+                            files.add(child);
+                            fileAttrs.add(attrs);
+                        }
+                    }
+                }
+                metrics.walked(filesVisited, System.nanoTime() - start);
+                
+                for (int i = 0; i < files.size(); i++) {
+                    File file = files.get(i);
+                    int header = 
+                        headerCheck.matchingHeader( file, fileAttrs.get(i) );
+                    SerialScanner.report(header, file, headerFiles, listener);
+                }
+            } catch (IOException e) {
+                throw new ScanFailure(e);
+            }
+            for (DirectoryScan subDirScan : subDirScans) {
+                subDirScan.join();
+            }
+        }
+    }
+    
+    private static BasicFileAttributes attributes(File file) 
+    throws IOException {
+        
+        Path path = file.toPath();
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            // a broken symbolic link is still reported as a file,
+            // just as FileUtils.listFiles would
+            if ( Files.isSymbolicLink(path) ) {
+                return Files.readAttributes(path, 
+                                            BasicFileAttributes.class,
+                                            LinkOption.NOFOLLOW_LINKS);
+            }
+            return null;
+        }
+    }
+    
+    /**
+     * @return What identifies a directory however it is reached: its 
+     *          file key where the file system has one, as 
+     *          <code>walkFileTree</code> uses, or else its real path
+     */
+    private static Object directoryKey(File dir, BasicFileAttributes attrs) 
+    throws IOException {
+        
+        Object key = attrs.fileKey();
+        if (key == null) {
+            key = dir.toPath().toRealPath();
+        }
+        
+        return key;
+    }
+    
+    /**
+     * One directory on the path from the root to the directory being 
+     * scanned; shared by the scans of sibling directories
+     */
+    private static final class Ancestor {
+        
+        private final Object key;
+        private final Ancestor parent;
+        
+        Ancestor(Object key, Ancestor parent) {
+            this.key = key;
+            this.parent = parent;
+        }
+        
+        boolean contains(Object otherKey) {
+            
+            Ancestor ancestor = this;
+            while (ancestor != null) {
+                if ( ancestor.key.equals(otherKey) ) {
+                    return true;
+                }
+                ancestor = ancestor.parent;
+            }
+            
+            return false;
+        }
+    }
+    
+    /**
+     * Carries an <code>IOException</code> out of a fork-join task
+     */
+    private static class ScanFailure extends RuntimeException {
+        
+        private static final long serialVersionUID = 1L;
+        
+        ScanFailure(IOException cause) {
+            super(cause);
+        }
+        
+        @Override
+        public IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
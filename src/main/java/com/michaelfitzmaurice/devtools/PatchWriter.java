@@ -0,0 +1,281 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes, rather than makes, the change that inserting the header 
+ * would make to each file found without one, as a unified diff that 
+ * <code>git apply</code> or <code>patch -p1</code> accepts when run 
+ * from the source directory. The diff for each file is written as 
+ * soon as the file has been checked, so the patch is produced in the 
+ * same single pass over the tree as the scan, and no file is ever 
+ * written to.
+ * <p>
+ * Each file gets one hunk, at the top of the file, with up to 
+ * {@link #CONTEXT_LINES} lines of context after the header and any 
+ * {@link Preamble} before it, so only those lines are read from the 
+ * file. Context lines are copied byte for byte, line terminators 
+ * included, and a file whose last line has no terminator is marked 
+ * as such, so the patch applies cleanly whatever the encoding and 
+ * line endings of the file. The stream is flushed after every file.
+ * <p>
+ * Results from a parallel scan arrive on several threads at once; 
+ * each file's diff is written whole, but files are in no particular 
+ * order.
+ * 
+ * @author Michael Fitzmaurice
+ */
+final class PatchWriter implements ScanListener {
+    
+    /**
+     * The number of unchanged lines shown after the header, as in 
+     * the default output of <code>diff -u</code>
+     */
+    static final int CONTEXT_LINES = 3;
+    
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte LF = '\n';
+    private static final byte[] NO_NEWLINE = 
+        "\\ No newline at end of file\n".getBytes(UTF8);
+    private static final int READ_SIZE = 512;
+    
+    private final Path rootDir;
+    private final FileTypeCache<byte[]> headers;
+    private final OutputStream out;
+    
+    /**
+     * @param rootDir The directory the paths in the patch are relative to
+     * @param headers The encoded header to insert into each type of file
+     * @param out Where to write the patch; never closed
+     */
+    PatchWriter(File rootDir, FileTypeCache<byte[]> headers, OutputStream out) {
+        this.rootDir = rootDir.getAbsoluteFile().toPath();
+        this.headers = headers;
+        this.out = out;
+    }
+    
+    @Override
+    public void headerFound(File file, File headerFile) {
+        // nothing to change
+    }
+    
+    @Override
+    public void headerMissing(File file)
+    throws IOException {
+        
+        // read and format on this thread before taking the lock
+        byte[] diff = diff(file);
+        synchronized (this) {
+            out.write(diff);
+            out.flush();
+        }
+    }
+    
+    @Override
+    public void fileSkipped(File file, SkipReason reason) {
+        // binary and oversized files are never amended
+    }
+    
+    private byte[] diff(File file)
+    throws IOException {
+        
+        byte[] header = headers.forFile(file);
+        byte[] leading = readLeadingLines(file);
+        int preamble = 0;
+        if ( Preamble.length(header, header.length) == 0 ) {
+            preamble = Preamble.length(leading, leading.length);
+        }
+        List<byte[]> oldLines = lines(leading, 0, leading.length);
+        List<byte[]> headerLines = lines(header, 0, header.length);
+        
+        // the lines of the hunk, each starting with ' ', '-' or '+'
+        List<byte[]> hunk = new ArrayList<byte[]>();
+        int oldCount = 0;
+        int newCount = 0;
+        int line = 0;
+        if (preamble > 0 && leading[preamble - 1] != LF) {
+            // the header splits the first line, after a byte order mark
+            // or an XML declaration with no line break after it
+            byte[] firstLine = oldLines.get(line++);
+            hunk.add( prefixed('-', firstLine) );
+            oldCount++;
+            byte[] separator = 
+                Preamble.separator(leading, preamble, leading.length, header);
+            if (separator.length > 0) {
+                // the file is an interpreter line or declaration with 
+                // no line break, which the header goes on the line after
+                headerLines.add( 0, 
+                                concat( Arrays.copyOf(firstLine, preamble), 
+                                        separator ) );
+            } else {
+                byte[] headerStart = 
+                    concat( Arrays.copyOf(firstLine, preamble), 
+                            headerLines.remove(0) );
+                headerLines.add(0, headerStart);
+            }
+            if (firstLine.length > preamble) {
+                headerLines.add( Arrays.copyOfRange(firstLine, 
+                                                    preamble, 
+                                                    firstLine.length) );
+            }
+        } else {
+            int position = 0;
+            while (position < preamble) {
+                byte[] preambleLine = oldLines.get(line++);
+                hunk.add( prefixed(' ', preambleLine) );
+                oldCount++;
+                newCount++;
+                position += preambleLine.length;
+            }
+        }
+        for (byte[] headerLine : headerLines) {
+            hunk.add( prefixed('+', headerLine) );
+            newCount++;
+        }
+        for (int context = 0;
+                context < CONTEXT_LINES && line < oldLines.size();
+                context++) {
+            hunk.add( prefixed(' ', oldLines.get(line++) ) );
+            oldCount++;
+            newCount++;
+        }
+        
+        String path = 
+            rootDir.relativize( file.getAbsoluteFile().toPath() )
+                .toString()
+                .replace(File.separatorChar, '/');
+        ByteArrayOutputStream diff = new ByteArrayOutputStream();
+        writeAscii(diff, "diff --git a/" + path + " b/" + path + "\n");
+        writeAscii(diff, "--- a/" + path + "\n");
+        writeAscii(diff, "+++ b/" + path + "\n");
+        writeAscii(diff, "@@ -" + (oldCount == 0 ? 0 : 1) + "," + oldCount
+                        + " +1," + newCount + " @@\n");
+        for (byte[] hunkLine : hunk) {
+            diff.write(hunkLine);
+            if (hunkLine[hunkLine.length - 1] != LF) {
+                diff.write(LF);
+                diff.write(NO_NEWLINE);
+            }
+        }
+        
+        return diff.toByteArray();
+    }
+    
+    /**
+     * Reads no more of a file than the preamble and the context 
+     * lines after it, give or take the last block read. Lines are 
+     * counted from the end of the preamble, however many lines it 
+     * takes up, and every line needed is read to its end. Any line 
+     * beyond those may be cut short.
+     */
+    private static byte[] readLeadingLines(File file)
+    throws IOException {
+        
+        ByteArrayOutputStream leading = new ByteArrayOutputStream();
+        byte[] buffer = new byte[READ_SIZE];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while ( ( read = in.read(buffer) ) != -1 ) {
+                leading.write(buffer, 0, read);
+                if ( leading.size() >= Preamble.MAX_LENGTH 
+                        && hasContext( leading.toByteArray() ) ) {
+                    break;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        
+        return leading.toByteArray();
+    }
+    
+    /**
+     * @param leading At least the first {@link Preamble#MAX_LENGTH} 
+     *          bytes of a file
+     * @return Whether the bytes take in the end of every line the 
+     *          hunk may show after the preamble: the rest of the line 
+     *          the preamble ends in, if it ends mid-line, and the 
+     *          {@link #CONTEXT_LINES} lines after that
+     */
+    private static boolean hasContext(byte[] leading) {
+        
+        int lineEnds = 0;
+        for (int pos = Preamble.length(leading, leading.length); 
+                pos < leading.length; 
+                pos++) {
+            if (leading[pos] == LF) {
+                lineEnds++;
+            }
+        }
+        
+        return lineEnds > CONTEXT_LINES;
+    }
+    
+    /**
+     * Splits bytes into lines, each keeping its terminator. The last 
+     * line has no terminator if the bytes do not end with one.
+     */
+    private static List<byte[]> lines(byte[] bytes, int from, int to) {
+        
+        List<byte[]> lines = new ArrayList<byte[]>();
+        int start = from;
+        for (int pos = from; pos < to; pos++) {
+            if (bytes[pos] == LF) {
+                lines.add( Arrays.copyOfRange(bytes, start, pos + 1) );
+                start = pos + 1;
+            }
+        }
+        if (start < to) {
+            lines.add( Arrays.copyOfRange(bytes, start, to) );
+        }
+        
+        return lines;
+    }
+    
+    private static byte[] prefixed(char marker, byte[] line) {
+        
+        byte[] prefixed = new byte[line.length + 1];
+        prefixed[0] = (byte) marker;
+        System.arraycopy(line, 0, prefixed, 1, line.length);
+        
+        return prefixed;
+    }
+    
+    private static byte[] concat(byte[] first, byte[] second) {
+        
+        byte[] both = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        
+        return both;
+    }
+    
+    private static void writeAscii(ByteArrayOutputStream diff, String text)
+    throws IOException {
+        diff.write( text.getBytes(UTF8) );
+    }
+}
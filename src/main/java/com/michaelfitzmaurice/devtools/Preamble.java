@@ -0,0 +1,188 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools;
+
+import java.util.Arrays;
+
+/**
+ * Recognises the few things that must stay at the very start of a 
+ * file, ahead of any header: a UTF-8 byte order mark, followed by 
+ * a <code>#!</code> interpreter line, an XML declaration, or a PHP 
+ * <code>&lt;?php</code> opening tag line (which may itself follow an 
+ * interpreter line), as a comment before it would be output as text. 
+ * Headers are matched right after the preamble, and inserted there.
+ * <p>
+ * Only the first {@link #MAX_LENGTH} bytes of a file are examined, 
+ * so looking for a preamble costs the same for every file. That is 
+ * as long as the kernel allows an interpreter line to be, and far 
+ * longer than any XML declaration; a longer line is not treated as 
+ * a preamble.
+ * 
+ * @author Michael Fitzmaurice
+ */
+final class Preamble {
+    
+    /**
+     * The most bytes a preamble can occupy
+     */
+    static final int MAX_LENGTH = 256;
+    
+    private static final byte[] BYTE_ORDER_MARK = 
+        { (byte) 0xef, (byte) 0xbb, (byte) 0xbf };
+    private static final byte[] SHEBANG = { '#', '!' };
+    private static final byte[] XML_DECLARATION = 
+        { '<', '?', 'x', 'm', 'l' };
+    private static final byte[] PHP_OPEN_TAG = { '<', '?', 'p', 'h', 'p' };
+    private static final byte LF = '\n';
+    private static final byte CR = '\r';
+    
+    private Preamble() {
+        // static methods only
+    }
+    
+    /**
+     * @param bytes The leading bytes of a file: at least 
+     *          {@link #MAX_LENGTH} of them, unless the file is shorter
+     * @param length The number of valid bytes in <code>bytes</code>
+     * @return The number of bytes the preamble occupies, including 
+     *          the line terminator that ends it; zero if there is none
+     */
+    static int length(byte[] bytes, int length) {
+        
+        boolean endOfFile = length < MAX_LENGTH;
+        length = Math.min(length, MAX_LENGTH);
+        int pos = 0;
+        if ( startsWith(bytes, pos, length, BYTE_ORDER_MARK) ) {
+            pos += BYTE_ORDER_MARK.length;
+        }
+        int end;
+        boolean terminated;
+        if ( startsWith(bytes, pos, length, SHEBANG) ) {
+            end = endOfLine(bytes, pos + SHEBANG.length, length);
+            terminated = end < length;
+            int next = lineEnd(bytes, end, length);
+            if ( terminated && startsWith(bytes, next, length, PHP_OPEN_TAG) ) {
+                end = endOfLine(bytes, next + PHP_OPEN_TAG.length, length);
+                terminated = end < length;
+            }
+        } else if ( startsWith(bytes, pos, length, PHP_OPEN_TAG) ) {
+            end = endOfLine(bytes, pos + PHP_OPEN_TAG.length, length);
+            terminated = end < length;
+        } else if ( startsWith(bytes, pos, length, XML_DECLARATION) ) {
+            end = pos + XML_DECLARATION.length;
+            while ( end < length 
+                    && ( bytes[end - 1] != '?' || bytes[end] != '>' ) ) {
+                end++;
+            }
+            terminated = end < length;
+            end++;
+        } else {
+            return pos;
+        }
+        if (terminated == false) {
+            // not ended within the budget: a preamble only if the 
+            // whole file has been seen
+            return endOfFile ? length : pos;
+        }
+        
+        return lineEnd(bytes, end, length);
+    }
+    
+    /**
+     * @param bytes The leading bytes of a file, as passed to 
+     *          {@link #length(byte[], int)}
+     * @param preamble The length of the preamble in them
+     * @param length The number of valid bytes in <code>bytes</code>
+     * @param header The header to go after the preamble, ending with 
+     *          a line separator
+     * @return The bytes to write between the preamble and the header: 
+     *          the header's own line separator if the preamble is the 
+     *          whole file and is not ended by one, as the header would 
+     *          otherwise run on from the end of an interpreter line or 
+     *          declaration; otherwise none
+     */
+    static byte[] separator(byte[] bytes, 
+                            int preamble, 
+                            int length, 
+                            byte[] header) {
+        
+        if ( preamble == 0 
+                || preamble < length 
+                || bytes[preamble - 1] == LF 
+                || bytes[preamble - 1] == CR 
+                || ( preamble == BYTE_ORDER_MARK.length 
+                    && startsWith(bytes, 0, length, BYTE_ORDER_MARK) ) ) {
+            return new byte[0];
+        }
+        int end = header.length;
+        if (end > 0 && header[end - 1] == LF) {
+            end--;
+        }
+        if (end > 0 && header[end - 1] == CR) {
+            end--;
+        }
+        
+        return end == header.length 
+                ? new byte[] { LF } 
+                : Arrays.copyOfRange(header, end, header.length);
+    }
+    
+    /**
+     * @return The position of the next line terminator from a given 
+     *          position, or <code>length</code> if there is none
+     */
+    private static int endOfLine(byte[] bytes, int pos, int length) {
+        
+        while ( pos < length && bytes[pos] != LF && bytes[pos] != CR ) {
+            pos++;
+        }
+        
+        return pos;
+    }
+    
+    /**
+     * @return The position after the line terminator, if any, at a 
+     *          given position
+     */
+    private static int lineEnd(byte[] bytes, int pos, int length) {
+        
+        if (pos < length && bytes[pos] == CR) {
+            pos++;
+        }
+        if (pos < length && bytes[pos] == LF) {
+            pos++;
+        }
+        
+        return pos;
+    }
+    
+    private static boolean startsWith(byte[] bytes, 
+                                        int from, 
+                                        int length, 
+                                        byte[] prefix) {
+        
+        if (length - from < prefix.length) {
+            return false;
+        }
+        for (int pos = 0; pos < prefix.length; pos++) {
+            if (bytes[from + pos] != prefix[pos]) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+}
@@ -0,0 +1,513 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * The files found by a scan, held compactly enough for trees of 
+ * many millions of files, and iterated in path order as 
+ * {@link HeaderTool#listFilesWithoutHeader(File, String[])} sorts 
+ * them.
+ * <p>
+ * Each path is kept relative to the root of the scan, as UTF-8 in a 
+ * single byte array, with its offset in an array of ints, which 
+ * takes a fraction of the space of the equivalent <code>File</code> 
+ * objects. Once the paths and offsets in memory pass a threshold, 
+ * the offsets are sorted by comparing the encoded paths in place, 
+ * and the paths written in that order to a temporary file as a run, 
+ * one at a time; memory is then freed for the next run. On disk each 
+ * path is front coded: stored as the number of characters it shares 
+ * with the path before it, followed only by the rest, which sorted 
+ * paths from a walk make a small fraction of their length. Iterating 
+ * merges the runs with whatever is still in memory, reading each run 
+ * a buffer at a time and decoding one path at a time, so heap use 
+ * stays close to the threshold however large the tree.
+ * <p>
+ * Files can be added from several threads at once. Iterating while 
+ * files are still being added is not supported. The temporary files 
+ * are deleted by {@link #close()}, after which the store is empty.
+ * 
+ * @author Michael Fitzmaurice
+ */
+public final class ResultStore extends AbstractCollection<File>
+implements Closeable {
+    
+    /**
+     * The size, in bytes, that the paths and offsets held in memory 
+     * may reach before they are written to disk
+     */
+    public static final long DEFAULT_MEMORY_THRESHOLD = 64L * 1024 * 1024;
+    
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    private static final int INITIAL_OFFSETS = 256;
+    private static final int RUN_BUFFER_SIZE = 64 * 1024;
+    // paths outside the root are kept whole, after this marker,
+    // which cannot appear in a path
+    private static final char ABSOLUTE = '\0';
+    
+    private final File rootDir;
+    private final String rootPrefix;
+    private final long memoryThreshold;
+    private final File spillDir;
+    private final List<File> runs = new ArrayList<File>();
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int bufferLength;
+    private int[] offsets = new int[INITIAL_OFFSETS];
+    private int bufferedPaths;
+    private int size;
+    
+    /**
+     * @param rootDir The directory the files are under
+     * @param memoryThreshold The size, in bytes, the paths and offsets 
+     *          held in memory may reach before they are written to disk
+     * @param spillDir Where to write runs of paths, or null for the 
+     *          default temporary directory
+     */
+    ResultStore(File rootDir, long memoryThreshold, File spillDir) {
+        this.rootDir = rootDir;
+        this.rootPrefix = rootDir.getPath() + File.separator;
+        this.memoryThreshold = memoryThreshold;
+        this.spillDir = spillDir;
+    }
+    
+    @Override
+    public synchronized boolean add(File file) {
+        
+        String path = file.getPath();
+        if ( path.startsWith(rootPrefix) ) {
+            path = path.substring( rootPrefix.length() );
+        } else {
+            path = ABSOLUTE + path;
+        }
+        byte[] bytes = path.getBytes(UTF8);
+        if (bufferLength + 5 + bytes.length > buffer.length) {
+            buffer = Arrays.copyOf( buffer, 
+                                    Math.max(bufferLength + 5 + bytes.length, 
+                                            buffer.length * 2) );
+        }
+        if (bufferedPaths == offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        offsets[bufferedPaths++] = bufferLength;
+        bufferLength = writeVarInt(bytes.length, buffer, bufferLength);
+        System.arraycopy(bytes, 0, buffer, bufferLength, bytes.length);
+        bufferLength += bytes.length;
+        size++;
+        if (bufferLength + 4L * bufferedPaths >= memoryThreshold) {
+            try {
+                spill();
+            } catch (IOException e) {
+                throw new IllegalStateException( 
+                            "Unable to write scan results to disk", e);
+            }
+        }
+        
+        return true;
+    }
+    
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+    
+    /**
+     * @return The number of runs written to disk so far
+     */
+    synchronized int runCount() {
+        return runs.size();
+    }
+    
+    @Override
+    public synchronized Iterator<File> iterator() {
+        
+        final PriorityQueue<Run> sources = new PriorityQueue<Run>();
+        try {
+            for (File run : runs) {
+                Run source = new FileRun(run);
+                if ( source.advance() ) {
+                    sources.add(source);
+                }
+            }
+        } catch (IOException e) {
+            for (Run source : sources) {
+                source.close();
+            }
+            throw new IllegalStateException("Unable to read scan results", e);
+        }
+        MemoryRun inMemory = 
+            new MemoryRun( buffer, sortedOffsets(), bufferedPaths );
+        if ( inMemory.advance() ) {
+            sources.add(inMemory);
+        }
+        
+        return new Iterator<File>() {
+            @Override
+            public boolean hasNext() {
+                return sources.isEmpty() == false;
+            }
+            
+            @Override
+            public File next() {
+                
+                Run source = sources.poll();
+                if (source == null) {
+                    throw new NoSuchElementException();
+                }
+                String path = source.current;
+                try {
+                    if ( source.advance() ) {
+                        sources.add(source);
+                    } else {
+                        source.close();
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException( 
+                                "Unable to read scan results", e);
+                }
+                
+                return toFile(path);
+            }
+            
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+    
+    /**
+     * Deletes the runs written to disk and empties the store
+     */
+    @Override
+    public synchronized void close() {
+        
+        for (File run : runs) {
+            run.delete();
+        }
+        runs.clear();
+        clearBuffer();
+        size = 0;
+    }
+    
+    private void clearBuffer() {
+        
+        buffer = new byte[INITIAL_BUFFER_SIZE];
+        bufferLength = 0;
+        offsets = new int[INITIAL_OFFSETS];
+        bufferedPaths = 0;
+    }
+    
+    private File toFile(String path) {
+        
+        if (path.charAt(0) == ABSOLUTE) {
+            return new File( path.substring(1) );
+        }
+        
+        return new File(rootDir, path);
+    }
+    
+    private void spill()
+    throws IOException {
+        
+        int[] sorted = sortedOffsets();
+        File run = File.createTempFile("header-results", ".run", spillDir);
+        runs.add(run);
+        DataOutputStream out = 
+            new DataOutputStream( new BufferedOutputStream( 
+                                    new FileOutputStream(run), 
+                                    RUN_BUFFER_SIZE ) );
+        try {
+            byte[] entry = new byte[INITIAL_BUFFER_SIZE];
+            String previous = "";
+            for (int i = 0; i < bufferedPaths; i++) {
+                String path = decode(buffer, sorted[i]);
+                if (entry.length < path.length() * 3 + 10) {
+                    entry = new byte[path.length() * 3 + 10];
+                }
+                int length = encode(path, previous, entry, 0);
+                out.write(entry, 0, length);
+                previous = path;
+            }
+        } finally {
+            out.close();
+        }
+        clearBuffer();
+    }
+    
+    private static String decode(byte[] buffer, int offset) {
+        
+        int[] position = {offset};
+        int length = readVarInt(buffer, position);
+        
+        return new String(buffer, position[0], length, UTF8);
+    }
+    
+    /**
+     * @return The offsets of the paths held in memory, in path order
+     */
+    private int[] sortedOffsets() {
+        
+        int[] sorted = Arrays.copyOf(offsets, bufferedPaths);
+        mergeSort( sorted, new int[bufferedPaths], 0, bufferedPaths );
+        
+        return sorted;
+    }
+    
+    private void mergeSort(int[] sorted, int[] scratch, int from, int to) {
+        
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(sorted, scratch, from, middle);
+        mergeSort(sorted, scratch, middle, to);
+        if ( compare(sorted[middle - 1], sorted[middle]) <= 0 ) {
+            // already in order, as paths from a walk often are
+            return;
+        }
+        System.arraycopy(sorted, from, scratch, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if ( right == to 
+                    || ( left < middle 
+                        && compare(scratch[left], scratch[right]) <= 0 ) ) {
+                sorted[i] = scratch[left++];
+            } else {
+                sorted[i] = scratch[right++];
+            }
+        }
+    }
+    
+    /**
+     * Compares two encoded paths in the buffer in the order their 
+     * strings would compare in, without decoding them. UTF-8 bytes 
+     * compare in code point order, which only differs from string 
+     * order between characters from U+E000 to U+FFFF, whose lead bytes 
+     * are 0xEE and 0xEF, and supplementary characters, whose lead 
+     * bytes are 0xF0 and above but which strings hold as surrogates 
+     * that sort below U+E000.
+     */
+    private int compare(int first, int second) {
+        
+        int[] position = {first};
+        int firstLength = readVarInt(buffer, position);
+        int firstStart = position[0];
+        position[0] = second;
+        int secondLength = readVarInt(buffer, position);
+        int secondStart = position[0];
+        int limit = Math.min(firstLength, secondLength);
+        for (int i = 0; i < limit; i++) {
+            int a = buffer[firstStart + i] & 0xff;
+            int b = buffer[secondStart + i] & 0xff;
+            if (a != b) {
+                if (a >= 0xee && b >= 0xee) {
+                    return stringRank(a) - stringRank(b);
+                }
+                return a - b;
+            }
+        }
+        
+        return firstLength - secondLength;
+    }
+    
+    private static int stringRank(int leadByte) {
+        return leadByte >= 0xf0 ? leadByte - 0x10 : leadByte;
+    }
+    
+    /**
+     * Writes a path to a buffer large enough to hold it as the length 
+     * of the prefix it shares with the path before, the length of the 
+     * rest once encoded, and the rest.
+     * 
+     * @return The position after the encoded path
+     */
+    private static int encode(String path, 
+                                String previous, 
+                                byte[] target, 
+                                int at) {
+        
+        int shared = 0;
+        int limit = Math.min( path.length(), previous.length() );
+        while ( shared < limit
+                && path.charAt(shared) == previous.charAt(shared) ) {
+            shared++;
+        }
+        // never split a surrogate pair between prefix and suffix
+        if ( shared > 0
+                && Character.isHighSurrogate( path.charAt(shared - 1) ) ) {
+            shared--;
+        }
+        byte[] suffix = path.substring(shared).getBytes(UTF8);
+        at = writeVarInt(shared, target, at);
+        at = writeVarInt(suffix.length, target, at);
+        System.arraycopy(suffix, 0, target, at, suffix.length);
+        
+        return at + suffix.length;
+    }
+    
+    private static int writeVarInt(int value, byte[] target, int at) {
+        
+        while ( (value & ~0x7f) != 0 ) {
+            target[at++] = (byte) ( (value & 0x7f) | 0x80 );
+            value >>>= 7;
+        }
+        target[at++] = (byte) value;
+        
+        return at;
+    }
+    
+    private static int readVarInt(byte[] source, int[] position) {
+        
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = source[ position[0]++ ];
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ( (b & 0x80) != 0 );
+        
+        return value;
+    }
+    
+    /**
+     * One sorted source of paths being merged, positioned on its 
+     * current path
+     */
+    private abstract static class Run implements Comparable<Run> {
+        
+        String current;
+        
+        /**
+         * @return Whether there was another path to move on to
+         */
+        abstract boolean advance() throws IOException;
+        
+        abstract void close();
+        
+        @Override
+        public int compareTo(Run other) {
+            return current.compareTo(other.current);
+        }
+    }
+    
+    private static final class MemoryRun extends Run {
+        
+        private final byte[] buffer;
+        private final int[] sortedOffsets;
+        private final int paths;
+        private int next;
+        
+        MemoryRun(byte[] buffer, int[] sortedOffsets, int paths) {
+            this.buffer = buffer;
+            this.sortedOffsets = sortedOffsets;
+            this.paths = paths;
+        }
+        
+        @Override
+        boolean advance() {
+            
+            if (next == paths) {
+                return false;
+            }
+            current = decode( buffer, sortedOffsets[next++] );
+            
+            return true;
+        }
+        
+        @Override
+        void close() {
+            // nothing to release
+        }
+    }
+    
+    private static final class FileRun extends Run {
+        
+        private final DataInputStream in;
+        private byte[] suffix = new byte[256];
+        
+        FileRun(File run) throws IOException {
+            this.in = new DataInputStream( new BufferedInputStream( 
+                                            new FileInputStream(run), 
+                                            RUN_BUFFER_SIZE ) );
+            this.current = "";
+        }
+        
+        @Override
+        boolean advance() throws IOException {
+            
+            int shared;
+            try {
+                shared = readVarInt(in);
+            } catch (EOFException e) {
+                close();
+                return false;
+            }
+            int length = readVarInt(in);
+            if (suffix.length < length) {
+                suffix = new byte[length];
+            }
+            in.readFully(suffix, 0, length);
+            current = current.substring(0, shared)
+                        + new String(suffix, 0, length, UTF8);
+            
+            return true;
+        }
+        
+        @Override
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // only read from, so nothing can have been lost
+            }
+        }
+        
+        private static int readVarInt(DataInputStream in) throws IOException {
+            
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = in.readByte();
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ( (b & 0x80) != 0 );
+            
+            return value;
+        }
+    }
+}
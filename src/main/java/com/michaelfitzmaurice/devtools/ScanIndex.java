@@ -0,0 +1,418 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An on-disk record of the outcome of checking each file, keyed on 
+ * path, so that a file whose size and modification time have not 
+ * changed since the previous scan need not be read again.
+ * <p>
+ * The index is a single binary file that is memory mapped rather 
+ * than parsed, so opening it costs the same however many files it 
+ * describes. It is laid out as follows, all numbers big-endian:
+ * 
+ * <pre>
+ *   int    magic number
+ *   int    format version
+ *   long   fingerprint of the headers and match mode
+ *   int    number of entries
+ *   long   offset of the entry table
+ *   ...    entries: int path length, UTF-8 path, long size, 
+ *          long modification time, signed byte result (the 
+ *          position of the matching header plus one, zero for no 
+ *          match, or negative for a file skipped as binary)
+ *   ...    entry table: one int offset per entry, sorted by path
+ * </pre>
+ * 
+ * Lookups binary search the entry table, comparing paths as raw 
+ * bytes in the mapped file. An index written for a different 
+ * fingerprint is ignored, so changing the header, or the way it is 
+ * matched, rebuilds the index from scratch on the next scan.
+ * <p>
+ * Saving merges the files checked in this scan into the previous 
+ * index. Entries for files under the directory just walked that were 
+ * not checked this time - deleted, renamed or no longer selected - 
+ * are dropped, while entries outside it are kept, so one index can 
+ * serve scans of several directories.
+ * <p>
+ * Unlike the previous index, which stays on disk, the outcome of 
+ * each file checked in this scan is held in memory until the index 
+ * is saved: one entry per file, of roughly sixty bytes plus its 
+ * absolute path, so a scan of ten million files can need more than 
+ * a gigabyte of heap for its index.
+ * <p>
+ * Instances can be consulted and updated from several threads at 
+ * once. 
+ * 
+ * @author Michael Fitzmaurice
+ */
+final class ScanIndex implements HeaderCheck {
+    
+    private static final int MAGIC = 0x48544958; // "HTIX"
+    private static final int VERSION = 1;
+    private static final int PREAMBLE_LENGTH = 4 + 4 + 8 + 4 + 8;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final transient Logger LOG = 
+            LoggerFactory.getLogger(ScanIndex.class); 
+    
+    private final File indexFile;
+    private final long fingerprint;
+    private final HeaderCheck delegate;
+    private final ByteBuffer previous;
+    private final int previousCount;
+    private final long previousTableOffset;
+    private final List<Entry> entries = new ArrayList<Entry>();
+    
+    private int hits;
+    
+    private ScanIndex(File indexFile, 
+                        long fingerprint, 
+                        HeaderCheck delegate, 
+                        ByteBuffer previous) {
+        
+        this.indexFile = indexFile;
+        this.fingerprint = fingerprint;
+        this.delegate = delegate;
+        this.previous = previous;
+        if (previous == null) {
+            this.previousCount = 0;
+            this.previousTableOffset = 0;
+        } else {
+            this.previousCount = previous.getInt(16);
+            this.previousTableOffset = previous.getLong(20);
+        }
+    }
+    
+    /**
+     * Opens the index stored in a file, if there is one.
+     * 
+     * @param indexFile Where the index is kept; need not exist yet
+     * @param fingerprint Identifies the headers and match mode that 
+     *          results in the index were produced with
+     * @param delegate Checks files that the index cannot vouch for
+     * 
+     * @return An index holding the previous results, or an empty one
+     *          if there were none or they were for another fingerprint
+     * 
+     * @throws IOException If the index file exists but cannot be read
+     */
+    static ScanIndex open(File indexFile, 
+                            long fingerprint, 
+                            HeaderCheck delegate) 
+    throws IOException {
+        
+        if ( indexFile.isFile() == false ) {
+            LOG.info("No scan index at {}; building a new one", indexFile);
+            return new ScanIndex(indexFile, fingerprint, delegate, null);
+        }
+        
+        ByteBuffer mapped;
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 
+                                0, 
+                                channel.size() );
+        } finally {
+            raf.close();
+        }
+        
+        if ( mapped.capacity() < PREAMBLE_LENGTH
+                || mapped.getInt(0) != MAGIC
+                || mapped.getInt(4) != VERSION ) {
+            LOG.warn("{} is not a scan index; rebuilding it", indexFile);
+            mapped = null;
+        } else if (mapped.getLong(8) != fingerprint) {
+            LOG.info("Header has changed since {} was written; rebuilding it", 
+                        indexFile);
+            mapped = null;
+        }
+        
+        return new ScanIndex(indexFile, fingerprint, delegate, mapped);
+    }
+    
+    /**
+     * Uses the previous result for a file if its size and modification 
+     * time are unchanged, otherwise checks it afresh. Either way, the 
+     * result is remembered for the next call to {@link #save()}.
+     */
+    @Override
+    public int matchingHeader(File file, BasicFileAttributes attrs) 
+    throws IOException {
+        
+        byte[] path = file.getAbsolutePath().getBytes(UTF8);
+        long size = attrs.size();
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        
+        int header;
+        int offset = find(path);
+        if ( offset >= 0
+                && previous.getLong(offset + 4 + path.length) == size
+                && previous.getLong(offset + 12 + path.length) 
+                    == lastModified ) {
+            header = previous.get(offset + 20 + path.length) - 1;
+            synchronized (this) {
+                hits++;
+            }
+        } else {
+            header = delegate.matchingHeader(file, attrs);
+        }
+        
+        synchronized (this) {
+            entries.add( new Entry(path, size, lastModified, header) );
+        }
+        
+        return header;
+    }
+    
+    /**
+     * Writes the index back to its file, replacing the old one 
+     * atomically. Files checked since the index was opened take 
+     * their new results. Other entries are carried over unchanged, 
+     * except those under a directory that has just been walked in 
+     * full: a file there that was not checked has been deleted, 
+     * renamed or excluded, so its entry is dropped, and the index 
+     * only ever holds files that were present at the latest scan.
+     * 
+     * @param walkedRoot The directory whose whole tree was checked, 
+     *          or null if only some files were, as when checking the 
+     *          files changed since a commit
+     * @throws IOException If the index cannot be written
+     */
+    synchronized void save(File walkedRoot) 
+    throws IOException {
+        
+        byte[] walkedPrefix = null;
+        if (walkedRoot != null) {
+            walkedPrefix = 
+                (walkedRoot.getAbsolutePath() + File.separator).getBytes(UTF8);
+        }
+        Collections.sort(entries, PATH_ORDER);
+        File tmpFile = 
+            File.createTempFile(indexFile.getName(), 
+                                ".tmp", 
+                                indexFile.getAbsoluteFile().getParentFile() );
+        List<Integer> offsets = new ArrayList<Integer>();
+        long tableOffset;
+        DataOutputStream out = 
+            new DataOutputStream(
+                new BufferedOutputStream( 
+                    new FileOutputStream(tmpFile) ) );
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fingerprint);
+            out.writeInt(0);    // count and table offset are
+            out.writeLong(0);   // patched in once known
+            
+            byte[] lastWritten = null;
+            int nextNew = 0;
+            int nextPrevious = 0;
+            while ( nextNew < entries.size() || nextPrevious < previousCount ) {
+                Entry entry;
+                if ( nextPrevious == previousCount ) {
+                    entry = entries.get(nextNew++);
+                } else if ( nextNew == entries.size() ) {
+                    entry = previousEntry(nextPrevious++);
+                    if ( startsWith(entry.path, walkedPrefix) ) {
+                        continue;
+                    }
+                } else {
+                    Entry fresh = entries.get(nextNew);
+                    Entry stale = previousEntry(nextPrevious);
+                    int order = compare(fresh.path, stale.path);
+                    if (order <= 0) {
+                        entry = fresh;
+                        nextNew++;
+                        if (order == 0) {
+                            nextPrevious++;
+                        }
+                    } else {
+                        entry = stale;
+                        nextPrevious++;
+                        if ( startsWith(entry.path, walkedPrefix) ) {
+                            continue;
+                        }
+                    }
+                }
+                // the same file can be reached twice through links
+                if ( lastWritten != null 
+                        && compare(lastWritten, entry.path) == 0 ) {
+                    continue;
+                }
+                offsets.add( out.size() );
+                out.writeInt(entry.path.length);
+                out.write(entry.path);
+                out.writeLong(entry.size);
+                out.writeLong(entry.lastModified);
+                out.writeByte(entry.header + 1);
+                lastWritten = entry.path;
+            }
+            
+            tableOffset = out.size();
+            for (Integer offset : offsets) {
+                out.writeInt(offset);
+            }
+        } finally {
+            out.close();
+        }
+        
+        RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+        try {
+            raf.seek(16);
+            raf.writeInt( offsets.size() );
+            raf.writeLong(tableOffset);
+        } finally {
+            raf.close();
+        }
+        
+        try {
+            Files.move(tmpFile.toPath(), 
+                        indexFile.toPath(), 
+                        StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmpFile.toPath(), 
+                        indexFile.toPath(), 
+                        StandardCopyOption.REPLACE_EXISTING);
+        }
+        LOG.info("Saved {} entries to scan index {}; {} files were not re-read", 
+                    new Object[] {offsets.size(), indexFile, hits} );
+    }
+    
+    private int find(byte[] path) {
+        
+        int low = 0;
+        int high = previousCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int offset = entryOffset(mid);
+            int order = compareWithPrevious(offset, path);
+            if (order < 0) {
+                low = mid + 1;
+            } else if (order > 0) {
+                high = mid - 1;
+            } else {
+                return offset;
+            }
+        }
+        
+        return -1;
+    }
+    
+    private int entryOffset(int index) {
+        return previous.getInt( (int) previousTableOffset + index * 4 );
+    }
+    
+    private int compareWithPrevious(int offset, byte[] path) {
+        
+        int length = previous.getInt(offset);
+        int common = Math.min(length, path.length);
+        for (int i = 0; i < common; i++) {
+            int order = 
+                (previous.get(offset + 4 + i) & 0xff) - (path[i] & 0xff);
+            if (order != 0) {
+                return order;
+            }
+        }
+        
+        return length - path.length;
+    }
+    
+    private Entry previousEntry(int index) {
+        
+        int offset = entryOffset(index);
+        byte[] path = new byte[ previous.getInt(offset) ];
+        for (int i = 0; i < path.length; i++) {
+            path[i] = previous.get(offset + 4 + i);
+        }
+        
+        return new Entry(path, 
+                        previous.getLong(offset + 4 + path.length), 
+                        previous.getLong(offset + 12 + path.length), 
+                        previous.get(offset + 20 + path.length) - 1);
+    }
+    
+    private static boolean startsWith(byte[] path, byte[] prefix) {
+        
+        if (prefix == null || path.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (path[i] != prefix[i]) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    private static int compare(byte[] first, byte[] second) {
+        
+        int common = Math.min(first.length, second.length);
+        for (int i = 0; i < common; i++) {
+            int order = (first[i] & 0xff) - (second[i] & 0xff);
+            if (order != 0) {
+                return order;
+            }
+        }
+        
+        return first.length - second.length;
+    }
+    
+    private static final Comparator<Entry> PATH_ORDER = 
+        new Comparator<Entry>() {
+            @Override
+            public int compare(Entry first, Entry second) {
+                return ScanIndex.compare(first.path, second.path);
+            }
+        };
+    
+    private static class Entry {
+        
+        private final byte[] path;
+        private final long size;
+        private final long lastModified;
+        private final int header;
+        
+        Entry(byte[] path, long size, long lastModified, int header) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.header = header;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Receives the results of a streaming scan as they are found, 
+ * rather than waiting for the whole directory tree to be searched.
+ * 
+ * @see HeaderTool#scanForFilesWithoutHeader(File, String[], ScanListener)
+ * 
+ * @author Michael Fitzmaurice
+ */
+public interface ScanListener {
+    
+    /**
+     * Why a file was neither matched nor reported as headerless
+     */
+    enum SkipReason {
+        
+        /**
+         * The start of the file holds NUL bytes or the signature of 
+         * a common binary format, such as a zip or image file
+         */
+        BINARY, 
+        
+        /**
+         * The file is larger than the configured maximum, so was 
+         * not opened
+         */
+        OVERSIZED 
+    };
+    
+    /**
+     * Called as soon as a file is found to begin with one of the 
+     * headers.
+     * 
+     * @param file The file that was checked
+     * @param headerFile The file containing the header that it 
+     *          begins with
+     * @throws IOException If the listener fails to handle the file; 
+     *          this stops the scan and is propagated to the caller
+     */
+    void headerFound(File file, File headerFile) throws IOException;
+    
+    /**
+     * Called as soon as a file is found not to begin with any of the 
+     * headers.
+     * 
+     * @param file The headerless file
+     * @throws IOException If the listener fails to handle the file; 
+     *          this stops the scan and is propagated to the caller
+     */
+    void headerMissing(File file) throws IOException;
+    
+    /**
+     * Called as soon as a file is found not to be worth matching, 
+     * because it is binary or too large. Headers are never inserted 
+     * into such files.
+     * 
+     * @param file The skipped file
+     * @param reason Why it was skipped
+     * @throws IOException If the listener fails to handle the file; 
+     *          this stops the scan and is propagated to the caller
+     */
+    void fileSkipped(File file, SkipReason reason) throws IOException;
+}
@@ -0,0 +1,247 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and timers for one <code>HeaderTool</code>, updated by 
+ * whichever threads do the work. Each update is a single atomic 
+ * add, with no locking, so the cost per file is a handful of 
+ * <code>System.nanoTime()</code> calls and atomic adds, which is 
+ * small beside opening the file.
+ * 
+ * @author Michael Fitzmaurice
+ */
+final class ScanMetrics implements ScanMetricsMBean {
+    
+    private final AtomicLong filesVisited = new AtomicLong();
+    private final AtomicLong filesChecked = new AtomicLong();
+    private final AtomicLong filesSkipped = new AtomicLong();
+    private final AtomicLong filesRead = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong filesWritten = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong scanNanos = new AtomicLong();
+    private final AtomicLong walkNanos = new AtomicLong();
+    private final AtomicLong checkNanos = new AtomicLong();
+    private final AtomicLong readNanos = new AtomicLong();
+    private final AtomicLong matchNanos = new AtomicLong();
+    private final AtomicLong writeNanos = new AtomicLong();
+    
+    // bytes read by each thread's current or latest check, for 
+    // reporting alongside that check's result
+    private final ThreadLocal<long[]> checkBytesRead = 
+        new ThreadLocal<long[]>() {
+            @Override
+            protected long[] initialValue() {
+                return new long[1];
+            }
+        };
+    
+    /**
+     * @return A header check that does the same as the given one, 
+     *          counting the files it checks and skips, and timing 
+     *          each check
+     */
+    HeaderCheck metered(final HeaderCheck check) {
+        
+        return new HeaderCheck() {
+            @Override
+            public int matchingHeader(File file, BasicFileAttributes attrs)
+            throws IOException {
+                
+                long start = checkStarted();
+                int header = NO_MATCH;
+                try {
+                    header = check.matchingHeader(file, attrs);
+                    return header;
+                } finally {
+                    checked(header, start);
+                }
+            }
+        };
+    }
+    
+    /**
+     * Marks the start of a check made on the calling thread other than 
+     * through a {@link #metered(HeaderCheck)} check, such as of an 
+     * entry in an archive
+     * 
+     * @return The time the check started, to pass to 
+     *          {@link #checked(int, long)}
+     */
+    long checkStarted() {
+        
+        checkBytesRead.get()[0] = 0;
+        
+        return System.nanoTime();
+    }
+    
+    /**
+     * @param header The result of the check, as a {@link HeaderCheck} 
+     *          returns it
+     * @param start The time returned by {@link #checkStarted()}
+     */
+    void checked(int header, long start) {
+        
+        if (header == HeaderCheck.BINARY || header == HeaderCheck.OVERSIZED) {
+            filesSkipped.incrementAndGet();
+        }
+        checkNanos.addAndGet(System.nanoTime() - start);
+        filesChecked.incrementAndGet();
+    }
+    
+    void fileRead(long bytes, long nanos) {
+        
+        filesRead.incrementAndGet();
+        bytesRead.addAndGet(bytes);
+        readNanos.addAndGet(nanos);
+        checkBytesRead.get()[0] += bytes;
+    }
+    
+    /**
+     * @return The bytes read by the latest check made on the calling 
+     *          thread through a {@link #metered(HeaderCheck)} check; 
+     *          zero if the file was not opened. Scans report each 
+     *          result on the thread that checked the file, so 
+     *          listeners can ask for this as each result arrives.
+     */
+    long bytesReadByLastCheck() {
+        return checkBytesRead.get()[0];
+    }
+    
+    void bytesMatched(long nanos) {
+        matchNanos.addAndGet(nanos);
+    }
+    
+    void fileWritten(long bytes, long nanos) {
+        
+        filesWritten.incrementAndGet();
+        bytesWritten.addAndGet(bytes);
+        writeNanos.addAndGet(nanos);
+    }
+    
+    void scanned(long nanos) {
+        scanNanos.addAndGet(nanos);
+    }
+    
+    /**
+     * @param files The number of files a walk came across, whether or 
+     *          not they were then checked
+     * @param nanos The time spent listing directories and filtering 
+     *          their entries, not counting the checks
+     */
+    void walked(long files, long nanos) {
+        
+        filesVisited.addAndGet(files);
+        walkNanos.addAndGet(nanos);
+    }
+    
+    @Override
+    public long getFilesVisited() {
+        return filesVisited.get();
+    }
+    
+    @Override
+    public long getFilesChecked() {
+        return filesChecked.get();
+    }
+    
+    @Override
+    public long getFilesSkipped() {
+        return filesSkipped.get();
+    }
+    
+    @Override
+    public long getFilesRead() {
+        return filesRead.get();
+    }
+    
+    @Override
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+    
+    @Override
+    public long getFilesWritten() {
+        return filesWritten.get();
+    }
+    
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+    
+    @Override
+    public long getScanMillis() {
+        return millis(scanNanos);
+    }
+    
+    @Override
+    public long getWalkMillis() {
+        return millis(walkNanos);
+    }
+    
+    @Override
+    public long getCheckMillis() {
+        return millis(checkNanos);
+    }
+    
+    @Override
+    public long getReadMillis() {
+        return millis(readNanos);
+    }
+    
+    @Override
+    public long getMatchMillis() {
+        return millis(matchNanos);
+    }
+    
+    @Override
+    public long getWriteMillis() {
+        return millis(writeNanos);
+    }
+    
+    /**
+     * @return All of the totals on one line, as space separated 
+     *          <code>name=value</code> pairs
+     */
+    String summary() {
+        
+        return "files_visited=" + getFilesVisited() 
+                + " files_checked=" + getFilesChecked() 
+                + " files_skipped=" + getFilesSkipped() 
+                + " files_read=" + getFilesRead() 
+                + " bytes_read=" + getBytesRead() 
+                + " files_written=" + getFilesWritten() 
+                + " bytes_written=" + getBytesWritten() 
+                + " scan_ms=" + getScanMillis() 
+                + " walk_ms=" + getWalkMillis() 
+                + " check_ms=" + getCheckMillis() 
+                + " read_ms=" + getReadMillis() 
+                + " match_ms=" + getMatchMillis() 
+                + " write_ms=" + getWriteMillis();
+    }
+    
+    private static long millis(AtomicLong nanos) {
+        return TimeUnit.NANOSECONDS.toMillis( nanos.get() );
+    }
+}
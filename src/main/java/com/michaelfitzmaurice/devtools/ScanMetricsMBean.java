@@ -0,0 +1,105 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools;
+
+/**
+ * Running totals for the scans and inserts made by a 
+ * <code>HeaderTool</code>, readable over JMX while a run is in 
+ * progress. Times are summed across threads, so for parallel scans 
+ * and inserts they can exceed the elapsed time.
+ * 
+ * @see HeaderTool#getMetrics()
+ * 
+ * @author Michael Fitzmaurice
+ */
+public interface ScanMetricsMBean {
+    
+    /**
+     * @return The number of files the directory walks came across, 
+     *          including those whose extension or an exclusion rule 
+     *          kept them from being checked
+     */
+    long getFilesVisited();
+    
+    /**
+     * @return The number of files checked for a header, whether or 
+     *          not they had to be read
+     */
+    long getFilesChecked();
+    
+    /**
+     * @return The number of files skipped as binary or oversized
+     */
+    long getFilesSkipped();
+    
+    /**
+     * @return The number of files opened and read to check them
+     */
+    long getFilesRead();
+    
+    /**
+     * @return The number of bytes read from files to check them
+     */
+    long getBytesRead();
+    
+    /**
+     * @return The number of files a header was inserted into
+     */
+    long getFilesWritten();
+    
+    /**
+     * @return The number of bytes written inserting headers
+     */
+    long getBytesWritten();
+    
+    /**
+     * @return The elapsed time spent scanning, from the start of 
+     *          each scan to the end of it, in milliseconds
+     */
+    long getScanMillis();
+    
+    /**
+     * @return The time spent walking directory trees, listing each 
+     *          directory and deciding which of its entries to check, 
+     *          but not checking them, in milliseconds
+     */
+    long getWalkMillis();
+    
+    /**
+     * @return The time spent checking files for a header, including 
+     *          reading and matching them and consulting any scan 
+     *          index, in milliseconds
+     */
+    long getCheckMillis();
+    
+    /**
+     * @return The time spent opening and reading files to check 
+     *          them, in milliseconds
+     */
+    long getReadMillis();
+    
+    /**
+     * @return The time spent matching bytes already read against the 
+     *          headers, in milliseconds
+     */
+    long getMatchMillis();
+    
+    /**
+     * @return The time spent inserting headers into files, in 
+     *          milliseconds
+     */
+    long getWriteMillis();
+}
@@ -0,0 +1,105 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools;
+
+import java.io.Closeable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The worker threads that parallel and asynchronous scans check 
+ * files on. Each pool is only started when first asked for. A 
+ * single scan can use a set of pools of its own, closed when the 
+ * scan ends, or many scans can share one set, so that a run over 
+ * many source trees starts its threads, and warms them up, once.
+ * 
+ * @author Michael Fitzmaurice
+ */
+final class ScanPools implements Closeable {
+    
+    private final int threads;
+    private ForkJoinPool forkJoinPool;
+    private ExecutorService ioPool;
+    
+    /**
+     * @param threads The number of threads in each pool
+     */
+    ScanPools(int threads) {
+        this.threads = threads;
+    }
+    
+    /**
+     * @return The pool for parallel scans
+     */
+    synchronized ForkJoinPool forkJoinPool() {
+        
+        if (forkJoinPool == null) {
+            forkJoinPool = new ForkJoinPool(threads);
+        }
+        
+        return forkJoinPool;
+    }
+    
+    /**
+     * @return The pool for asynchronous scans, which has as many 
+     *          threads as the most reads to have in flight
+     */
+    synchronized ExecutorService ioPool() {
+        
+        if (ioPool == null) {
+            ioPool = Executors.newFixedThreadPool(threads, 
+                                                new IoThreadFactory() );
+        }
+        
+        return ioPool;
+    }
+    
+    /**
+     * Stops any pools that have been started, interrupting any 
+     * checks still running on the asynchronous scan threads
+     */
+    @Override
+    public synchronized void close() {
+        
+        if (forkJoinPool != null) {
+            forkJoinPool.shutdown();
+        }
+        if (ioPool != null) {
+            ioPool.shutdownNow();
+        }
+    }
+    
+    /**
+     * Makes daemon threads, so an abandoned scan never keeps the 
+     * JVM alive
+     */
+    private static class IoThreadFactory implements ThreadFactory {
+        
+        private final ThreadFactory delegate = Executors.defaultThreadFactory();
+        
+        @Override
+        public Thread newThread(Runnable task) {
+            
+            Thread thread = delegate.newThread(task);
+            thread.setName( "header-scan-io-" + thread.getName() );
+            thread.setDaemon(true);
+            
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.List;
+
+import com.michaelfitzmaurice.devtools.ScanListener.SkipReason;
+
+/**
+ * Checks each file in a directory tree for headers on the calling 
+ * thread, using <code>Files.walkFileTree</code>. Files are filtered 
+ * and checked as the walk reaches them, so no list of candidate files 
+ * is ever built and each result is passed on as soon as it is known.
+ * <p>
+ * Like <code>FileUtils.listFiles</code>, the walk follows symbolic 
+ * links and quietly skips directories it cannot list; it also skips 
+ * links that lead back into a directory already being walked.
+ * 
+ * @author Michael Fitzmaurice
+ */
+final class SerialScanner {
+    
+    private final HeaderCheck headerCheck;
+    private final List<File> headerFiles;
+    private final ScanMetrics metrics;
+    
+    /**
+     * @param headerCheck Decides which header each file begins with
+     * @param headerFiles The files holding the headers, in the order 
+     *          the header check numbers them
+     * @param metrics Where to count the files walked past and time 
+     *          the walk
+     */
+    SerialScanner(HeaderCheck headerCheck, 
+                    List<File> headerFiles, 
+                    ScanMetrics metrics) {
+        this.headerCheck = headerCheck;
+        this.headerFiles = headerFiles;
+        this.metrics = metrics;
+    }
+    
+    /**
+     * @param rootDir The directory to begin the search from
+     * @param filter Decides which files are checked
+     * @param exclusions Decides which files are skipped, and which 
+     *          directories are not entered at all
+     * @param listener Told about each file as it is checked
+     * 
+     * @throws IOException If something goes wrong reading the content
+     *         of any of the files being scanned, or the listener fails
+     */
+    void scan(File rootDir, 
+                FileExtensionFilter filter, 
+                ExclusionRules exclusions,
+                final ScanListener listener) 
+    throws IOException {
+        
+        walk(rootDir, filter, exclusions, metrics, new FileVisit() {
+            @Override
+            public void visit(File file, BasicFileAttributes attrs) 
+            throws IOException {
+                report(headerCheck.matchingHeader(file, attrs), 
+                        file, 
+                        headerFiles, 
+                        listener);
+            }
+        });
+    }
+    
+    /**
+     * Receives each file that a walk accepts
+     */
+    interface FileVisit {
+        
+        void visit(File file, BasicFileAttributes attrs) 
+        throws IOException;
+    }
+    
+    /**
+     * Walks a directory tree on the calling thread, passing on each 
+     * file that the filter accepts and the exclusions do not rule out.
+     * The time spent walking, less the time spent in the visits, is 
+     * added to the metrics along with the number of files seen.
+     * 
+     * @throws IOException If a file cannot be read, or the visit fails
+     */
+    static void walk(File rootDir, 
+                        final FileExtensionFilter filter, 
+                        final ExclusionRules exclusions,
+                        ScanMetrics metrics,
+                        final FileVisit fileVisit) 
+    throws IOException {
+        
+        if ( rootDir.isDirectory() == false ) {
+            return;
+        }
+        
+        final Path rootPath = rootDir.toPath();
+        // files seen, and nanoseconds spent visiting those accepted
+        final long[] counts = new long[2];
+        long start = System.nanoTime();
+        try {
+            walkFileTree(rootPath, filter, exclusions, fileVisit, counts);
+        } finally {
+            metrics.walked(counts[0], 
+                            System.nanoTime() - start - counts[1]);
+        }
+    }
+    
+    private static void walkFileTree(final Path rootPath, 
+                                        final FileExtensionFilter filter, 
+                                        final ExclusionRules exclusions,
+                                        final FileVisit fileVisit,
+                                        final long[] counts) 
+    throws IOException {
+        
+        Files.walkFileTree(rootPath, 
+                            EnumSet.of(FileVisitOption.FOLLOW_LINKS),
+                            Integer.MAX_VALUE,
+                            new SimpleFileVisitor<Path>() {
+            
+            @Override
+            public FileVisitResult preVisitDirectory(Path path, 
+                                                    BasicFileAttributes attrs) {
+                
+                if ( path.equals(rootPath) == false 
+                        && excluded(path, true) ) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult visitFile(Path path, 
+                                            BasicFileAttributes attrs)
+            throws IOException {
+                
+                if ( attrs.isDirectory() ) {
+                    return FileVisitResult.CONTINUE;
+                }
+                counts[0]++;
+                String name = path.getFileName().toString();
+                if ( filter.accept(name) 
+                        && excluded(path, false) == false ) {
+                    long start = System.nanoTime();
+                    try {
+                        fileVisit.visit(path.toFile(), attrs);
+                    } finally {
+                        counts[1] += System.nanoTime() - start;
+                    }
+                }
+                
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult visitFileFailed(Path path, IOException e)
+            throws IOException {
+                
+                if ( e instanceof FileSystemLoopException
+                        || Files.isDirectory(path) ) {
+                    return FileVisitResult.CONTINUE;
+                }
+                throw e;
+            }
+            
+            private boolean excluded(Path path, boolean directory) {
+                
+                if ( exclusions.isEmpty() ) {
+                    return false;
+                }
+                String relativePath = rootPath.relativize(path).toString();
+                if (File.separatorChar != '/') {
+                    relativePath = relativePath.replace(File.separatorChar, '/');
+                }
+                
+                return exclusions.excludes(relativePath, 
+                                            path.getFileName().toString(), 
+                                            directory);
+            }
+        });
+    }
+    
+    /**
+     * Passes the result of checking a file on to a listener
+     * 
+     * @param header The result of the header check
+     */
+    static void report(int header, 
+                        File file, 
+                        List<File> headerFiles, 
+                        ScanListener listener) 
+    throws IOException {
+        
+        if (header == HeaderCheck.NO_MATCH) {
+            listener.headerMissing(file);
+        } else if (header == HeaderCheck.BINARY) {
+            listener.fileSkipped(file, SkipReason.BINARY);
+        } else if (header == HeaderCheck.OVERSIZED) {
+            listener.fileSkipped(file, SkipReason.OVERSIZED);
+        } else if (header == HeaderCheck.ARCHIVE) {
+            // each entry has been reported already
+        } else {
+            listener.headerFound( file, headerFiles.get(header) );
+        }
+    }
+}
@@ -16,7 +16,7 @@
 #    limitations under the License.
 ##########################################################
 
-echo "Launching Header Tool"
-echo ""
+echo "Launching Header Tool" >&2
+echo "" >&2
 
 java -classpath lib:lib/* com.michaelfitzmaurice.devtools.HeaderTool "$@"
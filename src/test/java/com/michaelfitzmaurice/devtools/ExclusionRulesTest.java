@@ -0,0 +1,99 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ExclusionRulesTest {
+
+    @Test
+    public void matchesPlainNamesAtAnyDepth() {
+        
+        ExclusionRules rules = ExclusionRules.parse( asList("node_modules") );
+        
+        assertTrue( rules.excludes("node_modules", "node_modules", true) );
+        assertTrue( rules.excludes("web/node_modules", "node_modules", true) );
+        assertTrue( rules.excludes("web/node_modules", "node_modules", false) );
+        assertFalse( rules.excludes("web/node_modules2", "node_modules2", true) );
+    }
+
+    @Test
+    public void matchesTrailingSlashPatternsAgainstDirectoriesOnly() {
+        
+        ExclusionRules rules = ExclusionRules.parse( asList("target/") );
+        
+        assertTrue( rules.excludes("a/target", "target", true) );
+        assertFalse( rules.excludes("a/target", "target", false) );
+    }
+
+    @Test
+    public void anchorsPatternsContainingASlash() {
+        
+        ExclusionRules rules = 
+            ExclusionRules.parse( asList("/build", "docs/*.html") );
+        
+        assertTrue( rules.excludes("build", "build", true) );
+        assertFalse( rules.excludes("sub/build", "build", true) );
+        assertTrue( rules.excludes("docs/index.html", "index.html", false) );
+        assertFalse( rules.excludes("docs/api/index.html", "index.html", false) );
+        assertFalse( rules.excludes("sub/docs/index.html", "index.html", false) );
+    }
+
+    @Test
+    public void supportsWildcardsAndDoubleStars() {
+        
+        ExclusionRules rules = 
+            ExclusionRules.parse( asList("*.min.js", 
+                                        "Gen?rated.java", 
+                                        "[ab]*.tmp", 
+                                        "**/out/**") );
+        
+        assertTrue( rules.excludes("js/app.min.js", "app.min.js", false) );
+        assertFalse( rules.excludes("js/app.js", "app.js", false) );
+        assertTrue( rules.excludes("Generated.java", "Generated.java", false) );
+        assertTrue( rules.excludes("x/b1.tmp", "b1.tmp", false) );
+        assertFalse( rules.excludes("x/c1.tmp", "c1.tmp", false) );
+        assertTrue( rules.excludes("a/out/b/C.java", "C.java", false) );
+        assertTrue( rules.excludes("out/C.java", "C.java", false) );
+    }
+
+    @Test
+    public void letsLaterNegatedPatternsReincludeAndIgnoresComments() {
+        
+        ExclusionRules rules = 
+            ExclusionRules.parse( asList("# generated code", 
+                                        "", 
+                                        "*.java", 
+                                        "!Keep.java") );
+        
+        assertTrue( rules.excludes("Other.java", "Other.java", false) );
+        assertFalse( rules.excludes("src/Keep.java", "Keep.java", false) );
+    }
+
+    @Test
+    public void excludesFilesInsideExcludedDirectories() {
+        
+        ExclusionRules rules = ExclusionRules.parse( asList("target/") );
+        
+        assertTrue( rules.excludesFile("module/target/classes/A.java") );
+        assertFalse( rules.excludesFile("module/src/A.java") );
+        assertFalse( ExclusionRules.NONE.excludesFile("target/A.java") );
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import com.michaelfitzmaurice.devtools.HeaderBatch.Job;
+import com.michaelfitzmaurice.devtools.HeaderTool.MatchMode;
+
+public class HeaderBatchTest extends HeaderToolTest {
+    
+    @Test
+    public void readsJobsResolvingPathsAgainstConfigDirectory()
+    throws Exception {
+        
+        File config = new File(TMP_ROOT_DIRECTORY, "jobs.txt");
+        FileUtils.writeStringToFile(config, 
+                                    "# root header mode extensions" + NEWLINE
+                                    + "root/subB  header.txt  full  java txt"
+                                    + NEWLINE
+                                    + NEWLINE
+                                    + "/abs/src a.txt" + File.pathSeparator
+                                    + "b.txt template *" + NEWLINE);
+        
+        List<Job> jobs = HeaderBatch.readJobs(config);
+        
+        assertEquals( 2, jobs.size() );
+        assertEquals( new File(TMP_ROOT_DIRECTORY, "root/subB"), 
+                        jobs.get(0).rootDir );
+        assertEquals( Arrays.asList( new File(TMP_ROOT_DIRECTORY, "header.txt") ), 
+                        jobs.get(0).headerFiles );
+        assertEquals( MatchMode.FULL_MATCH, jobs.get(0).matchMode );
+        assertArrayEquals( new String[] {"java", "txt"}, 
+                            jobs.get(0).fileExtensions );
+        assertEquals( new File("/abs/src"), jobs.get(1).rootDir );
+        assertEquals( 2, jobs.get(1).headerFiles.size() );
+        assertEquals( MatchMode.TEMPLATE, jobs.get(1).matchMode );
+        assertNull( jobs.get(1).fileExtensions );
+    }
+    
+    @Test (expected = IllegalArgumentException.class)
+    public void rejectsUnknownMatchMode()
+    throws Exception {
+        
+        File config = new File(TMP_ROOT_DIRECTORY, "jobs.txt");
+        FileUtils.writeStringToFile(config, "root header.txt fuzzy java");
+        HeaderBatch.readJobs(config);
+    }
+    
+    @Test
+    public void runsEveryJobCarryingOnPastFailures()
+    throws Exception {
+        
+        File missingDir = new File(TMP_ROOT_DIRECTORY, "missing");
+        List<File> headers = Arrays.asList(HEADER_FILE);
+        List<Job> jobs = 
+            Arrays.asList( 
+                new Job( new File(TMP_ROOT_DIRECTORY, "root/subA"), 
+                        headers, 
+                        MatchMode.FULL_MATCH, 
+                        new String[] {"java"} ), 
+                new Job(missingDir, headers, MatchMode.FULL_MATCH, null), 
+                new Job( new File(TMP_ROOT_DIRECTORY, "root/subB"), 
+                        headers, 
+                        MatchMode.FIRST_LINE_ONLY, 
+                        null) );
+        
+        Map<Job, IOException> failures = new HeaderBatch().run(jobs);
+        
+        assertEquals( 1, failures.size() );
+        assertEquals( missingDir, failures.keySet().iterator().next().rootDir );
+    }
+}
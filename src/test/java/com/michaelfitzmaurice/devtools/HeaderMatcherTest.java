@@ -0,0 +1,214 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class HeaderMatcherTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final HeaderMatcher matcher =
+        new HeaderMatcher( literals("/**\n * Header\n */\n"), "\n", UTF8 );
+
+    @Test
+    public void readsNoMoreThanHeaderLengthPlusOneByteForEachLine() {
+        assertEquals(18 + 3, matcher.windowSize() );
+    }
+
+    @Test
+    public void matchesIdenticalPrefix() {
+        assertMatches("/**\n * Header\n */\npackage foo;\n", true);
+    }
+
+    @Test
+    public void matchesWindowsAndOldMacLineEndings() {
+        assertMatches("/**\r\n * Header\r\n */\r\nclass Foo {}", true);
+        assertMatches("/**\r * Header\r */\rclass Foo {}", true);
+    }
+
+    @Test
+    public void matchesFileEndingWithoutFinalLineTerminator() {
+        assertMatches("/**\n * Header\n */", true);
+    }
+
+    @Test
+    public void doesNotMatchDifferentOrTruncatedContent() {
+        assertMatches("/**\n * Headed\n */\n", false);
+        assertMatches("/**\n * Head", false);
+        assertMatches("", false);
+    }
+
+    @Test
+    public void reportsLongestOfSeveralHeadersSharingAPrefix() {
+        
+        HeaderMatcher multiMatcher = 
+            new HeaderMatcher( literals("// Apache\n", 
+                                        "// MIT\n", 
+                                        "// MIT\n// extra\n"), 
+                                "\n", 
+                                UTF8 );
+        
+        assertEquals( 0, match(multiMatcher, "// Apache\nclass A {}") );
+        assertEquals( 1, match(multiMatcher, "// MIT\nclass A {}") );
+        assertEquals( 2, match(multiMatcher, "// MIT\n// extra\nclass A {}") );
+        assertEquals( HeaderCheck.NO_MATCH, 
+                        match(multiMatcher, "// BSD\nclass A {}") );
+    }
+
+    @Test
+    public void matchesAnyYearAndAuthorInTemplate() {
+        
+        HeaderMatcher templateMatcher = 
+            new HeaderMatcher( asList( HeaderTemplate.parse(
+                                "// Copyright ${yearRange} ${author}\n// End\n") ), 
+                                "\n", 
+                                UTF8 );
+        
+        assertEquals( 0, match(templateMatcher, 
+                                "// Copyright 2013 Jane Doe\n// End\nclass A {}") );
+        assertEquals( 0, match(templateMatcher, 
+                                "// Copyright 2009-2014 J. Doe\r\n// End\r\n") );
+        assertEquals( 0, match(templateMatcher, 
+                                "// Copyright 2009, 2014 ACME\n// End") );
+        assertEquals( HeaderCheck.NO_MATCH, 
+                        match(templateMatcher, "// Copyright 13 Jane\n// End\n") );
+        assertEquals( HeaderCheck.NO_MATCH, 
+                        match(templateMatcher, "// Copyright 2013 \n// End\n") );
+        assertEquals( HeaderCheck.NO_MATCH, 
+                        match(templateMatcher, "// Copyright 2013 Jane\n// Fin\n") );
+    }
+
+    @Test
+    public void reportsWhereMatchedHeaderEnds() {
+        
+        assertEquals( 18, headerEnd("/**\n * Header\n */\npackage foo;\n") );
+        assertEquals( 21, headerEnd("/**\r\n * Header\r\n */\r\nclass Foo {}") );
+        assertEquals( 17, headerEnd("/**\n * Header\n */") );
+        assertEquals( HeaderCheck.NO_MATCH, headerEnd("/**\n * Headed\n */\n") );
+    }
+
+    @Test
+    public void matchesHeaderAfterByteOrderMarkShebangOrXmlDeclaration() {
+        
+        assertEquals( 0, matchAfterPreamble("\ufeff/**\n * Header\n */\n") );
+        assertEquals( 0, matchAfterPreamble(
+                            "#!/bin/sh\n/**\n * Header\n */\necho") );
+        assertEquals( 0, matchAfterPreamble(
+                            "\ufeff<?xml version=\"1.0\"?>\r\n/**\n * Header\n */") );
+        assertEquals( 0, matchAfterPreamble(
+                            "<?php\n/**\n * Header\n */\necho 1;") );
+        assertEquals( 0, matchAfterPreamble(
+                            "#!/usr/bin/env php\n<?php\r\n/**\n * Header\n */") );
+        assertEquals( HeaderCheck.NO_MATCH, 
+                        matchAfterPreamble("// preamble\n/**\n * Header\n */\n") );
+        
+        StringBuilder longShebang = new StringBuilder("#!");
+        while (longShebang.length() < Preamble.MAX_LENGTH) {
+            longShebang.append('x');
+        }
+        assertEquals( HeaderCheck.NO_MATCH, 
+                        matchAfterPreamble(longShebang 
+                                            + "\n/**\n * Header\n */\n") );
+    }
+
+    @Test
+    public void findsEndOfPreambleWithinFixedBudget() {
+        
+        assertEquals( 0, preambleLength("/**\n * Header\n */\n") );
+        assertEquals( 3, preambleLength("\ufeffclass A {}") );
+        assertEquals( 10, preambleLength("#!/bin/sh\necho") );
+        assertEquals( 22, preambleLength("<?xml version=\"1.0\"?>\n<a/>") );
+        assertEquals( 21, preambleLength("<?xml version=\"1.0\"?><a/>") );
+        assertEquals( 9, preambleLength("#!/bin/sh") );
+        assertEquals( 6, preambleLength("<?php\necho 1;") );
+        assertEquals( 25, preambleLength("#!/usr/bin/env php\n<?php\n$a") );
+        assertEquals( 19, preambleLength("#!/usr/bin/env php\necho") );
+    }
+
+    @Test
+    public void usesLookupTableForStatesWithManyExits() {
+        
+        List<String> texts = new ArrayList<String>();
+        for (char c = 'a'; c <= 'z'; c++) {
+            texts.add("// " + c + "\n");
+        }
+        HeaderMatcher wideMatcher = 
+            new HeaderMatcher( literals( texts.toArray(new String[0]) ), 
+                                "\n", 
+                                UTF8 );
+        
+        assertEquals( 0, match(wideMatcher, "// a\n") );
+        assertEquals( 25, match(wideMatcher, "// z\n") );
+        assertEquals( HeaderCheck.NO_MATCH, match(wideMatcher, "// A\n") );
+    }
+
+    private void assertMatches(String content, boolean expected) {
+        
+        int expectedHeader = expected ? 0 : HeaderCheck.NO_MATCH;
+        assertEquals("Unexpected result matching '" + content + "'",
+                    expectedHeader,
+                    match(matcher, content) );
+    }
+    
+    private int headerEnd(String content) {
+        
+        byte[] bytes = content.getBytes(UTF8);
+        int length = Math.min( bytes.length, matcher.windowSize() );
+        
+        return matcher.headerEnd(bytes, length, length == bytes.length);
+    }
+    
+    private int matchAfterPreamble(String content) {
+        
+        byte[] bytes = content.getBytes(UTF8);
+        
+        return matcher.match(bytes, bytes.length, true);
+    }
+    
+    private static int preambleLength(String content) {
+        
+        byte[] bytes = content.getBytes(UTF8);
+        
+        return Preamble.length(bytes, bytes.length);
+    }
+    
+    private static List<HeaderTemplate> literals(String... texts) {
+        
+        List<HeaderTemplate> templates = new ArrayList<HeaderTemplate>();
+        for (String text : texts) {
+            templates.add( HeaderTemplate.literal(text) );
+        }
+        
+        return templates;
+    }
+    
+    private static int match(HeaderMatcher matcher, String content) {
+        
+        byte[] bytes = content.getBytes(UTF8);
+        int length = Math.min( bytes.length, matcher.windowSize() );
+        boolean endOfFile = length == bytes.length;
+        
+        return matcher.match(bytes, length, endOfFile);
+    }
+}
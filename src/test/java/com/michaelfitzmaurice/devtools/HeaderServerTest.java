@@ -0,0 +1,167 @@
+/**
+ *    Copyright 2013 Michael Fitzmaurice
+ * 
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.michaelfitzmaurice.devtools;
+
+import static com.michaelfitzmaurice.devtools.FileListBuilder.aFileList;
+import static com.michaelfitzmaurice.devtools.HeaderTool.MatchMode.FULL_MATCH;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+public class HeaderServerTest extends HeaderToolTest {
+    
+    private static final File TOKEN_FILE = 
+        new File(TMP_ROOT_DIRECTORY, "server.token");
+    
+    @Test
+    public void checksAndInsertsHeadersForClientsUntilStopped() 
+    throws Exception {
+        
+        HeaderServer server = 
+            new HeaderServer(new HeaderTool(HEADER_FILE, FULL_MATCH), 
+                            0, 
+                            TOKEN_FILE);
+        Thread serverThread = startServing(server);
+        
+        HeaderClient client = new HeaderClient(server.getPort(), TOKEN_FILE);
+        File targetDir = new File(TMP_ROOT_DIRECTORY, "root/subB");
+        List<File> files = 
+            aFileList()
+                .withFile(targetDir, "Header.java")
+                .withFile(targetDir, "NoHeader.java")
+                .build();
+        List<File> noHeader = 
+            aFileList().withFile(targetDir, "NoHeader.java").build();
+        
+        assertEquals( noHeader, client.check(files) );
+        assertEquals( noHeader, client.insert(files) );
+        assertFilesHaveHeader(files);
+        assertTrue( client.check(files).isEmpty() );
+        
+        client.stop();
+        serverThread.join(10000);
+        assertFalse( serverThread.isAlive() );
+    }
+    
+    @Test
+    public void reportsServerErrorsToClient() 
+    throws Exception {
+        
+        HeaderServer server = 
+            new HeaderServer(new HeaderTool(HEADER_FILE, FULL_MATCH), 
+                            0, 
+                            TOKEN_FILE);
+        Thread serverThread = startServing(server);
+        
+        HeaderClient client = new HeaderClient(server.getPort(), TOKEN_FILE);
+        try {
+            client.check( Arrays.asList( new File(TMP_ROOT_DIRECTORY, "missing") ) );
+            assertTrue("Expected an IOException", false);
+        } catch (IOException e) {
+            // expected
+        } finally {
+            client.stop();
+            serverThread.join(10000);
+        }
+    }
+    
+    @Test
+    public void refusesRequestsWithoutTokenAndSurvivesSilentClients() 
+    throws Exception {
+        
+        HeaderServer server = 
+            new HeaderServer(new HeaderTool(HEADER_FILE, FULL_MATCH), 
+                            0, 
+                            TOKEN_FILE);
+        server.setRequestTimeout(200);
+        Thread serverThread = startServing(server);
+        
+        assertEquals( "rw-------", 
+                    PosixFilePermissions.toString( 
+                        Files.getPosixFilePermissions( TOKEN_FILE.toPath() ) ) );
+        
+        // a client that connects and sends nothing must not hold up 
+        // those behind it for ever
+        Socket silent = 
+            new Socket( InetAddress.getLoopbackAddress(), server.getPort() );
+        File stolenToken = new File(TMP_ROOT_DIRECTORY, "wrong.token");
+        FileUtils.writeStringToFile(stolenToken, "guess", "UTF-8");
+        HeaderClient intruder = 
+            new HeaderClient(server.getPort(), stolenToken);
+        File targetDir = new File(TMP_ROOT_DIRECTORY, "root/subB");
+        File noHeader = new File(targetDir, "NoHeader.java");
+        try {
+            intruder.insert( Arrays.asList(noHeader) );
+            assertTrue("Expected an IOException", false);
+        } catch (IOException e) {
+            assertEquals( "Missing or wrong server token", e.getMessage() );
+        } finally {
+            silent.close();
+        }
+        assertFalse( FileUtils.readFileToString(noHeader, "UTF-8")
+                        .startsWith(HEADER_CONTENT) );
+        
+        new HeaderClient(server.getPort(), TOKEN_FILE).stop();
+        serverThread.join(10000);
+        assertFalse( TOKEN_FILE.exists() );
+    }
+    
+    @Test
+    public void clientRejectsMissingOrUnknownCommand() 
+    throws Exception {
+        
+        String[][] badArgs = { {}, {"chekc", "Foo.java"} };
+        for (String[] args : badArgs) {
+            try {
+                HeaderClient.main(args);
+                fail( "Accepted " + Arrays.toString(args) );
+            } catch (IllegalArgumentException e) {
+                assertTrue( e.getMessage(), 
+                            e.getMessage().startsWith("Usage:") );
+            }
+        }
+    }
+    
+    private static Thread startServing(final HeaderServer server) {
+        
+        Thread serverThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        serverThread.start();
+        
+        return serverThread;
+    }
+}
@@ -20,16 +20,42 @@ import static com.michaelfitzmaurice.devtools.HeaderTool.MatchMode.FIRST_LINE_ON
 import static com.michaelfitzmaurice.devtools.HeaderTool.MatchMode.FULL_MATCH;
 import static java.lang.String.format;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
 import org.junit.Test;
 
 import com.michaelfitzmaurice.devtools.HeaderTool.MatchMode;
+import com.michaelfitzmaurice.devtools.HeaderTool.ScanMode;
+import com.michaelfitzmaurice.devtools.ScanListener.SkipReason;
 
 public class HeaderToolUnitTest extends HeaderToolTest {
     
@@ -177,6 +203,878 @@ public class HeaderToolUnitTest extends HeaderToolTest {
                             "Did not report expected list of files");
     }
     
+    @Test
+    public void parallelScanReportsSameFilesAsSerialScanInSortedOrder() 
+    throws Exception {
+        
+        File targetDir = new File(TMP_ROOT_DIRECTORY, "root");
+        HeaderTool serialTool = new HeaderTool(HEADER_FILE, FULL_MATCH);
+        HeaderTool parallelTool = 
+            new HeaderTool(HEADER_FILE, FULL_MATCH, ScanMode.PARALLEL, 4);
+        
+        List<File> serialResult = 
+            new ArrayList<File>( 
+                    serialTool.listFilesWithoutHeader(targetDir, null) );
+        List<File> parallelResult = 
+            new ArrayList<File>( 
+                    parallelTool.listFilesWithoutHeader(targetDir, null) );
+        
+        assertEquals(12, serialResult.size() );
+        assertEquals(serialResult, parallelResult);
+        List<File> sorted = new ArrayList<File>(parallelResult);
+        Collections.sort(sorted);
+        assertEquals("Parallel scan result was not sorted", 
+                    sorted, 
+                    parallelResult);
+    }
+    
+    @Test
+    public void parallelScanSkipsSymbolicLinkLoopsAsSerialScanDoes() 
+    throws Exception {
+        
+        File targetDir = new File(TMP_ROOT_DIRECTORY, "root");
+        Files.createSymbolicLink( 
+            new File(targetDir, "subA/subA1/up").toPath(), 
+            targetDir.toPath() );
+        HeaderTool serialTool = new HeaderTool(HEADER_FILE, FULL_MATCH);
+        HeaderTool parallelTool = 
+            new HeaderTool(HEADER_FILE, FULL_MATCH, ScanMode.PARALLEL, 4);
+        
+        Collection<File> serialResult = 
+            serialTool.listFilesWithoutHeader(targetDir, null);
+        assertEquals(12, serialResult.size() );
+        assertEquals( serialResult, 
+                        parallelTool.listFilesWithoutHeader(targetDir, null) );
+    }
+    
+    @Test
+    public void asyncScanReportsSameFilesAsSerialScan() 
+    throws Exception {
+        
+        File targetDir = new File(TMP_ROOT_DIRECTORY, "root");
+        HeaderTool serialTool = new HeaderTool(HEADER_FILE, FULL_MATCH);
+        HeaderTool asyncTool = 
+            new HeaderTool( Arrays.asList(HEADER_FILE), 
+                            FULL_MATCH, 
+                            ScanMode.ASYNC, 
+                            64 );
+        
+        assertEquals( serialTool.listFilesWithoutHeader(targetDir, null), 
+                        asyncTool.listFilesWithoutHeader(targetDir, null) );
+        assertEquals( serialTool.getMetrics().getFilesChecked(), 
+                        asyncTool.getMetrics().getFilesChecked() );
+    }
+    
+    @Test (expected = IOException.class)
+    public void asyncScanPropagatesReadFailures() 
+    throws Exception {
+        
+        File targetDir = new File(TMP_ROOT_DIRECTORY, "root/subB");
+        Files.createSymbolicLink( new File(targetDir, "Broken.java").toPath(), 
+                                    new File(targetDir, "Gone.java").toPath() );
+        HeaderTool asyncTool = 
+            new HeaderTool( Arrays.asList(HEADER_FILE), 
+                            FULL_MATCH, 
+                            ScanMode.ASYNC, 
+                            4 );
+        asyncTool.listFilesWithoutHeader(targetDir, null);
+    }
+    
+    @Test (expected = RejectedExecutionException.class, timeout = 10000)
+    public void asyncScanFailsRatherThanHangsWhenPoolRejectsChecks() 
+    throws Exception {
+        
+        File targetDir = new File(TMP_ROOT_DIRECTORY, "root/subB");
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        pool.shutdown();
+        AsyncScanner scanner = 
+            new AsyncScanner(new HeaderCheck() {
+                                @Override
+                                public int matchingHeader(
+                                                File file, 
+                                                BasicFileAttributes attrs) {
+                                    return NO_MATCH;
+                                }
+                            }, 
+                            Arrays.asList(HEADER_FILE), 
+                            pool, 
+                            2,
+                            new ScanMetrics());
+        scanner.scan(targetDir, 
+                    new FileExtensionFilter(null), 
+                    ExclusionRules.NONE, 
+                    null);
+    }
+    
+    @Test
+    public void parallelScanAppliesFileExtensionFilter() 
+    throws Exception {
+        
+        File targetDir = new File(TMP_ROOT_DIRECTORY, "root/subA");
+        List<File> filesWithoutHeader = 
+            aFileList()
+                .withFile(targetDir, "subA1/NoHeader.java")
+                .withFile(targetDir, "subA2/NoHeader.java")
+                .build();
+        
+        HeaderTool headerTool = 
+            new HeaderTool(HEADER_FILE, FIRST_LINE_ONLY, ScanMode.PARALLEL, 2);
+        assertFileListsEqual(filesWithoutHeader, 
+                            headerTool.listFilesWithoutHeader(targetDir, 
+                                                    new String[] {"java"}),
+                            "Did not report expected list of files");
+    }
+    
+    @Test
+    public void streamingScanPassesEachHeaderlessFileToListener() 
+    throws Exception {
+        
+        File targetDir = new File(TMP_ROOT_DIRECTORY, "root/subA");
+        List<File> filesWithoutHeader = 
+            aFileList()
+                .withFile(targetDir, "subA1/NoHeader.java")
+                .withFile(targetDir, "subA1/DifferentHeader.java")
+                .withFile(targetDir, "subA2/NoHeader.java")
+                .withFile(targetDir, "subA2/DifferentHeader.java")
+                .build();
+        
+        final List<File> reported = new ArrayList<File>();
+        HeaderTool headerTool = new HeaderTool(HEADER_FILE, FULL_MATCH);
+        headerTool.scanForFilesWithoutHeader(targetDir, 
+                                            new String[] {"java"}, 
+                                            new ScanListener() {
+            @Override
+            public void headerFound(File file, File headerFile) {
+                // only interested in headerless files
+            }
+            
+            @Override
+            public void headerMissing(File file) {
+                reported.add(file);
+            }
+            
+            @Override
+            public void fileSkipped(File file, SkipReason reason) {
+                fail("Unexpectedly skipped " + file);
+            }
+        });
+        
+        assertFileListsEqual(filesWithoutHeader, 
+                            reported,
+                            "Did not report expected list of files");
+    }
+    
+    @Test
+    public void writesJsonRecordForEachFileAsItIsChecked() 
+    throws Exception {
+        
+        File targetDir = new File(TMP_ROOT_DIRECTORY, "root/subB");
+        File quoted = new File(targetDir, "Say \"hi\".java");
+        FileUtils.writeStringToFile(quoted, "class Hi {}");
+        
+        for ( ScanMode scanMode : ScanMode.values() ) {
+            HeaderTool headerTool = 
+                new HeaderTool(Arrays.asList(HEADER_FILE), FULL_MATCH, scanMode, 2);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            List<File> filesWithNoHeader = 
+                headerTool.listFilesWithoutHeader(
+                    targetDir, 
+                    new String[] {"java"}, 
+                    new NdjsonResultWriter( out, 
+                                            (ScanMetrics) headerTool.getMetrics() ) );
+            
+            List<String> records = 
+                Arrays.asList( out.toString("UTF-8").split("\n") );
+            assertEquals( 3, records.size() );
+            assertEquals( 2, filesWithNoHeader.size() );
+            File headerFile = new File(targetDir, "Header.java");
+            String headerRecord = 
+                "{\"path\":\"" + headerFile.getPath() + "\","
+                + "\"status\":\"header\","
+                + "\"header\":\"" + HEADER_FILE.getPath() + "\","
+                + "\"bytes_read\":";
+            boolean headerRecordFound = false;
+            long bytesRead = 0;
+            for (String record : records) {
+                assertTrue( record.endsWith("}") );
+                bytesRead += Long.parseLong( 
+                    record.substring(record.lastIndexOf(':') + 1, 
+                                    record.length() - 1) );
+                headerRecordFound |= record.startsWith(headerRecord);
+            }
+            assertTrue(headerRecordFound);
+            assertEquals( headerTool.getMetrics().getBytesRead(), bytesRead );
+            assertTrue( records.contains( 
+                "{\"path\":\"" + quoted.getPath().replace("\"", "\\\"") + "\","
+                + "\"status\":\"missing\","
+                + "\"header\":null,"
+                + "\"bytes_read\":" + quoted.length() + "}" ) );
+        }
+    }
+    
+    @Test
+    public void scanIndexSkipsFilesWhoseSizeAndModificationTimeAreUnchanged() 
+    throws Exception {
+        
+        File targetDir = new File(TMP_ROOT_DIRECTORY, "root/subB");
+        File indexFile = new File(TMP_ROOT_DIRECTORY, "scan.idx");
+        List<File> filesWithoutHeader = 
+            aFileList().withFile(targetDir, "NoHeader.java").build();
+        
+        HeaderTool headerTool = new HeaderTool(HEADER_FILE, FULL_MATCH);
+        headerTool.setScanIndex(indexFile);
+        String[] extensions = new String[] {"java"};
+        assertFileListsEqual(filesWithoutHeader, 
+                            headerTool.listFilesWithoutHeader(targetDir, 
+                                                            extensions),
+                            "Did not report expected list of files");
+        assertTrue( "Scan index was not written", indexFile.isFile() );
+        
+        // strip the header without changing size or modification time
+        File headerFile = new File(targetDir, "Header.java");
+        long lastModified = headerFile.lastModified();
+        String content = FileUtils.readFileToString(headerFile);
+        FileUtils.writeStringToFile( headerFile, 
+                                    content.replace('*', '#') );
+        assertTrue( headerFile.setLastModified(lastModified) );
+        
+        assertFileListsEqual(filesWithoutHeader, 
+                            headerTool.listFilesWithoutHeader(targetDir, 
+                                                            extensions),
+                            "Unchanged file should not have been re-read");
+        
+        HeaderTool firstLineTool = new HeaderTool(HEADER_FILE, FIRST_LINE_ONLY);
+        firstLineTool.setScanIndex(indexFile);
+        filesWithoutHeader.add(headerFile);
+        assertFileListsEqual(filesWithoutHeader, 
+                            firstLineTool.listFilesWithoutHeader(targetDir, 
+                                                                extensions),
+                            "Index should be rebuilt when match mode changes");
+    }
+    
+    @Test
+    public void scanIndexDropsFilesNoLongerInTheWalkedTree() 
+    throws Exception {
+        
+        File targetDir = new File(TMP_ROOT_DIRECTORY, "root/subA");
+        File indexFile = new File(TMP_ROOT_DIRECTORY, "scan.idx");
+        HeaderTool headerTool = new HeaderTool(HEADER_FILE, FULL_MATCH);
+        headerTool.setScanIndex(indexFile);
+        headerTool.listFilesWithoutHeader(targetDir, null);
+        assertEquals( 12, scanIndexEntryCount(indexFile) );
+        
+        FileUtils.deleteDirectory( new File(targetDir, "subA2") );
+        headerTool.listFilesWithoutHeader(targetDir, null);
+        assertEquals( 6, scanIndexEntryCount(indexFile) );
+        
+        // checking a few files keeps the entries for the rest
+        headerTool.filterFilesWithoutHeader( 
+            Arrays.asList( new File(targetDir, "subA1/NoHeader.java") ) );
+        assertEquals( 6, scanIndexEntryCount(indexFile) );
+    }
+    
+    /**
+     * Reads the entry count from the fixed length start of a scan index
+     */
+    private int scanIndexEntryCount(File indexFile) 
+    throws IOException {
+        
+        DataInputStream in = 
+            new DataInputStream( new FileInputStream(indexFile) );
+        try {
+            in.skipBytes(16);
+            return in.readInt();
+        } finally {
+            in.close();
+        }
+    }
+    
+    @Test
+    public void changedFilesModeOnlyReportsFilesChangedSinceGivenCommit() 
+    throws Exception {
+        
+        File workTree = new File(TMP_ROOT_DIRECTORY, "root");
+        Git git = Git.init().setDirectory(workTree).call();
+        try {
+            git.add().addFilepattern(".").call();
+            git.commit().setMessage("Initial import").call();
+            
+            File targetDir = new File(workTree, "subA");
+            File added = new File(targetDir, "subA1/Added.java");
+            FileUtils.writeStringToFile(added, "class Added {}");
+            File modified = new File(targetDir, "subA2/NoHeader.java");
+            FileUtils.writeStringToFile(modified, "class Modified {}");
+            File modifiedWithHeader = new File(targetDir, "subA2/Header.java");
+            FileUtils.writeStringToFile(modifiedWithHeader, 
+                                        HEADER_CONTENT + "class Header {}");
+            FileUtils.writeStringToFile(new File(workTree, "subB/Other.java"), 
+                                        "class Other {}");
+            
+            HeaderTool headerTool = new HeaderTool(HEADER_FILE, FULL_MATCH);
+            List<File> expected = 
+                aFileList()
+                    .withFile(targetDir, "subA1/Added.java")
+                    .withFile(targetDir, "subA2/NoHeader.java")
+                    .build();
+            assertEquals(expected, 
+                        headerTool.listChangedFilesWithoutHeader(
+                                                    targetDir, 
+                                                    new String[] {"java"},
+                                                    "HEAD") );
+            
+            assertTrue("Unchanged tree should report no files",
+                        headerTool.listChangedFilesWithoutHeader(
+                                                    new File(workTree, "subC"), 
+                                                    null,
+                                                    "HEAD").isEmpty() );
+        } finally {
+            git.close();
+        }
+    }
+    
+    @Test
+    public void acceptsAnyOfSeveralHeadersAndReportsWhichOneMatched() 
+    throws Exception {
+        
+        File targetDir = new File(TMP_ROOT_DIRECTORY, "root/subB");
+        File mitHeader = new File(TMP_ROOT_DIRECTORY, "mit-header.txt");
+        FileUtils.writeStringToFile(mitHeader, 
+                                    "// MIT licence" + NEWLINE);
+        File mitFile = new File(targetDir, "Mit.java");
+        FileUtils.writeStringToFile(mitFile, 
+                                    "// MIT licence" + NEWLINE + "class Mit {}");
+        List<File> headerFiles = Arrays.asList(HEADER_FILE, mitHeader);
+        
+        for (ScanMode scanMode : ScanMode.values() ) {
+            HeaderTool headerTool = 
+                new HeaderTool(headerFiles, FULL_MATCH, scanMode, 2);
+            assertEquals(aFileList().withFile(targetDir, "NoHeader.java").build(), 
+                        headerTool.listFilesWithoutHeader(targetDir, 
+                                                    new String[] {"java"}) );
+        }
+        
+        final Map<File, File> matchedHeaders = new HashMap<File, File>();
+        HeaderTool headerTool = 
+            new HeaderTool(headerFiles, FULL_MATCH, ScanMode.SERIAL, 1);
+        headerTool.scanForFilesWithoutHeader(targetDir, 
+                                            new String[] {"java"}, 
+                                            new ScanListener() {
+            @Override
+            public void headerFound(File file, File headerFile) {
+                matchedHeaders.put(file, headerFile);
+            }
+            
+            @Override
+            public void headerMissing(File file) {
+                matchedHeaders.put(file, null);
+            }
+            
+            @Override
+            public void fileSkipped(File file, SkipReason reason) {
+                fail("Unexpectedly skipped " + file);
+            }
+        });
+        assertEquals( HEADER_FILE, 
+                        matchedHeaders.get( new File(targetDir, "Header.java") ) );
+        assertEquals( mitHeader, matchedHeaders.get(mitFile) );
+        assertEquals( null, 
+                        matchedHeaders.get( new File(targetDir, "NoHeader.java") ) );
+        assertEquals( 3, matchedHeaders.size() );
+    }
+    
+    @Test
+    public void matchesTemplateHeaderWithAnyYearAndInsertsCurrentYear() 
+    throws Exception {
+        
+        File targetDir = new File(TMP_ROOT_DIRECTORY, "root/subB");
+        File templateHeader = new File(TMP_ROOT_DIRECTORY, "template-header.txt");
+        FileUtils.writeStringToFile(templateHeader, 
+                                    "// Copyright ${yearRange} ${author}" 
+                                    + NEWLINE);
+        File oldFile = new File(targetDir, "Old.java");
+        FileUtils.writeStringToFile(oldFile, 
+                                    "// Copyright 2009-2012 Someone Else" 
+                                    + NEWLINE + "class Old {}");
+        
+        HeaderTool headerTool = 
+            new HeaderTool(Arrays.asList(templateHeader), 
+                            MatchMode.TEMPLATE, 
+                            ScanMode.SERIAL, 
+                            1);
+        headerTool.setTemplateAuthor("Jane Doe");
+        List<File> expected = 
+            aFileList()
+                .withFile(targetDir, "Header.java")
+                .withFile(targetDir, "NoHeader.java")
+                .build();
+        assertEquals(expected, 
+                    headerTool.listFilesWithoutHeader(targetDir, 
+                                                    new String[] {"java"}) );
+        
+        headerTool.insertHeader(expected);
+        int year = Calendar.getInstance().get(Calendar.YEAR);
+        assertTrue( FileUtils.readFileToString( expected.get(1) )
+                        .startsWith("// Copyright " + year + " Jane Doe" 
+                                    + NEWLINE) );
+        assertTrue( headerTool.listFilesWithoutHeader(targetDir, 
+                                                    new String[] {"java"})
+                        .isEmpty() );
+    }
+    
+    @Test
+    public void replacesOutOfDateHeadersInPlaceOrByRewriting() 
+    throws Exception {
+        
+        File targetDir = new File(TMP_ROOT_DIRECTORY, "root/subB");
+        File templateHeader = new File(TMP_ROOT_DIRECTORY, "template-header.txt");
+        FileUtils.writeStringToFile(templateHeader, 
+                                    "// Copyright ${yearRange} ${author}" 
+                                    + NEWLINE);
+        File sameLength = new File(targetDir, "SameLength.java");
+        FileUtils.writeStringToFile(sameLength, 
+                                    "// Copyright 2012 Jane Doe" 
+                                    + NEWLINE + "class SameLength {}");
+        File longer = new File(targetDir, "Longer.java");
+        FileUtils.writeStringToFile(longer, 
+                                    "// Copyright 2009-2012 Someone Else" 
+                                    + NEWLINE + "class Longer {}");
+        
+        HeaderTool headerTool = 
+            new HeaderTool(Arrays.asList(templateHeader), 
+                            MatchMode.TEMPLATE, 
+                            ScanMode.SERIAL, 
+                            1);
+        headerTool.setTemplateAuthor("Jane Doe");
+        List<File> withHeader = 
+            headerTool.listFilesWithHeader(targetDir, new String[] {"java"});
+        assertEquals( aFileList()
+                        .withFile(targetDir, "Longer.java")
+                        .withFile(targetDir, "SameLength.java")
+                        .build(), 
+                        withHeader );
+        
+        long sameLengthSize = sameLength.length();
+        assertEquals(withHeader, headerTool.replaceHeader(withHeader) );
+        int year = Calendar.getInstance().get(Calendar.YEAR);
+        String newHeader = "// Copyright " + year + " Jane Doe" + NEWLINE;
+        assertEquals( newHeader + "class SameLength {}", 
+                        FileUtils.readFileToString(sameLength) );
+        assertEquals( sameLengthSize, sameLength.length() );
+        assertEquals( newHeader + "class Longer {}", 
+                        FileUtils.readFileToString(longer) );
+        assertEquals("Temporary files were left behind", 
+                    6, 
+                    targetDir.list().length);
+        
+        assertTrue( headerTool.replaceHeader(withHeader).isEmpty() );
+        assertTrue( headerTool.replaceHeader( Arrays.asList( 
+                        new File(targetDir, "NoHeader.java") ) ).isEmpty() );
+    }
+    
+    @Test
+    public void rendersHeaderInCommentStyleOfEachFileType() 
+    throws Exception {
+        
+        File targetDir = new File(TMP_ROOT_DIRECTORY, "styled");
+        File plainHeader = new File(TMP_ROOT_DIRECTORY, "plain-header.txt");
+        FileUtils.writeStringToFile(plainHeader, 
+                                    "Copyright 2013 Jane Doe" + NEWLINE 
+                                    + NEWLINE 
+                                    + "Licensed under the Apache License" 
+                                    + NEWLINE);
+        FileUtils.writeStringToFile(new File(targetDir, "Styled.java"), 
+                                    "/*" + NEWLINE 
+                                    + " * Copyright 2013 Jane Doe" + NEWLINE 
+                                    + " *" + NEWLINE 
+                                    + " * Licensed under the Apache License" 
+                                    + NEWLINE 
+                                    + " */" + NEWLINE 
+                                    + "class Styled {}");
+        File script = new File(targetDir, "script.sh");
+        FileUtils.writeStringToFile(script, "echo hi");
+        File page = new File(targetDir, "page.xml");
+        FileUtils.writeStringToFile(page, "<page/>");
+        File notes = new File(targetDir, "notes.txt");
+        FileUtils.writeStringToFile(notes, "notes");
+        List<File> expected = 
+            aFileList()
+                .withFile(targetDir, "notes.txt")
+                .withFile(targetDir, "page.xml")
+                .withFile(targetDir, "script.sh")
+                .build();
+        
+        HeaderTool headerTool = null;
+        for (ScanMode scanMode : ScanMode.values() ) {
+            headerTool = 
+                new HeaderTool(Arrays.asList(plainHeader), FULL_MATCH, scanMode, 2);
+            headerTool.setCommentStyles( CommentStyle.defaults() );
+            assertEquals( scanMode.name(), 
+                            expected, 
+                            headerTool.listFilesWithoutHeader(targetDir, null) );
+        }
+        
+        headerTool.insertHeader(expected);
+        assertEquals( "# Copyright 2013 Jane Doe" + NEWLINE 
+                        + "#" + NEWLINE 
+                        + "# Licensed under the Apache License" + NEWLINE 
+                        + "echo hi", 
+                        FileUtils.readFileToString(script) );
+        assertEquals( "<!--" + NEWLINE 
+                        + "    Copyright 2013 Jane Doe" + NEWLINE 
+                        + NEWLINE 
+                        + "    Licensed under the Apache License" + NEWLINE 
+                        + "-->" + NEWLINE 
+                        + "<page/>", 
+                        FileUtils.readFileToString(page) );
+        assertEquals( FileUtils.readFileToString(plainHeader) + "notes", 
+                        FileUtils.readFileToString(notes) );
+        assertTrue( headerTool.listFilesWithoutHeader(targetDir, null).isEmpty() );
+        
+        Map<String, CommentStyle> styles = 
+            new HashMap<String, CommentStyle>( CommentStyle.defaults() );
+        styles.putAll( CommentStyle.parse("txt=hash") );
+        HeaderTool firstLineTool = new HeaderTool(plainHeader, FIRST_LINE_ONLY);
+        firstLineTool.setCommentStyles(styles);
+        FileUtils.writeStringToFile(notes, 
+                                    "# Copyright 2013 Jane Doe" + NEWLINE 
+                                    + "# Licensed under the MIT License");
+        FileUtils.writeStringToFile(new File(targetDir, "Other.java"), 
+                                    "// Copyright 2013 Jane Doe" + NEWLINE 
+                                    + "class Other {}");
+        assertEquals( aFileList()
+                        .withFile(targetDir, "Other.java")
+                        .build(), 
+                        firstLineTool.listFilesWithoutHeader(targetDir, null) );
+    }
+    
+    @Test
+    public void keepsPreambleAheadOfInsertedAndReplacedHeaders() 
+    throws Exception {
+        
+        File targetDir = new File(TMP_ROOT_DIRECTORY, "preambles");
+        File header = new File(TMP_ROOT_DIRECTORY, "hash-header.txt");
+        FileUtils.writeStringToFile(header, 
+                                    "# Copyright ${year} ${author}" + NEWLINE);
+        File script = new File(targetDir, "run.sh");
+        FileUtils.writeStringToFile(script, 
+                                    "#!/bin/sh" + NEWLINE + "echo hi");
+        File bomScript = new File(targetDir, "bom.sh");
+        FileUtils.writeByteArrayToFile(bomScript, 
+                                    ( "\ufeff# Copyright 2012 Jane Doe" 
+                                        + NEWLINE 
+                                        + "echo bom" ).getBytes("UTF-8") );
+        
+        HeaderTool headerTool = 
+            new HeaderTool(Arrays.asList(header), 
+                            MatchMode.TEMPLATE, 
+                            ScanMode.SERIAL, 
+                            1);
+        headerTool.setTemplateAuthor("Jane Doe");
+        Collection<File> withoutHeader = 
+            headerTool.listFilesWithoutHeader(targetDir, new String[] {"sh"});
+        assertEquals( Arrays.asList(script), withoutHeader );
+        
+        headerTool.insertHeader(withoutHeader);
+        String newHeader = 
+            "# Copyright " + Calendar.getInstance().get(Calendar.YEAR) 
+            + " Jane Doe" + NEWLINE;
+        assertEquals( "#!/bin/sh" + NEWLINE + newHeader + "echo hi", 
+                        FileUtils.readFileToString(script) );
+        assertTrue( headerTool.listFilesWithoutHeader(targetDir, null).isEmpty() );
+        
+        assertEquals( Arrays.asList(bomScript), 
+                        headerTool.replaceHeader( Arrays.asList(bomScript) ) );
+        assertEquals( "\ufeff" + newHeader + "echo bom", 
+                        FileUtils.readFileToString(bomScript, "UTF-8") );
+    }
+    
+    @Test
+    public void startsHeaderOnNewLineAfterShebangWithNoLineBreak() 
+    throws Exception {
+        
+        File targetDir = new File(TMP_ROOT_DIRECTORY, "unterminated");
+        File header = new File(TMP_ROOT_DIRECTORY, "hash-header.txt");
+        FileUtils.writeStringToFile(header, "# Licensed" + NEWLINE);
+        File script = new File(targetDir, "run.sh");
+        FileUtils.writeStringToFile(script, "#!/bin/sh");
+        HeaderTool headerTool = new HeaderTool(header, FULL_MATCH);
+        
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        headerTool.writeInsertPatch(targetDir, null, patch);
+        assertEquals( "diff --git a/run.sh b/run.sh\n" 
+                        + "--- a/run.sh\n" 
+                        + "+++ b/run.sh\n" 
+                        + "@@ -1,1 +1,2 @@\n" 
+                        + "-#!/bin/sh\n" 
+                        + "\\ No newline at end of file\n" 
+                        + "+#!/bin/sh" + NEWLINE 
+                        + "+# Licensed" + NEWLINE, 
+                        patch.toString("UTF-8") );
+        
+        headerTool.insertHeader( Arrays.asList(script) );
+        assertEquals( "#!/bin/sh" + NEWLINE + "# Licensed" + NEWLINE, 
+                        FileUtils.readFileToString(script) );
+        assertTrue( headerTool.listFilesWithoutHeader(targetDir, null).isEmpty() );
+    }
+    
+    @Test
+    public void writesPatchForHeaderlessFilesWithoutChangingThem() 
+    throws Exception {
+        
+        File targetDir = new File(TMP_ROOT_DIRECTORY, "patched");
+        File header = new File(TMP_ROOT_DIRECTORY, "line-header.txt");
+        FileUtils.writeStringToFile(header, "// Licensed" + NEWLINE);
+        String source = "class A {" + NEWLINE 
+                        + "  int a;" + NEWLINE 
+                        + "  int b;" + NEWLINE 
+                        + "  int c;" + NEWLINE 
+                        + "}";
+        FileUtils.writeStringToFile(new File(targetDir, "src/A.java"), source);
+        FileUtils.writeStringToFile(new File(targetDir, "run.sh"), 
+                                    "#!/bin/sh" + NEWLINE + "echo hi");
+        FileUtils.writeStringToFile(new File(targetDir, "empty.txt"), "");
+        FileUtils.writeStringToFile(new File(targetDir, "B.java"), 
+                                    "// Licensed" + NEWLINE + "class B {}");
+        
+        HeaderTool headerTool = new HeaderTool(header, FULL_MATCH);
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        Collection<File> withoutHeader = 
+            headerTool.writeInsertPatch(targetDir, null, patch);
+        assertEquals( aFileList()
+                        .withFile(targetDir, "empty.txt")
+                        .withFile(targetDir, "run.sh")
+                        .withFile(targetDir, "src/A.java")
+                        .build(), 
+                        withoutHeader );
+        
+        String javaDiff = "diff --git a/src/A.java b/src/A.java\n" 
+                            + "--- a/src/A.java\n" 
+                            + "+++ b/src/A.java\n" 
+                            + "@@ -1,3 +1,4 @@\n" 
+                            + "+// Licensed" + NEWLINE 
+                            + " class A {" + NEWLINE 
+                            + "   int a;" + NEWLINE 
+                            + "   int b;" + NEWLINE;
+        String scriptDiff = "diff --git a/run.sh b/run.sh\n" 
+                            + "--- a/run.sh\n" 
+                            + "+++ b/run.sh\n" 
+                            + "@@ -1,2 +1,3 @@\n" 
+                            + " #!/bin/sh" + NEWLINE 
+                            + "+// Licensed" + NEWLINE 
+                            + " echo hi\n" 
+                            + "\\ No newline at end of file\n";
+        String emptyDiff = "diff --git a/empty.txt b/empty.txt\n" 
+                            + "--- a/empty.txt\n" 
+                            + "+++ b/empty.txt\n" 
+                            + "@@ -0,0 +1,1 @@\n" 
+                            + "+// Licensed" + NEWLINE;
+        String written = patch.toString("UTF-8");
+        assertTrue( written, written.contains(javaDiff) );
+        assertTrue( written, written.contains(scriptDiff) );
+        assertTrue( written, written.contains(emptyDiff) );
+        assertEquals( javaDiff.length() + scriptDiff.length() + emptyDiff.length(), 
+                        written.length() );
+        assertEquals( source, 
+                        FileUtils.readFileToString( 
+                            new File(targetDir, "src/A.java") ) );
+        assertEquals( 0, new File(targetDir, "empty.txt").length() );
+    }
+    
+    @Test
+    public void showsWholeContextLinesAfterMultiLinePreambleInPatch() 
+    throws Exception {
+        
+        File targetDir = new File(TMP_ROOT_DIRECTORY, "patched-php");
+        File header = new File(TMP_ROOT_DIRECTORY, "line-header.txt");
+        FileUtils.writeStringToFile(header, "// Licensed" + NEWLINE);
+        StringBuilder longLine = new StringBuilder("$c = '");
+        while (longLine.length() < 600) {
+            longLine.append('x');
+        }
+        longLine.append("';\n");
+        FileUtils.writeStringToFile(new File(targetDir, "page.php"), 
+                                    "#!/usr/bin/env php\n" 
+                                    + "<?php\n" 
+                                    + "$a = 1;\n" 
+                                    + "$b = 2;\n" 
+                                    + longLine 
+                                    + "$d = 4;\n");
+        
+        HeaderTool headerTool = new HeaderTool(header, FULL_MATCH);
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        headerTool.writeInsertPatch(targetDir, null, patch);
+        assertEquals( "diff --git a/page.php b/page.php\n" 
+                        + "--- a/page.php\n" 
+                        + "+++ b/page.php\n" 
+                        + "@@ -1,5 +1,6 @@\n" 
+                        + " #!/usr/bin/env php\n" 
+                        + " <?php\n" 
+                        + "+// Licensed" + NEWLINE 
+                        + " $a = 1;\n" 
+                        + " $b = 2;\n" 
+                        + " " + longLine, 
+                        patch.toString("UTF-8") );
+    }
+    
+    @Test
+    public void skipsBinaryAndOversizedFilesWithoutReportingThemAsHeaderless() 
+    throws Exception {
+        
+        File targetDir = new File(TMP_ROOT_DIRECTORY, "root/subB");
+        File nulFile = new File(targetDir, "data.bin");
+        FileUtils.writeByteArrayToFile(nulFile, new byte[] {'a', 0, 'b'});
+        File jarFile = new File(targetDir, "lib.jar");
+        FileUtils.writeByteArrayToFile(jarFile, new byte[] {'P', 'K', 3, 4, 'x'});
+        File bigFile = new File(targetDir, "Big.java");
+        StringBuilder bigContent = new StringBuilder("class Big {" + NEWLINE);
+        while (bigContent.length() < 2048) {
+            bigContent.append("// padding").append(NEWLINE);
+        }
+        FileUtils.writeStringToFile(bigFile, bigContent.append("}").toString() );
+        
+        for (ScanMode scanMode : ScanMode.values() ) {
+            HeaderTool headerTool = 
+                new HeaderTool(Arrays.asList(HEADER_FILE), FULL_MATCH, scanMode, 2);
+            headerTool.setMaxFileSize(1024);
+            List<File> expected = 
+                aFileList()
+                    .withFile(targetDir, "NoHeader.java")
+                    .withFile(targetDir, "no-header.txt")
+                    .build();
+            assertEquals(expected, 
+                        headerTool.listFilesWithoutHeader(targetDir, null) );
+            assertEquals( 3, headerTool.getMetrics().getFilesSkipped() );
+        }
+        
+        final Map<File, SkipReason> skipped = new HashMap<File, SkipReason>();
+        HeaderTool headerTool = new HeaderTool(HEADER_FILE, FULL_MATCH);
+        headerTool.setMaxFileSize(1024);
+        headerTool.scanForFilesWithoutHeader(targetDir, 
+                                            null, 
+                                            new ScanListener() {
+            @Override
+            public void headerFound(File file, File headerFile) {
+                // only interested in skipped files
+            }
+            
+            @Override
+            public void headerMissing(File file) {
+                // only interested in skipped files
+            }
+            
+            @Override
+            public void fileSkipped(File file, SkipReason reason) {
+                skipped.put(file, reason);
+            }
+        });
+        assertEquals( SkipReason.BINARY, skipped.get(nulFile) );
+        assertEquals( SkipReason.BINARY, skipped.get(jarFile) );
+        assertEquals( SkipReason.OVERSIZED, skipped.get(bigFile) );
+        assertEquals( 3, skipped.size() );
+        assertTrue( headerTool.filterFilesWithoutHeader(
+                                    Arrays.asList(nulFile, bigFile) ).isEmpty() );
+    }
+    
+    @Test
+    public void excludesMatchingFilesAndPrunesExcludedDirectories() 
+    throws Exception {
+        
+        File targetDir = new File(TMP_ROOT_DIRECTORY, "root/subA");
+        File buildOutput = new File(targetDir, "subA1/target/Generated.java");
+        FileUtils.writeStringToFile(buildOutput, "class Generated {}");
+        List<File> expected = 
+            aFileList()
+                .withFile(targetDir, "subA1/NoHeader.java")
+                .withFile(targetDir, "subA2/NoHeader.java")
+                .build();
+        
+        for (ScanMode scanMode : ScanMode.values() ) {
+            HeaderTool headerTool = 
+                new HeaderTool(Arrays.asList(HEADER_FILE), FULL_MATCH, scanMode, 2);
+            headerTool.setExclusions( 
+                Arrays.asList("target/", "DifferentHeader.java") );
+            assertEquals(expected, 
+                        headerTool.listFilesWithoutHeader(targetDir, 
+                                                    new String[] {"java"}) );
+        }
+    }
+    
+    @Test
+    public void countsFilesAndBytesCheckedAndWritten() 
+    throws Exception {
+        
+        File targetDir = new File(TMP_ROOT_DIRECTORY, "root/subB");
+        HeaderTool headerTool = new HeaderTool(HEADER_FILE, FULL_MATCH);
+        Collection<File> filesWithNoHeader = 
+            headerTool.listFilesWithoutHeader(targetDir, new String[] {"java"});
+        headerTool.insertHeader(filesWithNoHeader);
+        
+        ScanMetricsMBean metrics = headerTool.getMetrics();
+        assertEquals( 2, metrics.getFilesChecked() );
+        assertEquals( 2, metrics.getFilesRead() );
+        assertTrue( metrics.getBytesRead() > 0 );
+        assertEquals( 1, metrics.getFilesWritten() );
+        File amended = filesWithNoHeader.iterator().next();
+        assertEquals( amended.length(), metrics.getBytesWritten() );
+    }
+    
+    @Test
+    public void countsFilesVisitedInEveryScanMode() 
+    throws Exception {
+        
+        File targetDir = new File(TMP_ROOT_DIRECTORY, "root");
+        int filesInTree = FileUtils.listFiles(targetDir, null, true).size();
+        for ( ScanMode scanMode : ScanMode.values() ) {
+            HeaderTool headerTool = 
+                new HeaderTool( Arrays.asList(HEADER_FILE), 
+                                FULL_MATCH, 
+                                scanMode, 
+                                4 );
+            headerTool.listFilesWithoutHeader(targetDir, 
+                                                new String[] {"java"});
+            
+            ScanMetricsMBean metrics = headerTool.getMetrics();
+            assertEquals( scanMode.toString(), 
+                            filesInTree, 
+                            metrics.getFilesVisited() );
+            assertTrue( scanMode.toString(), 
+                        metrics.getFilesChecked() < filesInTree );
+            assertTrue( scanMode.toString(), 
+                        metrics.getWalkMillis() <= metrics.getScanMillis() );
+        }
+    }
+    
+    @Test (expected = IllegalArgumentException.class)
+    public void rejectsParallelScanWithoutThreads() 
+    throws Exception {
+        new HeaderTool(HEADER_FILE, FULL_MATCH, ScanMode.PARALLEL, 0);
+    }
+    
+    @Test
+    public void rejectsScanRootThatIsNeitherDirectoryNorArchive() 
+    throws Exception {
+        
+        File file = new File(TMP_ROOT_DIRECTORY, "root/subB/NoHeader.java");
+        File missing = new File(TMP_ROOT_DIRECTORY, "no-such-dir");
+        for (ScanMode scanMode : ScanMode.values() ) {
+            HeaderTool headerTool = 
+                new HeaderTool( Arrays.asList(HEADER_FILE), 
+                                FULL_MATCH, 
+                                scanMode, 
+                                2 );
+            for ( File root : Arrays.asList(file, missing) ) {
+                try {
+                    headerTool.listFilesWithoutHeader(root, null);
+                    assertTrue("Expected an IllegalArgumentException for " 
+                                + root + " in " + scanMode, 
+                                false);
+                } catch (IllegalArgumentException e) {
+                    // expected
+                }
+            }
+        }
+    }
+    
     @Test
     public void insertsHeaderIntoSuppliedFiles()
     throws Exception {
@@ -197,6 +1095,403 @@ public class HeaderToolUnitTest extends HeaderToolTest {
         assertFilesHaveHeader(files);
     }
 
+    @Test
+    public void insertingHeaderPreservesOriginalBytesAndLeavesNoTempFiles()
+    throws Exception {
+        
+        File targetDir = new File(TMP_ROOT_DIRECTORY, "root/subC/subC1");
+        File file = new File(targetDir, "Windows.java");
+        byte[] original = "class Windows {\r\n}\r\n".getBytes("UTF-8");
+        FileUtils.writeByteArrayToFile(file, original);
+        
+        HeaderTool headerTool = new HeaderTool(HEADER_FILE, FULL_MATCH);
+        headerTool.insertHeader( aFileList().withFile(targetDir, 
+                                                    "Windows.java").build() );
+        
+        byte[] expected = 
+            (HEADER_CONTENT + "class Windows {\r\n}\r\n").getBytes("UTF-8");
+        assertTrue("Original content was altered", 
+                    Arrays.equals( expected, 
+                                    FileUtils.readFileToByteArray(file) ) );
+        assertEquals("Temporary files were left behind", 
+                    5, 
+                    targetDir.list().length);
+    }
+    
+    @Test
+    public void insertingHeaderThroughSymbolicLinkAmendsTargetAndKeepsLink()
+    throws Exception {
+        
+        File targetDir = new File(TMP_ROOT_DIRECTORY, "root/subA/subA1");
+        File linkDir = new File(TMP_ROOT_DIRECTORY, "root/subB");
+        File target = new File(targetDir, "NoHeader.java");
+        File link = new File(linkDir, "Linked.java");
+        File journaledTarget = new File(targetDir, "DifferentHeader.java");
+        File journaledLink = new File(linkDir, "JournaledLink.java");
+        Files.createSymbolicLink( link.toPath(), target.toPath() );
+        Files.createSymbolicLink( journaledLink.toPath(), 
+                                    journaledTarget.toPath() );
+        int filesBefore = linkDir.list().length;
+        
+        HeaderTool headerTool = new HeaderTool(HEADER_FILE, FULL_MATCH);
+        headerTool.insertHeader( Arrays.asList(link) );
+        headerTool.insertHeaderDurably( Arrays.asList(journaledLink), 
+                                        1, 
+                                        new File(TMP_ROOT_DIRECTORY, 
+                                                "insert.journal"), 
+                                        1 );
+        
+        assertTrue( Files.isSymbolicLink( link.toPath() ) );
+        assertTrue( Files.isSymbolicLink( journaledLink.toPath() ) );
+        assertFilesHaveHeader( Arrays.asList(target, journaledTarget) );
+        assertEquals("Temporary files were left beside the links", 
+                    filesBefore, 
+                    linkDir.list().length);
+    }
+    
+    @Test
+    public void insertsHeaderOnSeveralThreadsReportingFailuresWithoutStopping()
+    throws Exception {
+        
+        File targetDir = new File(TMP_ROOT_DIRECTORY, "root/subA/subA1");
+        File missingFile = new File(targetDir, "Missing.java");
+        List<File> files  = 
+            aFileList()
+                .withFile(targetDir, "NoHeader.java")
+                .withFile(targetDir, "no-header.txt")
+                .withFile(targetDir, "DifferentHeader.java")
+                .withFile(targetDir, "different-header.txt")
+                .build();
+        List<File> filesWithMissing = new ArrayList<File>(files);
+        filesWithMissing.add(1, missingFile);
+        
+        HeaderTool headerTool = new HeaderTool(HEADER_FILE, FULL_MATCH);
+        Map<File, IOException> failures = 
+            headerTool.insertHeader(filesWithMissing, 3);
+        
+        assertEquals( Collections.singleton(missingFile), failures.keySet() );
+        assertFilesHaveHeader(files);
+    }
+    
+    @Test
+    public void insertsHeaderDurablyInGroupsLeavingNoBackupsOrJournal()
+    throws Exception {
+        
+        File targetDir = new File(TMP_ROOT_DIRECTORY, "root/subA/subA1");
+        File missingFile = new File(targetDir, "Missing.java");
+        File journal = new File(TMP_ROOT_DIRECTORY, "insert.journal");
+        List<File> files  = 
+            aFileList()
+                .withFile(targetDir, "NoHeader.java")
+                .withFile(targetDir, "no-header.txt")
+                .withFile(targetDir, "DifferentHeader.java")
+                .withFile(targetDir, "different-header.txt")
+                .build();
+        List<File> filesWithMissing = new ArrayList<File>(files);
+        filesWithMissing.add(1, missingFile);
+        int filesBefore = targetDir.list().length;
+        
+        HeaderTool headerTool = new HeaderTool(HEADER_FILE, FULL_MATCH);
+        Map<File, IOException> failures = 
+            headerTool.insertHeaderDurably(filesWithMissing, 2, journal, 2);
+        
+        assertEquals( Collections.singleton(missingFile), failures.keySet() );
+        assertFilesHaveHeader(files);
+        assertFalse( journal.exists() );
+        assertEquals("Backups or temporary files were left behind", 
+                    filesBefore, 
+                    targetDir.list().length);
+    }
+    
+    @Test
+    public void syncsBackupsAndNewVersionsBeforeRenamingAndRenamesBeforeCommit()
+    throws Exception {
+        
+        File targetDir = new File(TMP_ROOT_DIRECTORY, "root/subA/subA1");
+        final File file = new File(targetDir, "NoHeader.java");
+        final File journalFile = new File(TMP_ROOT_DIRECTORY, "insert.journal");
+        final List<String> syncs = new ArrayList<String>();
+        InsertJournal.Syncer recorder = new InsertJournal.Syncer() {
+            @Override
+            public void sync(File synced) throws IOException {
+                
+                String state = 
+                    FileUtils.readFileToString(file).startsWith(HEADER_CONTENT) 
+                        ? "amended" : "original";
+                if ( journalFile.exists() 
+                        && FileUtils.readFileToString(journalFile)
+                            .contains("commit") ) {
+                    state += ", committed";
+                }
+                synchronized (syncs) {
+                    syncs.add( synced.getName() + " when " + state );
+                }
+                InsertJournal.FILE_SYSTEM.sync(synced);
+            }
+        };
+        HeaderInserter inserter = 
+            new HeaderInserter( 
+                new FileTypeCache<byte[]>( 
+                                Collections.<String, CommentStyle>emptyMap() ) {
+                    @Override
+                    protected byte[] create(CommentStyle style) {
+                        return HEADER_CONTENT.getBytes( 
+                                            Charset.forName("UTF-8") );
+                    }
+                }, 
+                new ScanMetrics(), 
+                true );
+        
+        new InsertJournal(journalFile, recorder)
+            .insertAll(Arrays.asList(file), inserter, 1, 1);
+        
+        assertEquals( Arrays.asList( 
+                        TMP_ROOT_DIRECTORY.getName() + " when original", 
+                        InsertJournal.tmpFileOf(file).getName() 
+                            + " when original", 
+                        "subA1 when original", 
+                        "subA1 when amended" ), 
+                    syncs );
+        assertFilesHaveHeader( Arrays.asList(file) );
+    }
+    
+    @Test
+    public void collectsResultsInPathOrderAcrossRunsSpilledToDisk()
+    throws Exception {
+        
+        File rootDir = new File(TMP_ROOT_DIRECTORY, "root");
+        HeaderTool headerTool = 
+            new HeaderTool(HEADER_FILE, FULL_MATCH, ScanMode.PARALLEL, 4);
+        headerTool.setResultMemoryThreshold(16);
+        Collection<File> expected = 
+            headerTool.listFilesWithoutHeader(rootDir, null);
+        
+        ResultStore results = 
+            headerTool.collectFilesWithoutHeader(rootDir, null);
+        try {
+            assertTrue( results.runCount() > 1 );
+            assertEquals( expected.size(), results.size() );
+            assertEquals( new ArrayList<File>(expected), 
+                            new ArrayList<File>(results) );
+        } finally {
+            results.close();
+        }
+        assertEquals( 0, results.size() );
+        assertFalse( results.iterator().hasNext() );
+    }
+    
+    @Test
+    public void resultStoreKeepsPathsOutsideRootAndNonAsciiNames()
+    throws Exception {
+        
+        File rootDir = new File(TMP_ROOT_DIRECTORY, "root");
+        File outside = new File(TMP_ROOT_DIRECTORY, "elsewhere/A.java");
+        File accented = new File(rootDir, "sub/caf\u00e9/\u00c9t\u00e9.java");
+        File plain = new File(rootDir, "sub/cafe/B.java");
+        File emoji = new File(rootDir, "sub/caf\u00e9/\ud83d\ude00.java");
+        // sorts after the emoji as a string, but before it as UTF-8
+        File fullWidth = new File(rootDir, "sub/caf\u00e9/\uff01.java");
+        
+        // spilled to disk a path at a time, and held in memory
+        for ( long threshold : new long[] {24, 1024} ) {
+            assertResultStoreOrder( new ResultStore(rootDir, threshold, null), 
+                                    plain, 
+                                    fullWidth, 
+                                    emoji, 
+                                    outside, 
+                                    accented );
+        }
+    }
+    
+    private void assertResultStoreOrder(ResultStore results, File... files) {
+        
+        try {
+            for (File file : files) {
+                results.add(file);
+            }
+            List<File> expected = new ArrayList<File>( Arrays.asList(files) );
+            Collections.sort(expected, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    return relative(a).compareTo( relative(b) );
+                }
+                
+                private String relative(File file) {
+                    String root = 
+                        new File(TMP_ROOT_DIRECTORY, "root").getPath() 
+                        + File.separator;
+                    String path = file.getPath();
+                    return path.startsWith(root) 
+                            ? path.substring( root.length() ) 
+                            : "\0" + path;
+                }
+            });
+            assertEquals( expected, new ArrayList<File>(results) );
+        } finally {
+            results.close();
+        }
+    }
+    
+    @Test
+    public void recoveryRestoresUnfinishedGroupAndTidiesCommittedOne()
+    throws Exception {
+        
+        File targetDir = new File(TMP_ROOT_DIRECTORY, "journaled");
+        File journal = new File(TMP_ROOT_DIRECTORY, "insert.journal");
+        File amended = new File(targetDir, "Amended.java");
+        FileUtils.writeStringToFile(amended, "// header" + NEWLINE + "class A {}");
+        FileUtils.writeStringToFile(InsertJournal.backupOf(amended), "class A {}");
+        File untouched = new File(targetDir, "Untouched.java");
+        FileUtils.writeStringToFile(untouched, "class U {}");
+        FileUtils.writeStringToFile(InsertJournal.tmpFileOf(untouched), "// hea");
+        FileUtils.writeStringToFile(journal, 
+                                    "begin 2\n" 
+                                    + "file " + amended.getAbsolutePath() + "\n" 
+                                    + "file " + untouched.getAbsolutePath() + "\n");
+        
+        HeaderTool.recoverInsertJournal(journal);
+        assertEquals( "class A {}", FileUtils.readFileToString(amended) );
+        assertEquals( "class U {}", FileUtils.readFileToString(untouched) );
+        assertEquals( 2, targetDir.list().length );
+        assertFalse( journal.exists() );
+        
+        FileUtils.writeStringToFile(amended, "// header" + NEWLINE + "class A {}");
+        FileUtils.writeStringToFile(InsertJournal.backupOf(amended), "class A {}");
+        FileUtils.writeStringToFile(journal, 
+                                    "begin 1\n" 
+                                    + "file " + amended.getAbsolutePath() + "\n" 
+                                    + "commit\n");
+        HeaderTool.recoverInsertJournal(journal);
+        assertEquals( "// header" + NEWLINE + "class A {}", 
+                        FileUtils.readFileToString(amended) );
+        assertEquals( 2, targetDir.list().length );
+        assertFalse( journal.exists() );
+        
+        HeaderTool.recoverInsertJournal(journal);
+    }
+    
+    @Test
+    public void checksEntriesOfArchivesWithoutExtractingThem()
+    throws Exception {
+        
+        File archiveDir = new File(TMP_ROOT_DIRECTORY, "archives");
+        archiveDir.mkdirs();
+        File zip = new File(archiveDir, "bundle-sources.jar");
+        ZipOutputStream zipOut = 
+            new ZipOutputStream( new FileOutputStream(zip) );
+        try {
+            zipOut.putNextEntry( new ZipEntry("com/example/") );
+            zipOut.putNextEntry( new ZipEntry("com/example/WithHeader.java") );
+            zipOut.write( (HEADER_CONTENT + "class W {}").getBytes("UTF-8") );
+            zipOut.putNextEntry( new ZipEntry("com/example/NoHeader.java") );
+            zipOut.write( "class N {}".getBytes("UTF-8") );
+            zipOut.putNextEntry( new ZipEntry("com/example/notes.txt") );
+            zipOut.write( "no header".getBytes("UTF-8") );
+        } finally {
+            zipOut.close();
+        }
+        File tar = new File(archiveDir, "release.tar");
+        FileOutputStream tarOut = new FileOutputStream(tar);
+        try {
+            writeTarEntry(tarOut, "src/NoHeader.java", "class T {}");
+            writeTarEntry(tarOut, "src/generated/Gen.java", "class G {}");
+            writeTarEntry(tarOut, "src/WithHeader.java", HEADER_CONTENT);
+            tarOut.write( new byte[1024] );
+        } finally {
+            tarOut.close();
+        }
+        
+        HeaderTool headerTool = new HeaderTool(HEADER_FILE, FULL_MATCH);
+        assertEquals( 
+            Arrays.asList( new File(zip.getPath() 
+                                    + "!/com/example/NoHeader.java") ), 
+            headerTool.listFilesWithoutHeader(zip, new String[] {"java"}) );
+        
+        headerTool = 
+            new HeaderTool(HEADER_FILE, FULL_MATCH, ScanMode.PARALLEL, 2);
+        headerTool.setScanArchives(true);
+        headerTool.setExclusions( Arrays.asList("generated/") );
+        assertEquals( 
+            Arrays.asList( 
+                new File(zip.getPath() + "!/com/example/NoHeader.java"),
+                new File(tar.getPath() + "!/src/NoHeader.java") ), 
+            headerTool.listFilesWithoutHeader(archiveDir, 
+                                                new String[] {"java"}) );
+        assertEquals( 
+            Arrays.asList( 
+                new File(zip.getPath() + "!/com/example/WithHeader.java"),
+                new File(tar.getPath() + "!/src/WithHeader.java") ), 
+            headerTool.listFilesWithHeader(archiveDir, 
+                                            new String[] {"java"}) );
+    }
+    
+    /**
+     * Writes one file in the POSIX ustar format, as tar does
+     */
+    private void writeTarEntry(OutputStream out, String name, String content)
+    throws IOException {
+        
+        byte[] data = content.getBytes("UTF-8");
+        byte[] header = new byte[512];
+        byte[] nameBytes = name.getBytes("UTF-8");
+        System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+        putTarField(header, 100, "0000644");
+        putTarField(header, 108, "0000000");
+        putTarField(header, 116, "0000000");
+        putTarField( header, 124, format("%011o", data.length) );
+        putTarField(header, 136, "00000000000");
+        header[156] = '0';
+        putTarField(header, 257, "ustar");
+        header[263] = '0';
+        header[264] = '0';
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        int checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        putTarField( header, 148, format("%06o", checksum) );
+        out.write(header);
+        out.write(data);
+        out.write( new byte[ (512 - data.length % 512) % 512 ] );
+    }
+    
+    private void putTarField(byte[] header, int offset, String value)
+    throws IOException {
+        
+        byte[] bytes = value.getBytes("US-ASCII");
+        System.arraycopy(bytes, 0, header, offset, bytes.length);
+    }
+    
+    @Test
+    public void copiesShareHeadersButKeepSettingsOfTheirOwn()
+    throws Exception {
+        
+        File rootDir = new File(TMP_ROOT_DIRECTORY, "root");
+        File subA1 = new File(rootDir, "subA/subA1");
+        File subB = new File(rootDir, "subB");
+        List<File> changedFiles = 
+            Arrays.asList( new File(subA1, "NoHeader.java"), 
+                            new File(subA1, "no-header.txt"), 
+                            new File(subA1, "Header.java"), 
+                            new File(subB, "NoHeader.java") );
+        HeaderTool original = new HeaderTool(HEADER_FILE, FULL_MATCH);
+        HeaderTool copy = original.copy();
+        copy.setExclusions( Arrays.asList("subB/") );
+        
+        assertEquals( 
+            Arrays.asList( new File(subA1, "NoHeader.java") ), 
+            copy.filterFilesWithoutHeader(rootDir, 
+                                            new String[] {"java"}, 
+                                            changedFiles) );
+        assertEquals( 
+            Arrays.asList( new File(subA1, "NoHeader.java"), 
+                            new File(subA1, "no-header.txt"), 
+                            new File(subB, "NoHeader.java") ), 
+            original.filterFilesWithoutHeader(rootDir, null, changedFiles) );
+        assertEquals( original.getMetrics().getFilesChecked(), 
+                        copy.getMetrics().getFilesChecked() );
+    }
+    
     @Test (expected = IOException.class)
     public void propagatesExceptionInsertingHeader() 
     throws Exception {